@@ -0,0 +1,80 @@
+package pv168.benchmark;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pv168.Account;
+import pv168.AccountManager;
+import pv168.AccountManagerImpl;
+
+/**
+ * Create, find and update of single accounts, parameterized by number of
+ * accounts already stored in the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountBenchmark {
+
+    @Param({"1000", "100000"})
+    public int accounts;
+
+    private EmbeddedDataSource dataSource;
+    private AccountManager manager;
+    private List<Account> stored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        dataSource = BenchmarkDatabase.create();
+        stored = BenchmarkDatabase.createAccounts(dataSource, accounts);
+        manager = new AccountManagerImpl(dataSource);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDatabase.drop(dataSource);
+    }
+
+    private Account randomAccount() {
+        return stored.get(ThreadLocalRandom.current().nextInt(stored.size()));
+    }
+
+    @Benchmark
+    public Account createAccount() {
+        Account account = Account.newAccount("Benchmark", BigDecimal.TEN);
+        manager.createAccount(account);
+        return account;
+    }
+
+    @Benchmark
+    public Account findAccountById() {
+        return manager.findAccountById(randomAccount().getId());
+    }
+
+    @Benchmark
+    public void updateAccount() {
+        Account account = randomAccount();
+        Account changed = Account.newAccount(account.getOwner(), account.getBalance());
+        changed.setId(account.getId());
+        manager.updateAccount(changed);
+    }
+}
@@ -0,0 +1,96 @@
+package pv168.benchmark;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import pv168.Account;
+import pv168.AccountManagerImpl;
+import pv168.Payment;
+import pv168.SchemaMigration;
+
+/**
+ * In-memory Derby database with the same schema as the application, every
+ * benchmark trial gets a new one.
+ */
+final class BenchmarkDatabase {
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private BenchmarkDatabase() {
+    }
+
+    static EmbeddedDataSource create() throws SQLException {
+        EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName("memory:benchmark-" + COUNTER.incrementAndGet());
+        ds.setCreateDatabase("create");
+
+        SchemaMigration.migrate(ds);
+        return ds;
+    }
+
+    static void drop(EmbeddedDataSource ds) {
+        EmbeddedDataSource drop = new EmbeddedDataSource();
+        drop.setDatabaseName(ds.getDatabaseName());
+        drop.setConnectionAttributes("drop=true");
+        try (Connection connection = drop.getConnection()) {
+            throw new IllegalStateException("Database " + ds.getDatabaseName() + " was not dropped!");
+        } catch (SQLException ex) {
+            // Derby reports successful drop by SQLException with state 08006
+            if (!"08006".equals(ex.getSQLState())) {
+                throw new IllegalStateException("Database " + ds.getDatabaseName() + " was not dropped!", ex);
+            }
+        }
+    }
+
+    /**
+     * Creates given number of accounts with balance high enough for any
+     * number of benchmark payments.
+     */
+    static List<Account> createAccounts(EmbeddedDataSource ds, int count) {
+        List<Account> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            accounts.add(Account.newAccount("Owner " + i, new BigDecimal("1000000000.00")));
+        }
+        new AccountManagerImpl(ds).createAccounts(accounts);
+        return accounts;
+    }
+
+    /**
+     * Creates given number of payments between random accounts.
+     */
+    static void createPayments(EmbeddedDataSource ds, List<Account> accounts, int count) throws SQLException {
+        Random random = new Random(42);
+        try (Connection connection = ds.getConnection();
+                PreparedStatement st = connection.prepareStatement(
+                        "INSERT INTO payment (amount, fromAcc, toAcc, dateSent) VALUES (?, ?, ?, ?)")) {
+            connection.setAutoCommit(false);
+            Timestamp sent = new Timestamp(new Date().getTime());
+            for (int i = 0; i < count; i++) {
+                Account from = accounts.get(random.nextInt(accounts.size()));
+                Account to = accounts.get(random.nextInt(accounts.size()));
+                st.setBigDecimal(1, BigDecimal.ONE);
+                st.setLong(2, from.getId());
+                st.setLong(3, to.getId());
+                st.setTimestamp(4, sent);
+                st.addBatch();
+                if (i % 1000 == 999) {
+                    st.executeBatch();
+                }
+            }
+            st.executeBatch();
+            connection.commit();
+        }
+    }
+
+    static Payment newPayment(Account from, Account to) {
+        return Payment.newPayment(BigDecimal.ONE, from, to, null);
+    }
+}
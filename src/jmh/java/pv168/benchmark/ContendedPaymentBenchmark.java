@@ -0,0 +1,76 @@
+package pv168.benchmark;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import pv168.Account;
+import pv168.BankingManager;
+import pv168.BankingManagerImpl;
+import pv168.Payment;
+
+/**
+ * Throughput of executePayment called from 4 threads at once. Payments go
+ * between random accounts out of the given number of accounts, so fewer
+ * accounts mean more contention on their rows.
+ *
+ * Only DATABASE_BALANCE mode is measured, CLIENT_BALANCE requires the caller
+ * to serialize payments of one account.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContendedPaymentBenchmark {
+
+    @Param({"2", "1000"})
+    public int accounts;
+
+    private EmbeddedDataSource dataSource;
+    private BankingManager bankingManager;
+    private List<Account> stored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        dataSource = BenchmarkDatabase.create();
+        stored = BenchmarkDatabase.createAccounts(dataSource, accounts);
+        bankingManager = new BankingManagerImpl(dataSource, BankingManagerImpl.ExecutionMode.DATABASE_BALANCE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDatabase.drop(dataSource);
+    }
+
+    private Payment randomPayment() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(stored.size());
+        int to = (from + 1 + random.nextInt(stored.size() - 1)) % stored.size();
+        return BenchmarkDatabase.newPayment(stored.get(from), stored.get(to));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Payment executePayment() {
+        Payment payment = randomPayment();
+        bankingManager.executePayment(payment);
+        return payment;
+    }
+}
@@ -0,0 +1,126 @@
+package pv168.benchmark;
+
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.derby.drda.NetworkServerControl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pv168.Account;
+import pv168.AccountManager;
+import pv168.AccountManagerImpl;
+import pv168.PoolConfiguration;
+
+/**
+ * Latency of small statements issued by managers when Derby runs embedded
+ * and when it is reached by the network client over loopback, both through
+ * the pool created by PoolConfiguration. The difference is the cost of the
+ * TCP round trips of the client mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeploymentModeBenchmark {
+
+    private static final int PORT = 1537;
+    private static final int ACCOUNTS = 1000;
+
+    @Param({"embedded", "client"})
+    public String mode;
+
+    private NetworkServerControl server;
+    private BasicDataSource pool;
+    private AccountManager manager;
+    private List<Account> stored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String database = "memory:mode-benchmark";
+        Properties p = new Properties();
+        p.setProperty("jdbc.mode", mode);
+        p.setProperty("jdbc.pool.maxActive", "8");
+        if (mode.equals("embedded")) {
+            p.setProperty("jdbc.embedded.database", database);
+        } else {
+            server = new NetworkServerControl(InetAddress.getLoopbackAddress(), PORT);
+            server.start(new PrintWriter(System.out, true));
+            waitForServer();
+            p.setProperty("jdbc.driver", "org.apache.derby.jdbc.ClientDriver");
+            p.setProperty("jdbc.url", "jdbc:derby://localhost:" + PORT + "/" + database + ";create=true");
+            p.setProperty("jdbc.user", "app");
+            p.setProperty("jdbc.password", "app");
+        }
+        pool = PoolConfiguration.createPool(p);
+
+        try (Connection connection = pool.getConnection()) {
+            connection.prepareStatement("CREATE TABLE account ("
+                    + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
+                    + "owner VARCHAR(200) ,"
+                    + "balance DECIMAL(17,2))").executeUpdate();
+        }
+        manager = new AccountManagerImpl(pool);
+        stored = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            stored.add(Account.newAccount("Owner " + i, BigDecimal.TEN));
+        }
+        manager.createAccounts(stored);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try (Connection connection = pool.getConnection()) {
+            connection.prepareStatement("DROP TABLE account").executeUpdate();
+        }
+        pool.close();
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+
+    private void waitForServer() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            try {
+                server.ping();
+                return;
+            } catch (Exception ex) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Derby network server did not start");
+    }
+
+    @Benchmark
+    public Account findAccountById() {
+        Account account = stored.get(ThreadLocalRandom.current().nextInt(stored.size()));
+        return manager.findAccountById(account.getId());
+    }
+
+    @Benchmark
+    public void updateAccount() {
+        Account account = stored.get(ThreadLocalRandom.current().nextInt(stored.size()));
+        Account changed = Account.newAccount(account.getOwner(), account.getBalance());
+        changed.setId(account.getId());
+        manager.updateAccount(changed);
+    }
+}
@@ -0,0 +1,82 @@
+package pv168.benchmark;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pv168.Account;
+import pv168.AccountManager;
+import pv168.AccountManagerImpl;
+import pv168.BankingManager;
+import pv168.BankingManagerImpl;
+import pv168.Payment;
+
+/**
+ * Single-threaded throughput of executePayment in both execution modes.
+ * Payments go between random accounts out of the given number of accounts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutePaymentBenchmark {
+
+    @Param({"2", "1000"})
+    public int accounts;
+
+    @Param({"CLIENT_BALANCE", "DATABASE_BALANCE"})
+    public BankingManagerImpl.ExecutionMode mode;
+
+    private EmbeddedDataSource dataSource;
+    private AccountManager accountManager;
+    private BankingManager bankingManager;
+    private List<Account> stored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        dataSource = BenchmarkDatabase.create();
+        stored = BenchmarkDatabase.createAccounts(dataSource, accounts);
+        accountManager = new AccountManagerImpl(dataSource);
+        bankingManager = new BankingManagerImpl(dataSource, mode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDatabase.drop(dataSource);
+    }
+
+    private Payment randomPayment() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(stored.size());
+        int to = (from + 1 + random.nextInt(stored.size() - 1)) % stored.size();
+        return BenchmarkDatabase.newPayment(stored.get(from), stored.get(to));
+    }
+
+    @Benchmark
+    public Payment executePayment() {
+        Payment payment = randomPayment();
+        if (mode == BankingManagerImpl.ExecutionMode.CLIENT_BALANCE) {
+            // current balances are needed, the payment writes them back
+            payment.setFrom(accountManager.findAccountById(payment.getFrom().getId()));
+            payment.setTo(accountManager.findAccountById(payment.getTo().getId()));
+        }
+        bankingManager.executePayment(payment);
+        return payment;
+    }
+}
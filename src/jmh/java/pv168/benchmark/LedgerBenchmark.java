@@ -0,0 +1,96 @@
+package pv168.benchmark;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pv168.Account;
+import pv168.BankingManager;
+import pv168.BankingManagerImpl;
+import pv168.LedgerBankingManager;
+import pv168.Payment;
+import pv168.PaymentResult;
+
+/**
+ * Transfers per second of executePayments, batches of BATCH payments between
+ * random accounts, executed by the database or by the in-memory ledger.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LedgerBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"1000"})
+    public int accounts;
+
+    @Param({"DATABASE", "LEDGER"})
+    public String engine;
+
+    private EmbeddedDataSource dataSource;
+    private BankingManager bankingManager;
+    private Path journalDirectory;
+    private List<Account> stored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException, IOException {
+        dataSource = BenchmarkDatabase.create();
+        stored = BenchmarkDatabase.createAccounts(dataSource, accounts);
+        journalDirectory = Files.createTempDirectory("ledger-benchmark");
+        bankingManager = engine.equals("LEDGER")
+                ? new LedgerBankingManager(dataSource, journalDirectory.resolve("payments.journal"))
+                : new BankingManagerImpl(dataSource);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (bankingManager instanceof LedgerBankingManager) {
+            ((LedgerBankingManager) bankingManager).close();
+        }
+        BenchmarkDatabase.drop(dataSource);
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(journalDirectory)) {
+            for (Path segment : segments) {
+                Files.delete(segment);
+            }
+        }
+        Files.delete(journalDirectory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<PaymentResult> executePayments() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<Payment> payments = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            int from = random.nextInt(stored.size());
+            int to = (from + 1 + random.nextInt(stored.size() - 1)) % stored.size();
+            payments.add(Payment.newPayment(BigDecimal.ONE, stored.get(from), stored.get(to), null));
+        }
+        return bankingManager.executePayments(payments);
+    }
+}
@@ -0,0 +1,99 @@
+package pv168.benchmark;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pv168.Cents;
+
+/**
+ * Balance arithmetic of one batch of executePayments without the database,
+ * with BigDecimal balances in a map as before and with cents in arrays as
+ * BankingManagerImpl does now. Allocation per batch is reported by
+ *     mvn -P benchmark test-compile exec:exec -Djmh.args="-prof gc MoneyBenchmark"
+ * as gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MoneyBenchmark {
+
+    @Param({"1000"})
+    public int payments;
+
+    @Param({"10", "1000"})
+    public int accounts;
+
+    private long[] from;
+    private long[] to;
+    private BigDecimal[] amounts;
+    private BigDecimal[] balances;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        from = new long[payments];
+        to = new long[payments];
+        amounts = new BigDecimal[payments];
+        for (int i = 0; i < payments; i++) {
+            from[i] = random.nextInt(accounts);
+            to[i] = (from[i] + 1 + random.nextInt(accounts - 1)) % accounts;
+            amounts[i] = BigDecimal.valueOf(1 + random.nextInt(100000), 2);
+        }
+        balances = new BigDecimal[accounts];
+        Arrays.fill(balances, new BigDecimal("1000000.00"));
+    }
+
+    @Benchmark
+    public Map<Long, BigDecimal> bigDecimal() {
+        Map<Long, BigDecimal> current = new HashMap<>();
+        for (int i = 0; i < accounts; i++) {
+            current.put((long) i, balances[i]);
+        }
+        for (int i = 0; i < payments; i++) {
+            BigDecimal fromBalance = current.get(from[i]);
+            BigDecimal toBalance = current.get(to[i]);
+            if (fromBalance.compareTo(amounts[i]) >= 0) {
+                current.put(from[i], fromBalance.subtract(amounts[i]));
+                current.put(to[i], toBalance.add(amounts[i]));
+            }
+        }
+        return current;
+    }
+
+    @Benchmark
+    public long[] cents() {
+        long[] ids = new long[accounts];
+        long[] current = new long[accounts];
+        for (int i = 0; i < accounts; i++) {
+            ids[i] = i;
+            current[i] = Cents.of(balances[i]);
+        }
+        for (int i = 0; i < payments; i++) {
+            long amount = Cents.of(amounts[i]);
+            int fromIndex = Arrays.binarySearch(ids, from[i]);
+            int toIndex = Arrays.binarySearch(ids, to[i]);
+            if (current[fromIndex] >= amount) {
+                current[fromIndex] -= amount;
+                current[toIndex] += amount;
+            }
+        }
+        return current;
+    }
+}
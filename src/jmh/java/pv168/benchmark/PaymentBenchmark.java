@@ -0,0 +1,88 @@
+package pv168.benchmark;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pv168.Account;
+import pv168.BankingManager;
+import pv168.BankingManagerImpl;
+import pv168.Payment;
+import pv168.PaymentManager;
+import pv168.PaymentManagerImpl;
+
+/**
+ * Reading of stored payments with their accounts, parameterized by number of
+ * stored payments. Payments are spread over 100 accounts, so every account
+ * has about payments / 50 incoming and outgoing payments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaymentBenchmark {
+
+    private static final int ACCOUNTS = 100;
+
+    @Param({"1000", "50000"})
+    public int payments;
+
+    private EmbeddedDataSource dataSource;
+    private PaymentManager paymentManager;
+    private BankingManager bankingManager;
+    private List<Account> stored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        dataSource = BenchmarkDatabase.create();
+        stored = BenchmarkDatabase.createAccounts(dataSource, ACCOUNTS);
+        BenchmarkDatabase.createPayments(dataSource, stored, payments);
+        paymentManager = new PaymentManagerImpl(dataSource);
+        bankingManager = new BankingManagerImpl(dataSource);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDatabase.drop(dataSource);
+    }
+
+    private Account randomAccount() {
+        return stored.get(ThreadLocalRandom.current().nextInt(stored.size()));
+    }
+
+    @Benchmark
+    public List<Payment> findAllPayments() {
+        return paymentManager.findAllPayments();
+    }
+
+    @Benchmark
+    public List<Payment> findPaymentsPage() {
+        return paymentManager.findPayments(null, payments / 2, 100);
+    }
+
+    @Benchmark
+    public List<Payment> findIncomingPaymentsToAccount() {
+        return bankingManager.findAllIncomingPaymentsToAccount(randomAccount());
+    }
+
+    @Benchmark
+    public List<Payment> findOutgoingPaymentsToAccount() {
+        return bankingManager.findOutgoingPaymentsToAccount(randomAccount());
+    }
+}
@@ -1,13 +1,18 @@
 package GUI2;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import javax.swing.AbstractListModel;
 import javax.swing.ComboBoxModel;
 import javax.swing.SwingWorker;
 import pv168.Account;
 import pv168.AccountManager;
+import pv168.ChangeLog;
 
 /**
  *
@@ -18,6 +23,7 @@ public class AccountComboBoxModel extends AbstractListModel implements ComboBoxM
     private class ReadAllSwingWorker extends SwingWorker <List<Account>, Void> {
 
         private final AccountManager innerManager;
+        private volatile long readVersion;
         
         public ReadAllSwingWorker(AccountManager m){
             innerManager = m;
@@ -27,13 +33,16 @@ public class AccountComboBoxModel extends AbstractListModel implements ComboBoxM
         
         @Override
         protected List<Account> doInBackground() throws Exception {
+            readVersion = innerManager.getChangeVersion();
             return innerManager.findAllAccounts();
         }
         
         @Override    
         protected void done() {
+            worker = null;
             try {
                 accounts = get(); 
+                version = readVersion;
                 
                 if(!accounts.contains(selected)){
                 selected = null;
@@ -45,7 +54,65 @@ public class AccountComboBoxModel extends AbstractListModel implements ComboBoxM
             } catch (InterruptedException | ExecutionException ex) {
 //                Logovani chyb
             }
+            refreshAgainIfRequested();
+        }
+    
+    }
+    
+    private class ChangesSwingWorker extends SwingWorker <Map<Long, Account>, Void> {
 
+        private final AccountManager innerManager;
+        private final long sinceVersion;
+        private volatile long changesVersion;
+        
+        public ChangesSwingWorker(AccountManager m, long version){
+            innerManager = m;
+            sinceVersion = version;
+        }
+        
+        /**
+         * @return changed accounts by id, deleted ones map to null, null if
+         * all accounts must be read again
+         */
+        @Override
+        protected Map<Long, Account> doInBackground() throws Exception {
+            changesVersion = innerManager.getChangeVersion();
+            List<ChangeLog.Change> changes = innerManager.findAccountChangesSince(sinceVersion);
+            if(changes == null){
+                return null;
+            }
+            
+            Set<Long> ids = new LinkedHashSet<>();
+            for(ChangeLog.Change change : changes){
+                if(change.getVersion() <= changesVersion){
+                    ids.add(change.getId());
+                }
+            }
+            
+            Map<Long, Account> changed = new HashMap<>();
+            for(Long id : ids){
+                changed.put(id, innerManager.findAccountById(id));
+            }
+            return changed;
+        }
+        
+        @Override    
+        protected void done() {
+            worker = null;
+            try {
+                Map<Long, Account> changed = get();
+                if(changed == null){
+                    refreshAll();
+                    return;
+                }
+                for(Map.Entry<Long, Account> entry : changed.entrySet()){
+                    applyChange(entry.getKey(), entry.getValue());
+                }
+                version = changesVersion;
+            } catch (InterruptedException | ExecutionException ex) {
+//                Logovani chyb
+            }
+            refreshAgainIfRequested();
         }
     
     }
@@ -58,14 +125,15 @@ public class AccountComboBoxModel extends AbstractListModel implements ComboBoxM
     
     public AccountComboBoxModel(AccountManager m){
         manager = m;         
-        worker = new ReadAllSwingWorker(manager);
-        worker.execute();
+        refreshAll();
     }
     
-    private ReadAllSwingWorker worker;
+    private SwingWorker<?, Void> worker;
     private List<Account> accounts = new ArrayList<>();
     private Account selected = null;
     private final AccountManager manager;
+    private long version = -1;
+    private boolean refreshAgain = false;
     
     
     
@@ -89,9 +157,63 @@ public class AccountComboBoxModel extends AbstractListModel implements ComboBoxM
         return selected;
     }
     
+    /**
+     * Reads only accounts changed since the last refresh.
+     */
     public void refresh(){        
+        if(worker != null){
+            refreshAgain = true;
+            return;
+        }
+        if(version < 0){
+            refreshAll();
+            return;
+        }
+        worker = new ChangesSwingWorker(manager, version);
+        if(!BackgroundWork.start(BackgroundWork.INTERACTIVE, worker)){
+            worker = null;
+        }       
+    }
+    
+    private void refreshAll(){
         worker = new ReadAllSwingWorker(manager);
-        worker.execute();       
+        if(!BackgroundWork.start(BackgroundWork.BULK, worker)){
+            worker = null;
+        }
+    }
+    
+    private void refreshAgainIfRequested(){
+        if(refreshAgain){
+            refreshAgain = false;
+            refresh();
+        }
+    }
+    
+    private void applyChange(Long id, Account account){
+        int index = -1;
+        for(int i = 0; i < accounts.size(); i++){
+            if(id.equals(accounts.get(i).getId())){
+                index = i;
+                break;
+            }
+        }
+        
+        if(selected != null && id.equals(selected.getId())){
+            selected = account;
+        }
+        
+        if(account == null){
+            if(index >= 0){
+                accounts.remove(index);
+                fireIntervalRemoved(this, index, index);
+            }
+        } else if(index >= 0){
+            accounts.set(index, account);
+            fireContentsChanged(this, index, index);
+        } else {
+            accounts.add(account);
+            fireIntervalAdded(this, accounts.size() - 1, accounts.size() - 1);
+        }
     }
     
 }
@@ -1,169 +1,71 @@
 package GUI2;
 
 import java.math.BigDecimal;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
-import java.util.concurrent.ExecutionException;
-import javax.swing.SwingWorker;
-import javax.swing.table.AbstractTableModel;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import pv168.Account;
 import static pv168.Account.newAccount;
 import pv168.AccountManager;
+import pv168.AsyncAccountManager;
+import pv168.ChangeLog;
 
 /**
  *
  * @author Vašek & Vítek
  */
-public class AccountTableModel extends AbstractTableModel {
+public class AccountTableModel extends WindowedTableModel<Account> {
     private static final ResourceBundle bundle = ResourceBundle.getBundle("Bundle", Locale.getDefault());
     
     
-    private class ReadAllSwingWorker extends SwingWorker <List<Account>, Void>{
-
-        private final AccountManager innerManager;
-        
-        public ReadAllSwingWorker(AccountManager manager){
-            innerManager = manager;
-        }
-        
-        
-        @Override
-        protected List<Account> doInBackground() throws Exception {
-            return innerManager.findAllAccounts();
-        }
-
-        @Override
-        protected void done() {
-            try {
-                accounts = get();
-                fireTableDataChanged();
-            } catch (InterruptedException | ExecutionException ex) {
-//      Logovani chyb
-            }
-        }
-   
-    }
-    
-    private class AddSwingWorker extends SwingWorker <Void, Void> {
-
-        private final AccountManager innerManager;
-        private final Account toAdd;
-        
-        public AddSwingWorker(AccountManager manager, Account a){
-            innerManager = manager;
-            toAdd = a;
-        }
-        
-        @Override
-        protected Void doInBackground() throws Exception {
-            innerManager.createAccount(toAdd);
-            return null;
-        }
-
-        @Override
-        protected void done() {
-            accounts.add(toAdd);       
-            int lastRow = accounts.size() - 1;
-            MainFrame.getInstance().refreshComboBoxAccountModels();
-            fireTableRowsInserted(lastRow, lastRow);  
-        }     
+    private final AccountManager manager;
+    private final AsyncAccountManager asyncManager;
     
-    }
     
-    private class DeleteSwingWorker extends SwingWorker <Void, Void>{
-
-        private final AccountManager innerManager;
-        private final Account toDelete;
-        private final int rowIndex;
-        
-        public DeleteSwingWorker(AccountManager manager, int row){
-            innerManager = manager;
-            rowIndex = row;
-            toDelete = accounts.get(row);
-        }
-        
-        @Override
-        protected Void doInBackground() throws Exception {
-            innerManager.deleteAccount(toDelete);
-            return null;
-        }
-
-        @Override
-        protected void done() {
-            accounts.remove(rowIndex);
-            MainFrame.getInstance().refreshComboBoxAccountModels();
-            fireTableRowsDeleted(rowIndex, rowIndex);   
-        }
-        
+    public AccountTableModel(AccountManager m, AsyncAccountManager async){
         
+    manager = m;
+    asyncManager = async;
     
+    m.createAccount(newAccount("Pepa", new BigDecimal(500)));
+    m.createAccount(newAccount("Ondra", new BigDecimal(0)));
     
+    refreshTable();
     }
+       
     
-    private class UpdateSwingWorker extends SwingWorker <Void, Void> {
-
-        private final AccountManager innerManager;
-        private final Account toUpdate;
-        private final int rowIndex;
-        private final int columnIndex;
-        
-        public UpdateSwingWorker(AccountManager manager, int row, int column){
-            innerManager = manager;
-            toUpdate = accounts.get(row);
-            rowIndex = row;
-            columnIndex = column;
-        }
-        
-        
-        @Override
-        protected Void doInBackground() throws Exception {
-            innerManager.updateAccount(toUpdate);
-            return null;
-        }
-
-        @Override
-        protected void done() {
-            MainFrame.getInstance().refreshComboBoxAccountModels();
-            fireTableCellUpdated(rowIndex, columnIndex);
-        }
-    
-    
-    
-    
+//------------------------------------------------------------------------------
     
+    @Override
+    protected List<Account> loadPage(Long afterId, int skip, int limit) {
+        return manager.findAccounts(afterId, skip, limit);
     }
     
-      
-    
-    
-    private ReadAllSwingWorker readWorker;
-    private AddSwingWorker addWorker;
-    private DeleteSwingWorker deleteWorker;
-    private UpdateSwingWorker updateWorker;
-    
-    private List<Account> accounts = new ArrayList<>();
-    private final AccountManager manager;
-    
-    
-    public AccountTableModel(AccountManager m){
-        
-    manager = m;
+    @Override
+    protected int count() {
+        return manager.countAccounts();
+    }
     
-    m.createAccount(newAccount("Pepa", new BigDecimal(500)));
-    m.createAccount(newAccount("Ondra", new BigDecimal(0)));
+    @Override
+    protected Long idOf(Account row) {
+        return row.getId();
+    }
     
-    readWorker = new ReadAllSwingWorker(manager);
-    readWorker.execute();
+    @Override
+    protected Account findById(Long id) {
+        return manager.findAccountById(id);
     }
-       
     
-//------------------------------------------------------------------------------
+    @Override
+    protected long changeVersion() {
+        return manager.getChangeVersion();
+    }
     
     @Override
-    public int getRowCount(){
-        return accounts.size();
+    protected List<ChangeLog.Change> changesSince(long version) {
+        return manager.findAccountChangesSince(version);
     }
     
     @Override
@@ -173,7 +75,11 @@ public class AccountTableModel extends AbstractTableModel {
     
     @Override
     public Object getValueAt(int rowIndex, int columnIndex){
-        Account a = accounts.get(rowIndex);
+        Account a = getRow(rowIndex);
+        
+        if(a == null){
+            return null;
+        }
         
         switch(columnIndex){
             case 0 :
@@ -218,7 +124,11 @@ public class AccountTableModel extends AbstractTableModel {
     
     @Override
     public void setValueAt(Object value, int rowIndex, int columnIndex){
-        Account a = accounts.get(rowIndex);
+        Account a = getRow(rowIndex);
+        
+        if(a == null){
+            return;
+        }
         
         switch(columnIndex){
             case 0 : 
@@ -235,12 +145,23 @@ public class AccountTableModel extends AbstractTableModel {
                 
         }
       
-        updateWorker = new UpdateSwingWorker(manager, rowIndex, columnIndex);
-        updateWorker.execute(); 
+        asyncManager.updateAccount(a).whenCompleteAsync((result, ex) -> {
+            if (ex != null) {
+                JOptionPane.showMessageDialog(MainFrame.getInstance(), ex.getMessage());
+                reloadRow(a);
+                return;
+            }
+            MainFrame.getInstance().refreshComboBoxAccountModels();
+            fireTableCellUpdated(rowIndex, columnIndex);
+        }, SwingUtilities::invokeLater);
     }
      
     @Override
     public boolean isCellEditable(int rowIndex, int columnIndex){
+        if(getRow(rowIndex) == null){
+            return false;
+        }
+        
         switch(columnIndex){
             case 0 :
                 return false;
@@ -256,23 +177,41 @@ public class AccountTableModel extends AbstractTableModel {
 //------------------------------------------------------------------------------
     
     public void deleteRow(int rowIndex){
-        deleteWorker = new DeleteSwingWorker(manager, rowIndex);
-        deleteWorker.execute();
+        Account a = getRow(rowIndex);
+        
+        if(a == null){
+            return;
+        }
+        
+        asyncManager.deleteAccount(a).whenCompleteAsync((result, ex) -> {
+            if (ex != null) {
+                JOptionPane.showMessageDialog(MainFrame.getInstance(), ex.getMessage());
+                reloadRow(a);
+                return;
+            }
+            refreshAfterChange();
+        }, SwingUtilities::invokeLater);
     }    
     
     public void addRow(Account a){      
       
-        addWorker = new AddSwingWorker(manager, a);
-        addWorker.execute();
+        asyncManager.createAccount(a).whenCompleteAsync((result, ex) -> {
+            if (ex != null) {
+                JOptionPane.showMessageDialog(MainFrame.getInstance(), ex.getMessage());
+                return;
+            }
+            refreshAfterChange();
+        }, SwingUtilities::invokeLater);
        
     }
     
-    public void refreshTable(){
-        readWorker = new ReadAllSwingWorker(manager);
-        readWorker.execute();        
+    private void refreshAfterChange(){
+        MainFrame.getInstance().refreshComboBoxAccountModels();
+        refreshChanges();
     }
     
     
     
     
+    
 }
@@ -0,0 +1,40 @@
+package GUI2;
+
+import java.util.concurrent.RejectedExecutionException;
+import javax.swing.SwingWorker;
+import pv168.ManagerExecutor;
+
+/**
+ * Executors of SwingWorkers of the models. SwingWorker.execute() runs all
+ * workers in one shared pool of 10 threads, so a slow read of all rows
+ * delays loading of the rows the user is looking at. Workers are therefore
+ * run by executors sized for their kind of work instead:
+ *
+ *     INTERACTIVE  pages of tables and changed rows, short reads the user waits for
+ *     BULK         counts of rows and reads of all accounts, which may be slow
+ *
+ * Virtual threads are used where the JVM has them, see ManagerExecutor.
+ * A full executor rejects workers instead of blocking the event dispatch
+ * thread, the models load the rows again when they are asked for them.
+ */
+final class BackgroundWork {
+
+    static final ManagerExecutor INTERACTIVE = new ManagerExecutor(4, 1000);
+    static final ManagerExecutor BULK = new ManagerExecutor(2, 1000);
+
+    private BackgroundWork() {
+    }
+
+    /**
+     * @return
+     * Returns false if the executor is full, so the worker does not run.
+     */
+    static boolean start(ManagerExecutor executor, SwingWorker<?, ?> worker) {
+        try {
+            executor.execute(worker);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+}
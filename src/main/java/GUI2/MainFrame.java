@@ -5,12 +5,10 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.math.BigDecimal;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
 import java.util.Locale;
 import java.util.Properties;
 import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
@@ -27,11 +25,23 @@ import pv168.Account;
 import static pv168.Account.newAccount;
 import pv168.AccountManager;
 import pv168.AccountManagerImpl;
+import pv168.AsyncAccountManager;
+import pv168.AsyncBankingManager;
+import pv168.AsyncPaymentManager;
+import pv168.BalanceCheckpoints;
 import pv168.BankingManager;
 import pv168.BankingManagerImpl;
+import pv168.CachingAccountManager;
+import pv168.InstrumentedDataSource;
+import pv168.ManagerExecutor;
+import pv168.ManagerMetrics;
+import pv168.MetricsReporter;
 import pv168.Payment;
 import pv168.PaymentManager;
 import pv168.PaymentManagerImpl;
+import pv168.PoolConfiguration;
+import pv168.PoolMetrics;
+import pv168.SchemaMigration;
 import pv168.ServiceFailureException;
 
 
@@ -45,6 +55,18 @@ public class MainFrame extends javax.swing.JFrame {
     private AccountManager accountManager;
     private PaymentManager paymentManager;
     private BankingManager bankingManager;
+    private ManagerExecutor managerExecutor;
+    private AsyncAccountManager asyncAccountManager;
+    private AsyncPaymentManager asyncPaymentManager;
+    private AsyncBankingManager asyncBankingManager;
+    private int maxConnections;
+    private MetricsReporter metricsReporter;
+    private BalanceCheckpoints balanceCheckpoints;
+    private PoolMetrics poolMetrics;
+    private Properties configuration;
+
+    // calls of the GUI waiting for a connection, further calls are rejected
+    private static final int MAX_QUEUED_CALLS = 1000;
 
     private static final ResourceBundle bundle = ResourceBundle.getBundle("Bundle", Locale.getDefault());
     private static MainFrame INSTANCE;
@@ -63,7 +85,7 @@ public class MainFrame extends javax.swing.JFrame {
 
         try {
             setUpDatabase();
-        } catch (SQLException ex) {
+        } catch (ServiceFailureException ex) {
             System.out.println(ex.getMessage());
             System.exit(0);
         } catch (IOException ex) {
@@ -100,54 +122,39 @@ public class MainFrame extends javax.swing.JFrame {
 
     }
 
-    private void setUpDatabase() throws SQLException, IOException {
-        src = prepareDataSource();
-        try (Connection connection = src.getConnection();
-                PreparedStatement prepStatementAccounts = connection.prepareStatement("CREATE TABLE account ("
-                        + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
-                        + "owner VARCHAR(200) ,"
-                        + "balance DECIMAL(17,2))");) {
-            prepStatementAccounts.executeUpdate();
-        }
-
-        try (Connection connection = src.getConnection();
-                PreparedStatement prepStatementPayments = connection.prepareStatement("CREATE TABLE payment ("
-                        + "id BIGINT NOT NULL primary key generated always as identity, "
-                        + "amount DECIMAL(17,2), "
-                        + "fromAcc BIGINT NOT NULL, "
-                        + "toAcc BIGINT NOT NULL, "
-                        + "FOREIGN KEY (fromAcc) REFERENCES account (id),"
-                        + "FOREIGN KEY (toAcc) REFERENCES account (id),"
-                        + "dateSent TIMESTAMP )")) {
-            prepStatementPayments.executeUpdate();
-        }
-
-        accountManager = new AccountManagerImpl(src);
-        paymentManager = new PaymentManagerImpl(src);
-        bankingManager = new BankingManagerImpl(src);
+    private void setUpDatabase() throws IOException {
+        InstrumentedDataSource instrumented = prepareDataSource();
+        src = instrumented;
+        SchemaMigration.migrate(src);
+
+        accountManager = ManagerMetrics.instrument(AccountManager.class, new CachingAccountManager(new AccountManagerImpl(src)));
+        paymentManager = ManagerMetrics.instrument(PaymentManager.class, new PaymentManagerImpl(src));
+        bankingManager = ManagerMetrics.instrument(BankingManager.class, new BankingManagerImpl(src));
+        managerExecutor = new ManagerExecutor(maxConnections, MAX_QUEUED_CALLS);
+        asyncAccountManager = managerExecutor.accountManager(accountManager);
+        asyncPaymentManager = managerExecutor.paymentManager(paymentManager);
+        asyncBankingManager = managerExecutor.bankingManager(bankingManager);
+        metricsReporter = MetricsReporter.start(1, TimeUnit.MINUTES, instrumented, poolMetrics);
+        balanceCheckpoints = BalanceCheckpoints.start(src,
+                Long.parseLong(configuration.getProperty("checkpoint.periodMinutes", "60")), TimeUnit.MINUTES);
 
     }
 
-    public DataSource prepareDataSource() throws IOException {
+    public InstrumentedDataSource prepareDataSource() throws IOException {
         Properties p =  new Properties();
         p.load(this.getClass().getResourceAsStream("/databaseConfiguration.properties"));
+        configuration = p;
  
-        BasicDataSource bds = new BasicDataSource(); 
-        bds.setDriverClassName(p.getProperty("jdbc.driver"));
-        bds.setUrl(p.getProperty("jdbc.url"));
-        bds.setUsername(p.getProperty("jdbc.user"));
-        bds.setPassword(p.getProperty("jdbc.password"));
-        return bds;
+        BasicDataSource bds = PoolConfiguration.createPool(p);
+        maxConnections = bds.getMaxActive() > 0 ? bds.getMaxActive() : Runtime.getRuntime().availableProcessors();
+        if (PoolConfiguration.isEmbedded(p)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(PoolConfiguration::shutdownEmbedded));
+        }
+        InstrumentedDataSource ds = new InstrumentedDataSource(bds, Long.parseLong(p.getProperty("jdbc.slowQueryMillis", "100")));
+        poolMetrics = new PoolMetrics(ds, bds).register("project");
+        return ds;
     }
-    
-    
-    
-//    private DataSource prepareDataSource() throws SQLException {
-//        EmbeddedDataSource ds = new EmbeddedDataSource();
-//        ds.setDatabaseName("memory:account-test");
-//        ds.setCreateDatabase("create");
-//        return ds;
-//    }
+
 
 //------------------------------------------------------------------------------
     public void refreshComboBoxAccountModels() {
@@ -160,7 +167,7 @@ public class MainFrame extends javax.swing.JFrame {
 
     public void refreshAccountTable() {
         AccountTableModel model = (AccountTableModel) jTableAccounts.getModel();
-        model.refreshTable();
+        model.refreshChanges();
     }
 
     public void refreshPaymentTable() {
@@ -221,7 +228,7 @@ public class MainFrame extends javax.swing.JFrame {
 
         jTabbedPane1.setToolTipText("");
 
-        jTableAccounts.setModel(new AccountTableModel(accountManager));
+        jTableAccounts.setModel(new AccountTableModel(accountManager, asyncAccountManager));
         jTableAccounts.addPropertyChangeListener(new java.beans.PropertyChangeListener() {
             public void propertyChange(java.beans.PropertyChangeEvent evt) {
                 jTableAccountsPropertyChange(evt);
@@ -298,7 +305,7 @@ public class MainFrame extends javax.swing.JFrame {
 
         jTabbedPane1.addTab(bundle.getString("ACCOUNTS.TAB"), jPanel1); // NOI18N
 
-        jTablePayments.setModel(new PaymentTableModel(paymentManager, bankingManager));
+        jTablePayments.setModel(new PaymentTableModel(paymentManager, asyncPaymentManager, asyncBankingManager));
         jScrollPane2.setViewportView(jTablePayments);
         jTablePayments.setDefaultRenderer(Object.class, new TableCellRenderer());
 
@@ -502,6 +509,9 @@ public class MainFrame extends javax.swing.JFrame {
     }//GEN-LAST:event_jTableAccountsPropertyChange
 
     private void jMenuItemExitActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jMenuItemExitActionPerformed
+        metricsReporter.close();
+        balanceCheckpoints.close();
+        managerExecutor.close();
         System.exit(0);
     }//GEN-LAST:event_jMenuItemExitActionPerformed
 
@@ -538,6 +548,11 @@ public class MainFrame extends javax.swing.JFrame {
         //</editor-fold>
         //</editor-fold>
 
+        /* Logging is asynchronous and buffered, write the rest of it on exit */
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            ((ch.qos.logback.classic.LoggerContext) org.slf4j.LoggerFactory.getILoggerFactory()).stop();
+        }));
+
         /* Create and display the form */
         java.awt.EventQueue.invokeLater(() -> {
             MainFrame.getInstance().setVisible(true);
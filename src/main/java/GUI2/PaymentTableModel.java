@@ -1,17 +1,16 @@
 package GUI2;
 
 import java.math.BigDecimal;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
-import java.util.concurrent.ExecutionException;
 import javax.swing.JOptionPane;
-import javax.swing.SwingWorker;
-import javax.swing.table.AbstractTableModel;
+import javax.swing.SwingUtilities;
 import pv168.Account;
-import pv168.BankingManager;
+import pv168.AsyncBankingManager;
+import pv168.AsyncPaymentManager;
+import pv168.ChangeLog;
 import pv168.Payment;
 import pv168.PaymentManager;
 
@@ -19,162 +18,51 @@ import pv168.PaymentManager;
  *
  * @author Vašek & Vítek
  */
-public class PaymentTableModel extends AbstractTableModel {
+public class PaymentTableModel extends WindowedTableModel<Payment> {
     private static final ResourceBundle bundle = ResourceBundle.getBundle("Bundle", Locale.getDefault());
 
-    private class ReadAllSwingWorker extends SwingWorker <List<Payment>, Void>{
-
-        
-        private final PaymentManager innerManager;
-        
-        public ReadAllSwingWorker(PaymentManager p){
-            innerManager = p;
-        }
-
-        @Override
-        protected List<Payment> doInBackground() throws Exception {
-            return innerManager.findAllPayments();
-        }
-
-        @Override
-        protected void done() {
-            try {
-                payments = get();
-                fireTableDataChanged();
-            } catch (InterruptedException | ExecutionException ex) {
-//                Logovani chyb
-            }
-        }
-           
-    }
-    
-    private class DeleteSwingWorker extends SwingWorker <Void, Void> {
-
-        private final PaymentManager innerManager;
-        private final Payment toDelete;
-        private final int rowIndex;
-        
-        public DeleteSwingWorker(PaymentManager manager, int row){
-            
-            innerManager = manager;
-            toDelete = payments.get(row) ;
-            rowIndex = row;
-        }
-       
-        @Override
-        protected Void doInBackground() throws Exception {
-            innerManager.deletePayment(toDelete);
-            return null;          
-        }
-
-        @Override
-        protected void done() {
-            payments.remove(rowIndex);       
-            fireTableRowsDeleted(rowIndex, rowIndex);           
-        }
-        
-        
-   
-   
-   
-    }
+    private final PaymentManager pManager;
+    private final AsyncPaymentManager asyncPManager;
+    private final AsyncBankingManager asyncBManager;
     
-    private class UpdateSwingWorker extends SwingWorker <Void, Void> {
-
-        private final PaymentManager innerManager;
-        private final Payment toUpdate;
-        private final int rowIndex;
-        private final int columnIndex;
-        
-        public UpdateSwingWorker(PaymentManager manager, Payment p, int row, int column){
-            innerManager = manager;
-            toUpdate = p;
-            rowIndex = row;
-            columnIndex = column;
-        }
-        
-        
-        
-        @Override
-        protected Void doInBackground() throws Exception {
-            innerManager.updatePayment(toUpdate);
-            return null;
-        }
-
-        @Override
-        protected void done() {
-            fireTableCellUpdated(rowIndex, columnIndex);
-        }
+    PaymentTableModel(PaymentManager p, AsyncPaymentManager asyncP, AsyncBankingManager asyncB){
     
+    pManager = p;
+    asyncPManager = asyncP;
+    asyncBManager = asyncB; 
     
+    refreshTable();
     
     }
     
-    private class ExecutePaymentSwingWorker extends SwingWorker <Void, Void> {
+    @Override
+    protected List<Payment> loadPage(Long afterId, int skip, int limit) {
+        return pManager.findPayments(afterId, skip, limit);
+    }
 
-        private final BankingManager innerManager;
-        private final Payment toExecute;
-        
-        public ExecutePaymentSwingWorker(BankingManager manager, Payment p){
-            innerManager = manager;
-            toExecute = p;
-        }
-        
-        @Override
-        protected Void doInBackground() throws Exception {
-            innerManager.executePayment(toExecute);      
-            return null;
-        }
-        
-        @Override
-        protected void done() {
-            
-            try {
-                get();
-                
-                payments.add(toExecute);
-                int lastRow = payments.size()-1;
-                MainFrame.getInstance().refreshAccountTable();            
-                fireTableRowsInserted(lastRow, lastRow);
-            } catch (InterruptedException ex) {
-//   Logovani chyb
-            } catch (ExecutionException ex) {
-                JOptionPane.showMessageDialog(MainFrame.getInstance(), ex.getCause().getMessage());
-            }
-        }       
-    
-    
+    @Override
+    protected int count() {
+        return pManager.countPayments();
     }
-    
-//----------------------------------------------------------------------------//    
-//End of workers section    
-//----------------------------------------------------------------------------//    
-    
-    
-    
-    
-    private ReadAllSwingWorker readWorker;
-    private DeleteSwingWorker deleteWorker;
-    private UpdateSwingWorker updateWorker;
-    private ExecutePaymentSwingWorker executeWorker;
-    
-    private List <Payment> payments = new ArrayList<>();
-    private final PaymentManager pManager;
-    private final BankingManager bManager;
-    
-    PaymentTableModel(PaymentManager p, BankingManager b){
-    
-    pManager = p;
-    bManager = b; 
-    
-    readWorker = new ReadAllSwingWorker(pManager);
-    readWorker.execute();
-    
+
+    @Override
+    protected Long idOf(Payment row) {
+        return row.getId();
     }
-    
+
     @Override
-    public int getRowCount() {
-        return payments.size();
+    protected Payment findById(Long id) {
+        return pManager.findPaymentById(id);
+    }
+
+    @Override
+    protected long changeVersion() {
+        return pManager.getChangeVersion();
+    }
+
+    @Override
+    protected List<ChangeLog.Change> changesSince(long version) {
+        return pManager.findPaymentChangesSince(version);
     }
 
     @Override
@@ -184,7 +72,11 @@ public class PaymentTableModel extends AbstractTableModel {
 
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
-        Payment p = payments.get(rowIndex);
+        Payment p = getRow(rowIndex);
+        
+        if(p == null){
+            return null;
+        }
         
         switch(columnIndex){
             case 0 :
@@ -240,7 +132,11 @@ public class PaymentTableModel extends AbstractTableModel {
     
     @Override
     public void setValueAt(Object value, int rowIndex, int columnIndex){
-        Payment p = payments.get(rowIndex);
+        Payment p = getRow(rowIndex);
+        
+        if(p == null){
+            return;
+        }
         
         switch(columnIndex){
             case 0 :
@@ -262,13 +158,23 @@ public class PaymentTableModel extends AbstractTableModel {
                 throw new IndexOutOfBoundsException();
         }
        
-        updateWorker = new UpdateSwingWorker(pManager, p, rowIndex, columnIndex);
-        updateWorker.execute();
+        asyncPManager.updatePayment(p).whenCompleteAsync((result, ex) -> {
+            if (ex != null) {
+                JOptionPane.showMessageDialog(MainFrame.getInstance(), ex.getMessage());
+                reloadRow(p);
+                return;
+            }
+            fireTableCellUpdated(rowIndex, columnIndex);
+        }, SwingUtilities::invokeLater);
     
     }
     
     @Override
     public boolean isCellEditable(int rowIndex, int columnIndex){
+        if(getRow(rowIndex) == null){
+            return false;
+        }
+        
         switch(columnIndex){
             case 0 :
             case 1 :
@@ -285,19 +191,30 @@ public class PaymentTableModel extends AbstractTableModel {
 //------------------------------------------------------------------------------
     
     public void deleteRow(int rowIndex){
-        Payment p = payments.get(rowIndex); 
+        Payment p = getRow(rowIndex); 
+        
+        if(p == null){
+            return;
+        }
         
-        deleteWorker = new DeleteSwingWorker(pManager, rowIndex);
-        deleteWorker.execute();  
+        asyncPManager.deletePayment(p).whenCompleteAsync((result, ex) -> {
+            if (ex != null) {
+                JOptionPane.showMessageDialog(MainFrame.getInstance(), ex.getMessage());
+                reloadRow(p);
+                return;
+            }
+            refreshTable();
+        }, SwingUtilities::invokeLater);
     }    
     
     public void addRow(Payment p){      
-        executeWorker = new ExecutePaymentSwingWorker(bManager, p);
-        executeWorker.execute();       
-    }
-    
-    public void refreshTable(){
-        readWorker = new ReadAllSwingWorker(pManager);
-        readWorker.execute();
+        asyncBManager.executePayment(p).whenCompleteAsync((result, ex) -> {
+            if (ex != null) {
+                JOptionPane.showMessageDialog(MainFrame.getInstance(), ex.getMessage());
+                return;
+            }
+            MainFrame.getInstance().refreshAccountTable();
+            refreshChanges();
+        }, SwingUtilities::invokeLater);
     }
 }
@@ -0,0 +1,447 @@
+package GUI2;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import javax.swing.SwingWorker;
+import javax.swing.table.AbstractTableModel;
+import pv168.ChangeLog;
+
+/**
+ * Table model which keeps only a window of rows in memory. Rows are loaded
+ * in pages ordered by id when the table asks for them, pages around the
+ * requested row are prefetched and at most MAX_PAGES pages are cached, the
+ * least recently used page is evicted first. Rows which are not loaded yet
+ * are shown as empty cells and are not editable.
+ *
+ * Changes made after the window was loaded can be applied by
+ * refreshChanges(), which reloads only changed rows and fires row events.
+ * Deleted rows and rows created with ids smaller than the loaded ones shift
+ * indexes of all following rows, so they cause full refreshTable().
+ *
+ * Workers run in executors of BackgroundWork. refreshTable() cancels all
+ * workers started for the previous window, the ones which did not start yet
+ * never run. Running ones are not interrupted, Derby may close a connection
+ * of an interrupted thread, their results are dropped.
+ *
+ * All state of the model is accessed only from the event dispatch thread.
+ */
+public abstract class WindowedTableModel<T> extends AbstractTableModel {
+
+    static final int PAGE_SIZE = 100;
+    static final int PREFETCH_ROWS = 30;
+    static final int MAX_PAGES = 20;
+
+    private class CountSwingWorker extends SwingWorker <Integer, Void> {
+
+        private final int workerGeneration;
+        private volatile long countVersion;
+
+        public CountSwingWorker(int generation) {
+            workerGeneration = generation;
+        }
+
+        @Override
+        protected Integer doInBackground() throws Exception {
+            countVersion = changeVersion();
+            return count();
+        }
+
+        @Override
+        protected void done() {
+            if (countWorker == this) {
+                countWorker = null;
+            }
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                int count = get();
+                if (workerGeneration == generation) {
+                    rowCount = count;
+                    version = countVersion;
+                    fireTableDataChanged();
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+//                Logovani chyb
+            }
+        }
+
+    }
+
+    private class PageSwingWorker extends SwingWorker <List<T>, Void> {
+
+        private final int workerGeneration;
+        private final int page;
+        private final Long afterId;
+        private final int skip;
+
+        public PageSwingWorker(int generation, int page, Long afterId, int skip) {
+            workerGeneration = generation;
+            this.page = page;
+            this.afterId = afterId;
+            this.skip = skip;
+        }
+
+        @Override
+        protected List<T> doInBackground() throws Exception {
+            return loadPage(afterId, skip, PAGE_SIZE);
+        }
+
+        @Override
+        protected void done() {
+            if (workerGeneration != generation || isCancelled()) {
+                return;
+            }
+            loading.remove(page);
+            try {
+                List<T> rows = get();
+                pages.put(page, rows);
+                if (!rows.isEmpty()) {
+                    lastIds.put(page, idOf(rows.get(rows.size() - 1)));
+                }
+                int first = page * PAGE_SIZE;
+                int last = Math.min(first + PAGE_SIZE, rowCount) - 1;
+                if (first <= last) {
+                    fireTableRowsUpdated(first, last);
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+//                Logovani chyb
+            }
+        }
+
+    }
+
+    private class ChangesSwingWorker extends SwingWorker <Map<Long, T>, Void> {
+
+        private final int workerGeneration;
+        private final long sinceVersion;
+        private volatile long changesVersion;
+        // count of rows read after the changes, -1 if no row was created
+        private volatile int createdCount = -1;
+        // the smallest id of created rows
+        private volatile long minCreatedId;
+
+        public ChangesSwingWorker(int generation, long version) {
+            workerGeneration = generation;
+            sinceVersion = version;
+        }
+
+        /**
+         * @return updated rows by id, null if the whole window must be reloaded
+         */
+        @Override
+        protected Map<Long, T> doInBackground() throws Exception {
+            changesVersion = changeVersion();
+            List<ChangeLog.Change> changes = changesSince(sinceVersion);
+            if (changes == null) {
+                return null;
+            }
+
+            Set<Long> createdIds = new HashSet<>();
+            Set<Long> updatedIds = new HashSet<>();
+            for (ChangeLog.Change change : changes) {
+                if (change.getVersion() > changesVersion) {
+                    break;
+                }
+                switch (change.getKind()) {
+                    case CREATED:
+                        createdIds.add(change.getId());
+                        break;
+                    case UPDATED:
+                        updatedIds.add(change.getId());
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            updatedIds.removeAll(createdIds);
+            if (!createdIds.isEmpty()) {
+                minCreatedId = Collections.min(createdIds);
+                createdCount = count();
+            }
+
+            Map<Long, T> updated = new HashMap<>();
+            for (Long id : updatedIds) {
+                T row = findById(id);
+                if (row == null) {
+                    return null;
+                }
+                updated.put(id, row);
+            }
+            return updated;
+        }
+
+        @Override
+        protected void done() {
+            if (changesWorker == this) {
+                changesWorker = null;
+            }
+            if (workerGeneration != generation || isCancelled()) {
+                return;
+            }
+            try {
+                Map<Long, T> updated = get();
+                if (updated == null) {
+                    refreshTable();
+                    return;
+                }
+                applyUpdated(updated);
+                if (!applyCreated(createdCount, minCreatedId)) {
+                    refreshTable();
+                    return;
+                }
+                version = changesVersion;
+            } catch (InterruptedException | ExecutionException ex) {
+//                Logovani chyb
+                refreshTable();
+                return;
+            }
+            if (changesAgain) {
+                changesAgain = false;
+                refreshChanges();
+            }
+        }
+
+    }
+
+    private class RowSwingWorker extends SwingWorker <T, Void> {
+
+        private final int workerGeneration;
+        private final Long id;
+
+        public RowSwingWorker(int generation, Long id) {
+            workerGeneration = generation;
+            this.id = id;
+        }
+
+        @Override
+        protected T doInBackground() throws Exception {
+            return findById(id);
+        }
+
+        @Override
+        protected void done() {
+            if (workerGeneration != generation || isCancelled()) {
+                return;
+            }
+            try {
+                T row = get();
+                if (row == null) {
+                    refreshTable();
+                    return;
+                }
+                applyUpdated(Collections.singletonMap(id, row));
+            } catch (InterruptedException | ExecutionException ex) {
+//                Logovani chyb
+                refreshTable();
+            }
+        }
+
+    }
+
+//----------------------------------------------------------------------------//
+//End of workers section
+//----------------------------------------------------------------------------//
+
+    private final Map<Integer, List<T>> pages = new LinkedHashMap<Integer, List<T>>(MAX_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<T>> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+    private final TreeMap<Integer, Long> lastIds = new TreeMap<>();
+    // workers loading pages by page
+    private final Map<Integer, PageSwingWorker> loading = new HashMap<>();
+    private int rowCount = 0;
+    private int generation = 0;
+    private long version = -1;
+    private CountSwingWorker countWorker;
+    private ChangesSwingWorker changesWorker;
+    private boolean changesAgain = false;
+
+    /**
+     * Loads rows ordered by id, called outside of the event dispatch thread.
+     */
+    protected abstract List<T> loadPage(Long afterId, int skip, int limit);
+
+    /**
+     * Counts all rows, called outside of the event dispatch thread.
+     */
+    protected abstract int count();
+
+    protected abstract Long idOf(T row);
+
+    /**
+     * Finds one row by id, called outside of the event dispatch thread.
+     */
+    protected abstract T findById(Long id);
+
+    /**
+     * Returns current version of the change log, called outside of the event
+     * dispatch thread.
+     */
+    protected abstract long changeVersion();
+
+    /**
+     * Returns changes of shown rows since given version, null if they are no
+     * longer known. Called outside of the event dispatch thread.
+     */
+    protected abstract List<ChangeLog.Change> changesSince(long version);
+
+//------------------------------------------------------------------------------
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns row with given index if its page is loaded, otherwise starts
+     * loading of the page and returns null.
+     */
+    protected T getRow(int rowIndex) {
+        int page = rowIndex / PAGE_SIZE;
+        int offset = rowIndex % PAGE_SIZE;
+
+        if (offset < PREFETCH_ROWS && page > 0) {
+            requestPage(page - 1);
+        } else if (offset >= PAGE_SIZE - PREFETCH_ROWS) {
+            requestPage(page + 1);
+        }
+
+        List<T> rows = pages.get(page);
+        if (rows == null) {
+            requestPage(page);
+            return null;
+        }
+        return offset < rows.size() ? rows.get(offset) : null;
+    }
+
+    /**
+     * Drops all loaded pages and counts rows again, visible pages are loaded
+     * when the table asks for them.
+     */
+    public void refreshTable() {
+        generation++;
+        if (countWorker != null) {
+            countWorker.cancel(false);
+        }
+        if (changesWorker != null) {
+            changesWorker.cancel(false);
+            changesWorker = null;
+        }
+        for (PageSwingWorker worker : loading.values()) {
+            worker.cancel(false);
+        }
+        changesAgain = false;
+        pages.clear();
+        lastIds.clear();
+        loading.clear();
+        countWorker = new CountSwingWorker(generation);
+        if (!BackgroundWork.start(BackgroundWork.BULK, countWorker)) {
+            countWorker = null;
+        }
+    }
+
+    /**
+     * Reloads only rows changed since the window was loaded. Falls back to
+     * refreshTable() if rows were deleted or changes are no longer known.
+     */
+    public void refreshChanges() {
+        if (version < 0) {
+            refreshTable();
+            return;
+        }
+        if (changesWorker != null) {
+            changesAgain = true;
+            return;
+        }
+        changesWorker = new ChangesSwingWorker(generation, version);
+        if (!BackgroundWork.start(BackgroundWork.INTERACTIVE, changesWorker)) {
+            changesWorker = null;
+        }
+    }
+
+    /**
+     * Reads one row again, e.g. after a failed update left rejected values
+     * in it. Falls back to refreshTable() if the row no longer exists.
+     */
+    protected void reloadRow(T row) {
+        RowSwingWorker worker = new RowSwingWorker(generation, idOf(row));
+        if (!BackgroundWork.start(BackgroundWork.INTERACTIVE, worker)) {
+            refreshTable();
+        }
+    }
+
+    private void applyUpdated(Map<Long, T> updated) {
+        if (updated.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Integer, List<T>> page : pages.entrySet()) {
+            List<T> rows = page.getValue();
+            for (int i = 0; i < rows.size(); i++) {
+                T row = updated.get(idOf(rows.get(i)));
+                if (row != null) {
+                    rows.set(i, row);
+                    int rowIndex = page.getKey() * PAGE_SIZE + i;
+                    fireTableRowsUpdated(rowIndex, rowIndex);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param count
+     * Count of rows read after rows were created, -1 if none was created.
+     * @param minId
+     * The smallest id of created rows.
+     * @return false if rows disappeared or were created before loaded rows and
+     * the whole window must be reloaded
+     */
+    private boolean applyCreated(int count, long minId) {
+        if (count < 0 || count == rowCount) {
+            return true;
+        }
+        if (count < rowCount) {
+            return false;
+        }
+        // ids of a reserved range may be committed after greater ones
+        if (!lastIds.isEmpty() && minId <= lastIds.lastEntry().getValue()) {
+            return false;
+        }
+        // new ids are greater than all loaded ones, so new rows are appended to the last page
+        int lastPage = rowCount / PAGE_SIZE;
+        pages.remove(lastPage);
+        lastIds.remove(lastPage);
+
+        int first = rowCount;
+        rowCount = count;
+        fireTableRowsInserted(first, rowCount - 1);
+        return true;
+    }
+
+    private void requestPage(int page) {
+        if (page * PAGE_SIZE >= rowCount || pages.containsKey(page) || loading.containsKey(page)) {
+            return;
+        }
+
+        // continue from the nearest page before this one with known last id
+        Map.Entry<Integer, Long> known = lastIds.floorEntry(page - 1);
+        Long afterId = known == null ? null : known.getValue();
+        int skip = known == null ? page * PAGE_SIZE : (page - known.getKey() - 1) * PAGE_SIZE;
+
+        PageSwingWorker worker = new PageSwingWorker(generation, page, afterId, skip);
+        loading.put(page, worker);
+        if (!BackgroundWork.start(BackgroundWork.INTERACTIVE, worker)) {
+            // loaded again when the rows are asked for
+            loading.remove(page);
+        }
+    }
+}
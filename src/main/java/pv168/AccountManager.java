@@ -3,7 +3,9 @@ package pv168;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Created by xvancik on 3/8/16.
@@ -34,10 +36,37 @@ public interface AccountManager {
      * Argument Exception as well. 
      * @param con 
      * Passed sql connection, if using this method as a part of a transaction, 
-     * autocommit should be set to false.
+     * autocommit should be set to false. The caller then has to call
+     * ChangeLog.of(dataSource).committed(con) after commit, or rolledBack(con)
+     * after rollback, so views of the data source see the change.
      */
     
     public void createAccount(Account account, Connection con) throws SQLException;
+
+    /**
+     * Creates records of all given accounts in one transaction using batched
+     * inserts. Either all accounts are created or none of them.
+     *
+     * @param accounts
+     * Accounts satisfying the same conditions as in createAccount(account),
+     * otherwise IllegalArgumentException is thrown before anything is inserted.
+     * Ids are assigned to all of them.
+     */
+    public void createAccounts(Collection<Account> accounts);
+
+    /**
+     * Overloading method, does the same as createAccounts(accounts) but uses
+     * specified connection, transaction is neither started nor committed.
+     *
+     * @param accounts
+     * Accounts satisfying the same conditions as in createAccount(account).
+     * @param con
+     * Passed sql connection, autocommit should be set to false. The caller
+     * then has to call ChangeLog.of(dataSource).committed(con) after commit,
+     * or rolledBack(con) after rollback, so views of the data source see the
+     * change.
+     */
+    public void createAccounts(Collection<Account> accounts, Connection con);
     
     /**
      * Deletes record of specified Account object in database if such object exists.
@@ -58,7 +87,9 @@ public interface AccountManager {
      * Argument Exception. 
      * @param con 
      * Passed sql connection, if using this method as a part of a transaction, 
-     * autocommit should be set to false.
+     * autocommit should be set to false. The caller then has to call
+     * ChangeLog.of(dataSource).committed(con) after commit, or rolledBack(con)
+     * after rollback, so views of the data source see the change.
      */    
     public void deleteAccount(Account account, Connection con);
     
@@ -83,7 +114,9 @@ public interface AccountManager {
      * Account object with all specified atributes. If not specified throws IllegalArgumentException.
      * @param con
      * Passed sql connection, if using this method as a part of a transaction, 
-     * autocommit should be set to false.
+     * autocommit should be set to false. The caller then has to call
+     * ChangeLog.of(dataSource).committed(con) after commit, or rolledBack(con)
+     * after rollback, so views of the data source see the change.
      */    
     public void updateAccount(Account account, Connection con);
     
@@ -134,4 +167,72 @@ public interface AccountManager {
      */
     public List<Account> findAllAccounts(Connection con);
 
+    /**
+     * Retrieves all account records lazily, rows are read from the database
+     * while the stream is consumed.
+     *
+     * @param fetchSize
+     * Number of rows fetched from the database at once, must be positive.
+     * @return
+     * Returns Stream of all Accounts stored in the database. Stream holds
+     * a database connection and must be closed after use.
+     */
+    public Stream<Account> streamAllAccounts(int fetchSize);
+
+    /**
+     * Retrieves one page of accounts ordered by id. Next page is retrieved by
+     * passing id of the last account of this page as afterId, so every page
+     * is read by index range scan no matter how far it is.
+     *
+     * @param afterId
+     * Id of the last account of previous page, null for the first page.
+     * @param limit
+     * Maximal number of returned accounts, must be positive.
+     * @return
+     * Returns List of at most limit accounts with id greater than afterId.
+     * Returns empty List if there are no more accounts.
+     */
+    public List<Account> findAccounts(Long afterId, int limit);
+
+    /**
+     * Does the same as findAccounts(afterId, limit), but skips given number of
+     * accounts after afterId first. Useful for jumping far from the last known
+     * page, skipped rows are still read by the database.
+     *
+     * @param afterId
+     * Id of the last known account, null to start from the first account.
+     * @param skip
+     * Number of accounts after afterId to be skipped, must not be negative.
+     * @param limit
+     * Maximal number of returned accounts, must be positive.
+     * @return
+     * Returns List of at most limit accounts ordered by id.
+     */
+    public List<Account> findAccounts(Long afterId, int skip, int limit);
+
+    /**
+     * @return
+     * Returns number of accounts stored in the database.
+     */
+    public int countAccounts();
+
+    /**
+     * @return
+     * Returns version of the last change of accounts or payments made by
+     * managers using the same DataSource, see ChangeLog.
+     */
+    public long getChangeVersion();
+
+    /**
+     * Retrieves ids of accounts which were created, updated or deleted after
+     * given version, so that views can reload only changed accounts.
+     *
+     * @param version
+     * Version returned by getChangeVersion() when the view was loaded.
+     * @return
+     * Returns List of changes ordered by version, or null if the changes are
+     * too old to be kept and everything has to be reloaded.
+     */
+    public List<ChangeLog.Change> findAccountChangesSince(long version);
+
 }
@@ -8,20 +8,30 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Created by xvancik on 3/8/16.
  */
 public class AccountManagerImpl implements AccountManager {
 
+    /**
+     * Number of inserts sent to the database in one executeBatch call.
+     */
+    static final int INSERT_BATCH_SIZE = 1000;
+
     private final DataSource dataSource;
+    private final ChangeLog changeLog;
     final static Logger log = LoggerFactory.getLogger(AccountManagerImpl.class);
 
     public AccountManagerImpl(DataSource dataSource) {
         this.dataSource = dataSource;
+        this.changeLog = ChangeLog.of(dataSource);
     }
 
     @Override
@@ -31,7 +41,7 @@ public class AccountManagerImpl implements AccountManager {
 
         try (Connection connection = dataSource.getConnection()) {
             createAccountInnerProcess(connection, account);
-            log.info("account {} was created", account);
+            log.debug("account {} was created", account);
         } catch (SQLException ex) {
             log.error("account {} coudl not be created", account);
             throw new ServiceFailureException("Failed to create database record of an account: " + account, ex);
@@ -42,7 +52,40 @@ public class AccountManagerImpl implements AccountManager {
     public void createAccount(Account account, Connection con) throws ServiceFailureException {
         checkAccountForCreateAccount(account);
         createAccountInnerProcess(con, account);
-        log.info("account {} was created", account);
+        log.debug("account {} was created", account);
+    }
+
+    @Override
+    public void createAccounts(Collection<Account> accounts) throws ServiceFailureException {
+
+        checkAccountsForCreateAccounts(accounts);
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                createAccountsInnerProcess(connection, accounts);
+                connection.commit();
+                changeLog.committed(connection);
+            } catch (RuntimeException | SQLException ex) {
+                connection.rollback();
+                changeLog.rolledBack(connection);
+                for (Account account : accounts) {
+                    account.setId(null);
+                }
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            log.error("{} accounts could not be created", accounts.size());
+            throw new ServiceFailureException("Failed to create database records of " + accounts.size() + " accounts", ex);
+        }
+    }
+
+    @Override
+    public void createAccounts(Collection<Account> accounts, Connection con) throws ServiceFailureException {
+        checkAccountsForCreateAccounts(accounts);
+        createAccountsInnerProcess(con, accounts);
     }
 
     @Override
@@ -52,7 +95,7 @@ public class AccountManagerImpl implements AccountManager {
 
         try (Connection connection = dataSource.getConnection()) {
             deleteAccountInnerProcess(connection, account);
-            log.info("account {} was deleted", account);
+            log.debug("account {} was deleted", account);
         } catch (SQLException ex) {
             log.error("account {} coudl not be deleted", account);
             throw new ServiceFailureException("Failed to delete database record"
@@ -64,7 +107,7 @@ public class AccountManagerImpl implements AccountManager {
     public void deleteAccount(Account account, Connection con) throws ServiceFailureException {
         checkAccountForDeleteAccount(account);
         deleteAccountInnerProcess(con, account);
-         log.info("account {} was deleted", account);
+         log.debug("account {} was deleted", account);
     }
 
     @Override
@@ -74,7 +117,7 @@ public class AccountManagerImpl implements AccountManager {
 
         try (Connection connection = dataSource.getConnection();) {
             updateAccountInnerProcess(connection, account);
-             log.info("account {} was updated", account);
+             log.debug("account {} was updated", account);
         } catch (SQLException ex) {
             log.error("account {} coudl not be updated", account);
             throw new ServiceFailureException("Failed to update database record of "
@@ -86,7 +129,7 @@ public class AccountManagerImpl implements AccountManager {
     public void updateAccount(Account account, Connection con) throws ServiceFailureException {
         checkAccountForUpdateAccount(account);
         updateAccountInnerProcess(con, account);
-        log.info("account {} was updated", account);
+        log.debug("account {} was updated", account);
     }
 
     @Override
@@ -125,6 +168,72 @@ public class AccountManagerImpl implements AccountManager {
         return findAllAccountsInnerProcess(con);
     }
 
+    @Override
+    public List<Account> findAccounts(Long afterId, int limit) throws ServiceFailureException {
+        return findAccounts(afterId, 0, limit);
+    }
+
+    @Override
+    public List<Account> findAccounts(Long afterId, int skip, int limit) throws ServiceFailureException {
+
+        checkSkip(skip);
+        checkLimit(limit);
+
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement prepStatement = connection.prepareStatement(
+                        "SELECT * FROM account WHERE id > ? ORDER BY id OFFSET ? ROWS FETCH FIRST ? ROWS ONLY")) {
+            prepStatement.setLong(1, afterId == null ? Long.MIN_VALUE : afterId);
+            prepStatement.setInt(2, skip);
+            prepStatement.setInt(3, limit);
+
+            ResultSet rs = prepStatement.executeQuery();
+            List<Account> result = new ArrayList<>(limit);
+            while (rs.next()) {
+                result.add(resultSetToAccount(rs));
+            }
+            return result;
+        } catch (SQLException ex) {
+            log.error("Failed to retrieve accounts after id {}", afterId);
+            throw new ServiceFailureException("Failed to retrieve accounts after id " + afterId + "!", ex);
+        }
+    }
+
+    @Override
+    public int countAccounts() throws ServiceFailureException {
+
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement prepStatement = connection.prepareStatement("SELECT COUNT(*) FROM account")) {
+            ResultSet rs = prepStatement.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        } catch (SQLException ex) {
+            log.error("Failed to count accounts");
+            throw new ServiceFailureException("Failed to count accounts!", ex);
+        }
+    }
+
+    @Override
+    public long getChangeVersion() {
+        return changeLog.getVersion();
+    }
+
+    @Override
+    public List<ChangeLog.Change> findAccountChangesSince(long version) {
+        return changeLog.findChangesSince(ChangeLog.Entity.ACCOUNT, version);
+    }
+
+    @Override
+    public Stream<Account> streamAllAccounts(int fetchSize) throws ServiceFailureException {
+
+        try {
+            return ResultSetStream.query(dataSource, "SELECT * FROM account", fetchSize,
+                    AccountManagerImpl::resultSetToAccount);
+        } catch (SQLException ex) {
+            log.error("Failed to stream all acounts record");
+            throw new ServiceFailureException("Failed to retrieve all acount record!", ex);
+        }
+    }
+
 //------------------------------------------------------------------------------
     public static Long getKey(ResultSet keyRs, Account account) throws SQLException {
 
@@ -205,6 +314,7 @@ public class AccountManagerImpl implements AccountManager {
 
             ResultSet keyRs = prepStatement.getGeneratedKeys();
             account.setId(getKey(keyRs, account));
+            changeLog.record(con, ChangeLog.Entity.ACCOUNT, ChangeLog.Kind.CREATED, account.getId());
 
         } catch (SQLException ex) {
             log.error("account {} coudl not be created", account);
@@ -212,6 +322,123 @@ public class AccountManagerImpl implements AccountManager {
         }
     }
 
+    private void checkAccountsForCreateAccounts(Collection<Account> accounts) {
+        if (accounts == null) {
+            log.warn("Operation failed: accounts are null!");
+            throw new IllegalArgumentException("Passed accounts are null!");
+        }
+        for (Account account : accounts) {
+            checkAccountForCreateAccount(account);
+        }
+    }
+
+    /**
+     * Inserts accounts in batches of INSERT_BATCH_SIZE. Derby returns only the
+     * last generated key of a batch, so the first account of a batch is
+     * inserted alone to get the first one. If the batch got consecutive ids,
+     * they are assigned in order. Otherwise a concurrent insert took some ids
+     * in between, the batch is rolled back to a savepoint and its accounts
+     * are inserted one by one. Table account is never locked.
+     */
+    private void createAccountsInnerProcess(Connection con, Collection<Account> accounts) {
+
+        long start = System.nanoTime();
+
+        try (PreparedStatement single = con.prepareStatement(
+                "INSERT INTO account (owner, balance) VALUES (?,?)", Statement.RETURN_GENERATED_KEYS);
+                PreparedStatement batched = con.prepareStatement(
+                        "INSERT INTO account (owner, balance) VALUES (?,?)", Statement.RETURN_GENERATED_KEYS)) {
+
+            // without a transaction a batch can not be rolled back
+            boolean batching = !con.getAutoCommit();
+            List<Account> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+            for (Account account : accounts) {
+                batch.add(account);
+                if (batch.size() == INSERT_BATCH_SIZE) {
+                    insertBatch(con, single, batching ? batched : null, batch);
+                }
+            }
+            if (!batch.isEmpty()) {
+                insertBatch(con, single, batching ? batched : null, batch);
+            }
+
+        } catch (SQLException ex) {
+            for (Account account : accounts) {
+                account.setId(null);
+            }
+            log.error("{} accounts could not be created", accounts.size());
+            throw new ServiceFailureException("Failed to create database records of " + accounts.size() + " accounts", ex);
+        }
+
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        log.info("{} accounts were created in {} ms ({} accounts/s)",
+                new Object[]{accounts.size(), millis, accounts.size() * 1000L / millis});
+    }
+
+    /**
+     * @param batched
+     * Statement for the rest of the batch, null if the accounts must be
+     * inserted one by one.
+     */
+    private void insertBatch(Connection con, PreparedStatement single, PreparedStatement batched,
+            List<Account> batch) throws SQLException {
+
+        boolean inserted = false;
+        if (batched != null && batch.size() > 1) {
+            Savepoint savepoint = con.setSavepoint();
+            long firstId = insertOne(single, batch.get(0));
+            for (Account account : batch.subList(1, batch.size())) {
+                batched.setString(1, account.getOwner());
+                batched.setBigDecimal(2, account.getBalance());
+                batched.addBatch();
+            }
+            int[] addedRows = batched.executeBatch();
+            for (int added : addedRows) {
+                if (added != 1 && added != Statement.SUCCESS_NO_INFO) {
+                    log.error(added + " have been affected!");
+                    throw new ServiceFailureException("Only one row should be affected by inserting"
+                            + "record into database, but " + added + " have been affected!");
+                }
+            }
+            Long lastId;
+            try (ResultSet keyRs = batched.getGeneratedKeys()) {
+                lastId = keyRs.next() ? keyRs.getLong(1) : null;
+            }
+
+            if (lastId != null && lastId - firstId == batch.size() - 1) {
+                long id = firstId;
+                for (Account account : batch) {
+                    account.setId(id++);
+                }
+                con.releaseSavepoint(savepoint);
+                inserted = true;
+            } else {
+                log.debug("ids of a batch of {} accounts are not consecutive, it is inserted again one by one",
+                        batch.size());
+                con.rollback(savepoint);
+            }
+        }
+        if (!inserted) {
+            for (Account account : batch) {
+                account.setId(insertOne(single, account));
+            }
+        }
+
+        for (Account account : batch) {
+            changeLog.record(con, ChangeLog.Entity.ACCOUNT, ChangeLog.Kind.CREATED, account.getId());
+        }
+        batch.clear();
+    }
+
+    private static long insertOne(PreparedStatement single, Account account) throws SQLException {
+        single.setString(1, account.getOwner());
+        single.setBigDecimal(2, account.getBalance());
+        single.executeUpdate();
+        try (ResultSet keyRs = single.getGeneratedKeys()) {
+            return getKey(keyRs, account);
+        }
+    }
+
     private void checkAccountForDeleteAccount(Account account) {
         if (account == null) {
             log.warn("Operation failed: passed account is null!");
@@ -239,6 +466,7 @@ public class AccountManagerImpl implements AccountManager {
                 log.error(deleted + " rows have been affected!");
                 throw new ServiceFailureException("Only one row should be affected, but delete affected " + deleted + "!");
             }
+            changeLog.record(con, ChangeLog.Entity.ACCOUNT, ChangeLog.Kind.DELETED, account.getId());
 
         } catch (SQLException ex) {
             log.error("account {} coudl not be deleted", account);
@@ -274,6 +502,7 @@ public class AccountManagerImpl implements AccountManager {
                 log.error(updated + " rows have been affected!");
                 throw new ServiceFailureException("Only one row should be affected, but update affected " + updated + "!");
             }
+            changeLog.record(con, ChangeLog.Entity.ACCOUNT, ChangeLog.Kind.UPDATED, account.getId());
 
         } catch (SQLException ex) {
             log.error("account {} could not be updated", account);
@@ -283,6 +512,20 @@ public class AccountManagerImpl implements AccountManager {
 
     }
 
+    static void checkLimit(int limit) {
+        if (limit < 1) {
+            log.warn("Operation failed: limit is not positive!");
+            throw new IllegalArgumentException("Limit must be positive!");
+        }
+    }
+
+    static void checkSkip(int skip) {
+        if (skip < 0) {
+            log.warn("Operation failed: skip is negative!");
+            throw new IllegalArgumentException("Skip must not be negative!");
+        }
+    }
+
     private void checkIdNotNull(Long id) {
         if (id == null) {
             log.error("Operation failed: Id is null!");
@@ -307,10 +550,10 @@ public class AccountManagerImpl implements AccountManager {
                     throw new ServiceFailureException("Operation retrieved more than one row!"
                             + "More than one entity with id " + id + "found!");
                 }
-                log.info("account {} was found", result);
+                log.debug("account {} was found", result);
                 return result;
             } else {
-                log.info("account with id {} was not found", id);
+                log.debug("account with id {} was not found", id);
                 return null;
             }
 
@@ -330,7 +573,7 @@ public class AccountManagerImpl implements AccountManager {
             while (rs.next()) {
                 result.add(resultSetToAccount(rs));
             }
-            log.info("all accounts was successfully retrieved", result);
+            log.debug("all accounts was successfully retrieved", result);
             return result;
         } catch (SQLException ex) {
             log.error("Listing of all acounts failed");
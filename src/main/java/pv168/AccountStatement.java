@@ -0,0 +1,85 @@
+package pv168;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Payments of one account sent in period from (inclusive) to (exclusive),
+ * returned by BankingManager.findStatement(account, from, to, limit).
+ */
+public class AccountStatement {
+
+    private final Account account;
+    private final Date from;
+    private final Date to;
+    private final BigDecimal openingBalance;
+    private final BigDecimal closingBalance;
+    private final List<Payment> payments;
+    private final boolean truncated;
+
+    AccountStatement(Account account, Date from, Date to, BigDecimal openingBalance,
+            BigDecimal closingBalance, List<Payment> payments, boolean truncated) {
+        this.account = account;
+        this.from = from;
+        this.to = to;
+        this.openingBalance = openingBalance;
+        this.closingBalance = closingBalance;
+        this.payments = Collections.unmodifiableList(payments);
+        this.truncated = truncated;
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public Date getFrom() {
+        return from;
+    }
+
+    public Date getTo() {
+        return to;
+    }
+
+    /**
+     * @return
+     * Returns balance of the account at the start of the period.
+     */
+    public BigDecimal getOpeningBalance() {
+        return openingBalance;
+    }
+
+    /**
+     * @return
+     * Returns balance of the account at the end of the period, it includes
+     * also payments which were not returned because of the limit.
+     */
+    public BigDecimal getClosingBalance() {
+        return closingBalance;
+    }
+
+    /**
+     * @return
+     * Returns incoming and outgoing payments ordered by date and id.
+     */
+    public List<Payment> getPayments() {
+        return payments;
+    }
+
+    /**
+     * @return
+     * Returns true if the period contains more payments than the limit, only
+     * the earliest of them were returned.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public String toString() {
+        return "AccountStatement{" + "account=" + account + ", from=" + from + ", to=" + to
+                + ", openingBalance=" + openingBalance + ", closingBalance=" + closingBalance
+                + ", payments=" + payments.size() + ", truncated=" + truncated + '}';
+    }
+}
@@ -0,0 +1,38 @@
+package pv168;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous variant of AccountManager created by
+ * ManagerExecutor.accountManager(). Every method does the same as the method
+ * of AccountManager with the same parameters in background and returns future
+ * of its result. Methods taking a Connection and returning Stream have no
+ * asynchronous variant, they are bound to the calling thread.
+ */
+public interface AsyncAccountManager {
+
+    public CompletableFuture<Void> createAccount(Account account);
+
+    public CompletableFuture<Void> createAccounts(Collection<Account> accounts);
+
+    public CompletableFuture<Void> deleteAccount(Account account);
+
+    public CompletableFuture<Void> updateAccount(Account account);
+
+    public CompletableFuture<Account> findAccountById(Long id);
+
+    public CompletableFuture<List<Account>> findAllAccounts();
+
+    public CompletableFuture<List<Account>> findAccounts(Long afterId, int limit);
+
+    public CompletableFuture<List<Account>> findAccounts(Long afterId, int skip, int limit);
+
+    public CompletableFuture<Integer> countAccounts();
+
+    public CompletableFuture<Long> getChangeVersion();
+
+    public CompletableFuture<List<ChangeLog.Change>> findAccountChangesSince(long version);
+
+}
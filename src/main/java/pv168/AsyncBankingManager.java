@@ -0,0 +1,43 @@
+package pv168;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous variant of BankingManager created by
+ * ManagerExecutor.bankingManager(), see AsyncAccountManager. A payment whose
+ * execution failed completes the future exceptionally, e.g. by
+ * InsufficientBalanceException.
+ */
+public interface AsyncBankingManager {
+
+    public CompletableFuture<Void> executePayment(Payment payment);
+
+    public CompletableFuture<List<PaymentResult>> executePayments(List<Payment> payments);
+
+    public CompletableFuture<List<Payment>> findAllIncomingPaymentsToAccount(Account account);
+
+    public CompletableFuture<List<Payment>> findOutgoingPaymentsToAccount(Account account);
+
+    public CompletableFuture<List<Payment>> findIncomingPaymentsToAccount(Account account, Long afterId, int limit);
+
+    public CompletableFuture<List<Payment>> findOutgoingPaymentsToAccount(Account account, Long afterId, int limit);
+
+    public CompletableFuture<AccountStatement> findStatement(Account account, Date from, Date to, int limit);
+
+    public CompletableFuture<BigDecimal> findBalanceAt(Account account, Date date);
+
+    public CompletableFuture<Turnover> findTurnover(Account account, Date from, Date to);
+
+    public CompletableFuture<List<Turnover>> findTurnoverByPeriod(Account account, Date from, Date to,
+            Turnover.Granularity granularity);
+
+    public CompletableFuture<Map<Long, Turnover>> findTurnoverOfAllAccounts(Date from, Date to);
+
+    public CompletableFuture<List<Turnover>> findRolledUpTurnover(Account account, Date from, Date to,
+            Turnover.Granularity granularity);
+
+}
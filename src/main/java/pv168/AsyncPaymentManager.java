@@ -0,0 +1,32 @@
+package pv168;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous variant of PaymentManager created by
+ * ManagerExecutor.paymentManager(), see AsyncAccountManager.
+ */
+public interface AsyncPaymentManager {
+
+    public CompletableFuture<Void> createPayment(Payment payment);
+
+    public CompletableFuture<Void> deletePayment(Payment payment);
+
+    public CompletableFuture<Void> updatePayment(Payment payment);
+
+    public CompletableFuture<Payment> findPaymentById(Long id);
+
+    public CompletableFuture<List<Payment>> findAllPayments();
+
+    public CompletableFuture<List<Payment>> findPayments(Long afterId, int limit);
+
+    public CompletableFuture<List<Payment>> findPayments(Long afterId, int skip, int limit);
+
+    public CompletableFuture<Integer> countPayments();
+
+    public CompletableFuture<Long> getChangeVersion();
+
+    public CompletableFuture<List<ChangeLog.Change>> findPaymentChangesSince(long version);
+
+}
@@ -0,0 +1,232 @@
+package pv168;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores snapshots of balances of all accounts in table balance_checkpoint,
+ * so BankingManager.findBalanceAt(account, date) replays only payments sent
+ * between the date and the nearest checkpoint.
+ *
+ * Accounts are stored in chunks of CHUNK_SIZE, each in a short transaction
+ * of its own, so only the accounts of one chunk are locked at a time. A
+ * checkpoint of an account taken at takenAt contains exactly the payments
+ * executed by BankingManager with date before takenAt: reading the balance
+ * waits for payments which have locked the account already, the account
+ * stays locked until the chunk is committed, and payments date themselves
+ * only after their accounts are locked. Changes of balances made by
+ * AccountManager.updateAccount are seen by the next checkpoint only.
+ *
+ * Payments of LedgerBankingManager reach the database after they are dated,
+ * so no checkpoint is taken while a ledger runs on the database.
+ */
+public final class BalanceCheckpoints implements AutoCloseable {
+
+    static final int CHUNK_SIZE = 1000;
+
+    private final ScheduledExecutorService executor;
+    private final DataSource dataSource;
+    private final long periodMillis;
+    final static Logger log = LoggerFactory.getLogger(BalanceCheckpoints.class);
+
+    private BalanceCheckpoints(DataSource dataSource, long period, TimeUnit unit) {
+        this.dataSource = dataSource;
+        this.periodMillis = unit.toMillis(period);
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "balance-checkpoints");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::checkpointIfMissing);
+        executor.scheduleAtFixedRate(this::checkpoint, period, period, unit);
+    }
+
+    /**
+     * Starts taking checkpoints in a daemon thread. The first one is taken
+     * right away if the last checkpoint is older than period.
+     *
+     * @param dataSource
+     * DataSource of the database.
+     * @param period
+     * Time between two checkpoints, must be positive.
+     * @param unit
+     * Unit of period.
+     * @return
+     * Returns running checkpointer, close() stops it.
+     */
+    public static BalanceCheckpoints start(DataSource dataSource, long period, TimeUnit unit) {
+        if (dataSource == null) {
+            throw new IllegalArgumentException("Data source is null!");
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive, was " + period);
+        }
+        return new BalanceCheckpoints(dataSource, period, unit);
+    }
+
+    private void checkpointIfMissing() {
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement last = connection.prepareStatement("SELECT MAX(takenAt) FROM balance_checkpoint");
+                ResultSet rs = last.executeQuery()) {
+            rs.next();
+            Timestamp takenAt = rs.getTimestamp(1);
+            if (takenAt != null && takenAt.getTime() > System.currentTimeMillis() - periodMillis) {
+                log.debug("last balance checkpoint taken at {} is recent", takenAt);
+                return;
+            }
+        } catch (SQLException ex) {
+            log.error("last balance checkpoint could not be found", ex);
+            return;
+        }
+        checkpoint();
+    }
+
+    private void checkpoint() {
+        if (LedgerBankingManager.isRunning(dataSource)) {
+            log.debug("balance checkpoint skipped, a ledger runs on the database");
+            return;
+        }
+        try {
+            takeCheckpoint(dataSource);
+        } catch (RuntimeException ex) {
+            // the next checkpoint is tried anyway
+            log.error("balance checkpoint failed", ex);
+        }
+    }
+
+    /**
+     * Stores current balances of all accounts. New payments of an account wait
+     * until the chunk of accounts it belongs to is committed.
+     *
+     * @param dataSource
+     * DataSource of the database.
+     * @return
+     * Returns time of the checkpoint of the last chunk, payments with earlier
+     * date are included in it, payments with the same or later date are not.
+     * Checkpoints of former chunks are slightly older.
+     * @throws IllegalStateException
+     * If a LedgerBankingManager runs on the database.
+     */
+    public static Date takeCheckpoint(DataSource dataSource) {
+        if (dataSource == null) {
+            throw new IllegalArgumentException("Data source is null!");
+        }
+        if (LedgerBankingManager.isRunning(dataSource)) {
+            log.warn("Operation failed: a ledger runs on the database!");
+            throw new IllegalStateException("Balance checkpoint cannot be taken while a ledger runs!");
+        }
+
+        try (Connection connection = dataSource.getConnection()) {
+            int isolation = connection.getTransactionIsolation();
+            // read balances stay locked until the chunk is committed
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            connection.setAutoCommit(false);
+            try {
+                long[] ids = new long[CHUNK_SIZE];
+                BigDecimal[] balances = new BigDecimal[CHUNK_SIZE];
+                long lastId = Long.MIN_VALUE;
+                int accounts = 0;
+                Timestamp takenAt = new Timestamp(System.currentTimeMillis());
+                while (true) {
+                    int count = readChunk(connection, lastId, ids, balances);
+                    if (count == 0) {
+                        connection.commit();
+                        break;
+                    }
+                    takenAt = storeChunk(connection, ids, balances, count);
+                    lastId = ids[count - 1];
+                    accounts += count;
+                }
+
+                log.info("balance checkpoint of {} accounts taken at {}", accounts, takenAt);
+                return new Date(takenAt.getTime());
+
+            } catch (SQLException | RuntimeException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+                connection.setTransactionIsolation(isolation);
+            }
+        } catch (SQLException ex) {
+            log.error("balance checkpoint could not be taken");
+            throw new ServiceFailureException("Failed to take balance checkpoint!", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.error("balance checkpoint was interrupted");
+            throw new ServiceFailureException("Balance checkpoint was interrupted!", ex);
+        }
+    }
+
+    /**
+     * Reads and locks accounts with id greater than lastId.
+     *
+     * @return
+     * Returns number of read accounts, 0 if there are no more.
+     */
+    private static int readChunk(Connection connection, long lastId, long[] ids, BigDecimal[] balances)
+            throws SQLException {
+
+        try (PreparedStatement select = connection.prepareStatement("SELECT id, balance FROM account "
+                + "WHERE id > ? ORDER BY id FETCH FIRST " + CHUNK_SIZE + " ROWS ONLY")) {
+            select.setLong(1, lastId);
+            try (ResultSet rs = select.executeQuery()) {
+                int count = 0;
+                while (rs.next()) {
+                    ids[count] = rs.getLong(1);
+                    balances[count] = rs.getBigDecimal(2);
+                    count++;
+                }
+                return count;
+            }
+        }
+    }
+
+    /**
+     * Stores checkpoint of read accounts and commits it.
+     *
+     * @return
+     * Returns time of the checkpoint.
+     */
+    private static Timestamp storeChunk(Connection connection, long[] ids, BigDecimal[] balances, int count)
+            throws SQLException, InterruptedException {
+
+        // payments holding account locks were committed and dated not later than now,
+        // waiting ones get a date after the commit, which must be later than now
+        long now = System.currentTimeMillis();
+        Timestamp takenAt = new Timestamp(now + 1);
+
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO balance_checkpoint (accountId, takenAt, balance) VALUES (?, ?, ?)")) {
+            for (int i = 0; i < count; i++) {
+                insert.setLong(1, ids[i]);
+                insert.setTimestamp(2, takenAt);
+                insert.setBigDecimal(3, balances[i]);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        long wait = takenAt.getTime() - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+        connection.commit();
+        return takenAt;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
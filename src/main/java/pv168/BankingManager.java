@@ -1,7 +1,11 @@
 package pv168;
 
+import java.math.BigDecimal;
 
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * Created by xvancik on 3/8/16.
@@ -22,6 +26,23 @@ public interface BankingManager {
      */
     
     public void executePayment(Payment payment);
+
+    /**
+     * Executes payments in the given order, grouping them into transactions
+     * of configured size. Payment which can not be executed because of
+     * insufficient balance or missing account is skipped and reported, it does
+     * not cancel other payments. Balances of passed accounts are checked against
+     * the database, not against Account objects.
+     *
+     * @param payments
+     * List of payments, each of them must satisfy the same conditions as in
+     * executePayment(payment), otherwise IllegalArgumentException is thrown
+     * before any payment is executed.
+     * @return
+     * Returns List of results, i-th result belongs to i-th payment.
+     */
+
+    public List<PaymentResult> executePayments(List<Payment> payments);
     
     /**
      * Retrieves all payments from database which have specified account as its target. 
@@ -49,4 +70,168 @@ public interface BankingManager {
      */
     
     public List<Payment> findOutgoingPaymentsToAccount(Account account);
+
+    /**
+     * Retrieves one page of payments to specified account ordered by id.
+     * Next page is retrieved by passing id of the last payment of this page
+     * as afterId.
+     *
+     * @param account
+     * Account with all specified atributes.
+     * @param afterId
+     * Id of the last payment of previous page, null for the first page.
+     * @param limit
+     * Maximal number of returned payments, must be positive.
+     * @return
+     * Returns List of at most limit payments where specified account occures
+     * as payment.toAcc and id is greater than afterId.
+     */
+    public List<Payment> findIncomingPaymentsToAccount(Account account, Long afterId, int limit);
+
+    /**
+     * Retrieves one page of payments from specified account ordered by id.
+     * Next page is retrieved by passing id of the last payment of this page
+     * as afterId.
+     *
+     * @param account
+     * Account with all specified atributes.
+     * @param afterId
+     * Id of the last payment of previous page, null for the first page.
+     * @param limit
+     * Maximal number of returned payments, must be positive.
+     * @return
+     * Returns List of at most limit payments where specified account occures
+     * as payment.fromAcc and id is greater than afterId.
+     */
+    public List<Payment> findOutgoingPaymentsToAccount(Account account, Long afterId, int limit);
+
+    /**
+     * Does the same as findAllIncomingPaymentsToAccount(account), but payments
+     * are read from the database while the stream is consumed.
+     *
+     * @param account
+     * Account with all specified atributes.
+     * @param fetchSize
+     * Number of rows fetched from the database at once, must be positive.
+     * @return
+     * Returns Stream of payments to the account, which must be closed after use.
+     */
+    public Stream<Payment> streamIncomingPaymentsToAccount(Account account, int fetchSize);
+
+    /**
+     * Does the same as findOutgoingPaymentsToAccount(account), but payments
+     * are read from the database while the stream is consumed.
+     *
+     * @param account
+     * Account with all specified atributes.
+     * @param fetchSize
+     * Number of rows fetched from the database at once, must be positive.
+     * @return
+     * Returns Stream of payments from the account, which must be closed after use.
+     */
+    public Stream<Payment> streamOutgoingPaymentsToAccount(Account account, int fetchSize);
+
+    /**
+     * Retrieves statement of specified account for period from (inclusive)
+     * to (exclusive). Incoming and outgoing payments are read by index range
+     * scans of the period only, merged and ordered by date and id.
+     * Balances are derived from the current balance of the account and
+     * payments sent after the period, a balance changed by updateAccount
+     * after the period shifts both of them.
+     *
+     * @param account
+     * Account with all specified atributes.
+     * @param from
+     * Start of the period, inclusive.
+     * @param to
+     * End of the period, exclusive, must not be before from.
+     * @param limit
+     * Maximal number of returned payments, must be positive.
+     * @return
+     * Returns statement with at most limit earliest payments of the period
+     * and balances at its start and end.
+     */
+    public AccountStatement findStatement(Account account, Date from, Date to, int limit);
+
+    /**
+     * Retrieves balance of specified account at given time. Payments are
+     * replayed from the nearest balance checkpoint taken by
+     * BalanceCheckpoints, without one from the current balance.
+     *
+     * @param account
+     * Account with all specified atributes.
+     * @param date
+     * Time of the balance, payments sent before it are included.
+     * @return
+     * Returns balance of the account at the time.
+     */
+    public BigDecimal findBalanceAt(Account account, Date date);
+
+    /**
+     * Computes count, sum, minimum and maximum of incoming and outgoing
+     * payments of specified account sent in period from (inclusive) to
+     * (exclusive) by the database, no payment is retrieved.
+     *
+     * @param account
+     * Account with all specified atributes.
+     * @param from
+     * Start of the period, inclusive.
+     * @param to
+     * End of the period, exclusive, must not be before from.
+     * @return
+     * Returns turnover of the account in the period.
+     */
+    public Turnover findTurnover(Account account, Date from, Date to);
+
+    /**
+     * Does the same as findTurnover(account, from, to) for every day or month
+     * of the period separately.
+     *
+     * @param account
+     * Account with all specified atributes.
+     * @param from
+     * Start of the period, inclusive.
+     * @param to
+     * End of the period, exclusive, must not be before from.
+     * @param granularity
+     * Length of periods the payments are grouped by.
+     * @return
+     * Returns List of turnovers ordered by date, one for each day or month
+     * with some payment. The first and the last one are bounded by from and to.
+     */
+    public List<Turnover> findTurnoverByPeriod(Account account, Date from, Date to, Turnover.Granularity granularity);
+
+    /**
+     * Does the same as findTurnover(account, from, to) for all accounts at once.
+     *
+     * @param from
+     * Start of the period, inclusive.
+     * @param to
+     * End of the period, exclusive, must not be before from.
+     * @return
+     * Returns Map of turnovers by account id, accounts without payments in
+     * the period are missing.
+     */
+    public Map<Long, Turnover> findTurnoverOfAllAccounts(Date from, Date to);
+
+    /**
+     * Does the same as findTurnoverByPeriod(account, from, to, granularity),
+     * but reads one row of daily rollups per whole day of the period instead
+     * of all its payments. Only payments of the parts of the first and the
+     * last day are read. Rollups keep only count and sum, so minimum and
+     * maximum of returned aggregates are null.
+     *
+     * @param account
+     * Account with all specified atributes.
+     * @param from
+     * Start of the period, inclusive.
+     * @param to
+     * End of the period, exclusive, must not be before from.
+     * @param granularity
+     * Length of periods the payments are grouped by.
+     * @return
+     * Returns List of turnovers ordered by date, one for each day or month
+     * with some payment.
+     */
+    public List<Turnover> findRolledUpTurnover(Account account, Date from, Date to, Turnover.Granularity granularity);
 }
@@ -1,13 +1,21 @@
 package pv168;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
 import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,50 +25,75 @@ import org.slf4j.LoggerFactory;
  */
 public class BankingManagerImpl implements BankingManager {
 
+    /**
+     * Decides which balance is authoritative when executing a payment.
+     */
+    public enum ExecutionMode {
+        /**
+         * Balances of passed Account objects are checked and written back to
+         * the database. Concurrent payments from one account must be serialized
+         * by the caller, otherwise one update may overwrite the other.
+         */
+        CLIENT_BALANCE,
+        /**
+         * Balances are changed in the database by relative updates guarded by
+         * the current database balance. Rows of both accounts are locked in
+         * ascending id order, so payments between unrelated accounts run in
+         * parallel and payments sharing an account cannot deadlock.
+         */
+        DATABASE_BALANCE
+    }
+
+    private static final Comparator<Payment> PAYMENT_ORDER =
+            Comparator.comparing(Payment::getSent).thenComparing(Payment::getId);
+
+    private static final String AGGREGATES = "COUNT(*), SUM(amount), MIN(amount), MAX(amount)";
+
+    // payments of batches get ids from blocks reserved at once, see SchemaMigration.reservePaymentIds
+    private static final long ID_BLOCK = 1 << 16;
+
     private final DataSource dataSource;
+    private final ExecutionMode mode;
+    private final ChangeLog changeLog;
+    private int batchSize = 1000;
     private AccountManager accManager;
     private PaymentManager payManager;
+    // next free id and end of the reserved block, guarded by this
+    private long nextId;
+    private long idEnd;
     final static Logger log = LoggerFactory.getLogger(PaymentManagerImpl.class);
 
     public BankingManagerImpl(DataSource dataSource) {
+        this(dataSource, ExecutionMode.CLIENT_BALANCE);
+    }
+
+    public BankingManagerImpl(DataSource dataSource, ExecutionMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Execution mode is null!");
+        }
         this.dataSource = dataSource;
-        accManager = new AccountManagerImpl(dataSource);
+        this.mode = mode;
+        this.changeLog = ChangeLog.of(dataSource);
+        accManager = new CachingAccountManager(new AccountManagerImpl(dataSource));
         payManager = new PaymentManagerImpl(dataSource);
     }
 
     @Override
     public void executePayment(Payment payment) {
 
-        if (payment == null) {
-            log.warn("Operation failed: payment is null!");
-            throw new IllegalArgumentException("Payment is null!");
-        }
-        if (payment.getId() != null) {
-            log.warn("Operation failed: id is null!");
-            throw new IllegalArgumentException("Payment cannot have set id before execution!");
-        }
-        if (payment.getFrom() == null) {
-            log.warn("Operation failed: from account is null!");
-            throw new IllegalArgumentException("Sender must be specified to execute a payment!");
-        }
-        if (payment.getTo() == null) {
-            log.warn("Operation failed: to account is null!");
-            throw new IllegalArgumentException("Reciever must be specified to execute a payment!");
-        }
-        if (payment.getAmount() == null) {
-            log.warn("Operation failed: amount is null!");
-            throw new IllegalArgumentException("Ammount of money must be specified for payment!");
-        }
-        if (payment.getSent() != null) {
-            log.warn("Operation failed: date is null!");
-            throw new IllegalArgumentException("Timestamp of payment is assigned during this method!");
-        }
-        if (payment.getFrom().equals(payment.getTo())) {
-            log.warn("Operation failed: sender and receiver are the same accounts!");
-            throw new IllegalArgumentException("Sender and receiver are the same accounts!");
+        checkPaymentForExecution(payment);
+
+        if (mode == ExecutionMode.DATABASE_BALANCE) {
+            executePaymentInDatabase(payment);
+            return;
         }
 
-        if (payment.getFrom().getBalance().compareTo(payment.getAmount()) < 0) {
+        long amount = Cents.of(payment.getAmount());
+        BigDecimal fromBalance = payment.getFrom().getBalance();
+        BigDecimal toBalance = payment.getTo().getBalance();
+        long fromCents = Cents.of(fromBalance);
+
+        if (fromCents < amount) {
             log.warn("Operation failed: sending account does not have enough money for the payment {} !", payment);
             throw new InsufficientBalanceException("The sending account does not have enough money for the payment!");
         }
@@ -68,19 +101,21 @@ public class BankingManagerImpl implements BankingManager {
         try (Connection connection = dataSource.getConnection();) {
             connection.setAutoCommit(false);
 
-            payment.getFrom().setBalance(payment.getFrom().getBalance().subtract(payment.getAmount()));
-            payment.getTo().setBalance(payment.getTo().getBalance().add(payment.getAmount()));
-
-            payment.setSent(new Date());
+            int scale = payment.getAmount().scale();
+            payment.getFrom().setBalance(Cents.toBigDecimal(fromCents - amount, Math.max(fromBalance.scale(), scale)));
+            payment.getTo().setBalance(Cents.toBigDecimal(Cents.of(toBalance) + amount, Math.max(toBalance.scale(), scale)));
 
             try {
 
                 accManager.updateAccount(payment.getFrom(), connection);
                 accManager.updateAccount(payment.getTo(), connection);
 
+                // dated after the accounts are locked, see BalanceCheckpoints
+                payment.setSent(new Date());
                 payManager.createPayment(payment, connection);
 
                 connection.commit();
+                changeLog.committed(connection);
                 connection.setAutoCommit(true);
 
             } catch (Exception ex) {
@@ -90,6 +125,7 @@ public class BankingManagerImpl implements BankingManager {
                     log.error("Error during rollback!");
                     ex1.addSuppressed(ex);
                 }
+                changeLog.rolledBack(connection);
                 try {
                     connection.setAutoCommit(true);
                 } catch (SQLException ex2) {
@@ -100,8 +136,8 @@ public class BankingManagerImpl implements BankingManager {
                 payment.setSent(null);
                 payment.setId(null);
 
-                payment.getFrom().setBalance(payment.getFrom().getBalance().add(payment.getAmount()));
-                payment.getTo().setBalance(payment.getTo().getBalance().subtract(payment.getAmount()));
+                payment.getFrom().setBalance(fromBalance);
+                payment.getTo().setBalance(toBalance);
                 throw ex;
             }
 
@@ -112,13 +148,189 @@ public class BankingManagerImpl implements BankingManager {
 
     }
 
+    private void executePaymentInDatabase(Payment payment) {
+
+        Account from = payment.getFrom();
+        Account to = payment.getTo();
+
+        if (from.getId() == null || to.getId() == null) {
+            log.warn("Operation failed: account id is null!");
+            throw new IllegalArgumentException("Sender and receiver must be stored in the database!");
+        }
+        if (from.getId().equals(to.getId())) {
+            log.warn("Operation failed: sender and receiver are the same accounts!");
+            throw new IllegalArgumentException("Sender and receiver are the same accounts!");
+        }
+
+        try (Connection connection = dataSource.getConnection();) {
+            connection.setAutoCommit(false);
+
+            try {
+                // rows are locked by the updates, so always touch the lower id first
+                if (from.getId() < to.getId()) {
+                    debitAccount(connection, from, payment);
+                    creditAccount(connection, to, payment);
+                } else {
+                    creditAccount(connection, to, payment);
+                    debitAccount(connection, from, payment);
+                }
+
+                // dated after the accounts are locked, see BalanceCheckpoints
+                payment.setSent(new Date());
+                payManager.createPayment(payment, connection);
+
+                BigDecimal fromBalance = findBalance(connection, from);
+                BigDecimal toBalance = findBalance(connection, to);
+
+                connection.commit();
+                changeLog.committed(connection);
+                connection.setAutoCommit(true);
+
+                from.setBalance(fromBalance);
+                to.setBalance(toBalance);
+
+            } catch (Exception ex) {
+                try {
+                    connection.rollback();
+                } catch (SQLException ex1) {
+                    log.error("Error during rollback!");
+                    ex1.addSuppressed(ex);
+                }
+                changeLog.rolledBack(connection);
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException ex2) {
+                    log.error("Error while enabling autocommit!");
+                    ex2.addSuppressed(ex);
+                }
+
+                payment.setSent(null);
+                payment.setId(null);
+                throw ex;
+            }
+
+        } catch (SQLException ex) {
+            log.error("Failed to execute payment {}", payment);
+            throw new ServiceFailureException("Failed to execute payment " + payment, ex);
+        }
+    }
+
+    private void debitAccount(Connection con, Account account, Payment payment) throws SQLException {
+
+        try (PreparedStatement prepStatement = con.prepareStatement(
+                "UPDATE account SET balance = balance - ? WHERE id = ? AND balance >= ?")) {
+            prepStatement.setBigDecimal(1, payment.getAmount());
+            prepStatement.setLong(2, account.getId());
+            prepStatement.setBigDecimal(3, payment.getAmount());
+
+            if (prepStatement.executeUpdate() == 1) {
+                changeLog.record(con, ChangeLog.Entity.ACCOUNT, ChangeLog.Kind.UPDATED, account.getId());
+                return;
+            }
+        }
+
+        if (findBalance(con, account) == null) {
+            log.error("Entity {} not found", account);
+            throw new EntityNotFoundException("Account " + account + "was not found in the database!");
+        }
+        log.warn("Operation failed: sending account does not have enough money for the payment {} !", payment);
+        throw new InsufficientBalanceException("The sending account does not have enough money for the payment!");
+    }
+
+    private void creditAccount(Connection con, Account account, Payment payment) throws SQLException {
+
+        try (PreparedStatement prepStatement = con.prepareStatement(
+                "UPDATE account SET balance = balance + ? WHERE id = ?")) {
+            prepStatement.setBigDecimal(1, payment.getAmount());
+            prepStatement.setLong(2, account.getId());
+
+            if (prepStatement.executeUpdate() != 1) {
+                log.error("Entity {} not found", account);
+                throw new EntityNotFoundException("Account " + account + "was not found in the database!");
+            }
+            changeLog.record(con, ChangeLog.Entity.ACCOUNT, ChangeLog.Kind.UPDATED, account.getId());
+        }
+    }
+
+    private BigDecimal findBalance(Connection con, Account account) throws SQLException {
+
+        try (PreparedStatement prepStatement = con.prepareStatement(
+                "SELECT balance FROM account WHERE id = ?")) {
+            prepStatement.setLong(1, account.getId());
+
+            ResultSet rs = prepStatement.executeQuery();
+            return rs.next() ? rs.getBigDecimal("balance") : null;
+        }
+    }
+
+    @Override
+    public List<PaymentResult> executePayments(List<Payment> payments) {
+
+        if (payments == null) {
+            log.warn("Operation failed: payments are null!");
+            throw new IllegalArgumentException("Payments are null!");
+        }
+        long[] amounts = new long[payments.size()];
+        for (int i = 0; i < payments.size(); i++) {
+            Payment payment = payments.get(i);
+            checkPaymentForExecution(payment);
+            amounts[i] = Cents.of(payment.getAmount());
+            if (payment.getFrom().getId() == null || payment.getTo().getId() == null) {
+                log.warn("Operation failed: account id is null!");
+                throw new IllegalArgumentException("Sender and receiver must be stored in the database!");
+            }
+            if (payment.getFrom().getId().equals(payment.getTo().getId())) {
+                log.warn("Operation failed: sender and receiver are the same accounts!");
+                throw new IllegalArgumentException("Sender and receiver are the same accounts!");
+            }
+        }
+
+        List<PaymentResult> results = new ArrayList<>(payments.size());
+
+        try (Connection connection = dataSource.getConnection();) {
+            connection.setAutoCommit(false);
+
+            try {
+                for (int start = 0; start < payments.size(); start += batchSize) {
+                    List<Payment> batch = payments.subList(start, Math.min(start + batchSize, payments.size()));
+                    results.addAll(executeBatch(connection, batch, amounts, start));
+                }
+            } finally {
+                connection.setAutoCommit(true);
+            }
+
+        } catch (SQLException ex) {
+            log.error("Failed to execute payments, {} of them were executed", results.size());
+            throw new ServiceFailureException("Failed to execute payments, first "
+                    + results.size() + " of them were executed", ex);
+        }
+
+        log.info("{} payments were processed", payments.size());
+        return results;
+    }
+
+    /**
+     * Sets how many payments executePayments(payments) groups into one
+     * transaction.
+     *
+     * @param batchSize
+     * Positive number of payments per transaction.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        this.batchSize = batchSize;
+    }
+
     @Override
     public List<Payment> findAllIncomingPaymentsToAccount(Account account) {
 
         validateAccount(account);
 
         try (Connection connection = dataSource.getConnection();
-                PreparedStatement incomingPayments = connection.prepareStatement("SELECT * FROM payment WHERE toAcc = ?");) {
+                PreparedStatement incomingPayments = connection.prepareStatement(
+                        PaymentManagerImpl.SELECT_PAYMENTS_WITH_ACCOUNTS + " WHERE p.toAcc = ?");) {
 
             return processStatementToList(incomingPayments, account, connection);
 
@@ -135,7 +347,8 @@ public class BankingManagerImpl implements BankingManager {
         validateAccount(account);
 
         try (Connection connection = dataSource.getConnection();
-                PreparedStatement incomingPayments = connection.prepareStatement("SELECT * FROM payment WHERE fromAcc = ?");) {
+                PreparedStatement incomingPayments = connection.prepareStatement(
+                        PaymentManagerImpl.SELECT_PAYMENTS_WITH_ACCOUNTS + " WHERE p.fromAcc = ?");) {
 
             return processStatementToList(incomingPayments, account, connection);
 
@@ -145,23 +358,780 @@ public class BankingManagerImpl implements BankingManager {
         }
     }
 
-    private List<Payment> processStatementToList(PreparedStatement stmt, Account account, Connection con) throws SQLException {
+    /**
+     * Executes payments of the batch in one transaction.
+     *
+     * @param amounts
+     * Amounts of all payments in cents, the batch starts at index start.
+     */
+    private List<PaymentResult> executeBatch(Connection con, List<Payment> batch, long[] amounts, int start)
+            throws SQLException {
+
+        try {
+            // reserved before any lock is held, the reservation waits for transactions inserting payments
+            long firstId = takeIds(batch.size());
+            // lock all accounts of the batch in ascending id order before reading balances
+            AccountBalances balances = lockAccounts(con, batch);
+            // dated after the accounts are locked, see BalanceCheckpoints
+            Date sent = new Date();
+
+            List<PaymentResult> results = new ArrayList<>(batch.size());
+            List<Payment> executed = new ArrayList<>();
+
+            for (int i = 0; i < batch.size(); i++) {
+                Payment payment = batch.get(i);
+                long amount = amounts[start + i];
+                int from = balances.indexOf(payment.getFrom().getId());
+                int to = balances.indexOf(payment.getTo().getId());
+
+                if (from < 0 || to < 0) {
+                    results.add(PaymentResult.ACCOUNT_NOT_FOUND);
+                } else if (balances.cents[from] < amount) {
+                    results.add(PaymentResult.INSUFFICIENT_BALANCE);
+                } else {
+                    balances.cents[from] -= amount;
+                    balances.cents[to] += amount;
+                    balances.changed[from] = true;
+                    balances.changed[to] = true;
+                    payment.setSent(sent);
+                    executed.add(payment);
+                    results.add(PaymentResult.EXECUTED);
+                }
+            }
+
+            if (!executed.isEmpty()) {
+                updateBalances(con, balances);
+                insertPayments(con, executed, firstId);
+            }
+            con.commit();
+            changeLog.committed(con);
+
+            for (Payment payment : executed) {
+                payment.getFrom().setBalance(balances.toBigDecimal(payment.getFrom().getId()));
+                payment.getTo().setBalance(balances.toBigDecimal(payment.getTo().getId()));
+            }
+            return results;
+
+        } catch (Exception ex) {
+            try {
+                con.rollback();
+            } catch (SQLException ex1) {
+                log.error("Error during rollback!");
+                ex1.addSuppressed(ex);
+            }
+            changeLog.rolledBack(con);
+            for (Payment payment : batch) {
+                payment.setSent(null);
+                payment.setId(null);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Balances of accounts of a batch in cents, indexed by position of the
+     * account id in ascending ids.
+     */
+    private static final class AccountBalances {
+
+        private final long[] ids;
+        private final long[] cents;
+        private final boolean[] found;
+        private final boolean[] changed;
+
+        AccountBalances(long[] ids) {
+            this.ids = ids;
+            this.cents = new long[ids.length];
+            this.found = new boolean[ids.length];
+            this.changed = new boolean[ids.length];
+        }
+
+        /**
+         * @return
+         * Returns index of the account, negative if it does not exist.
+         */
+        int indexOf(long id) {
+            int index = Arrays.binarySearch(ids, id);
+            return index >= 0 && found[index] ? index : -1;
+        }
+
+        BigDecimal toBigDecimal(long id) {
+            return Cents.toBigDecimal(cents[indexOf(id)]);
+        }
+    }
+
+    private AccountBalances lockAccounts(Connection con, List<Payment> batch) throws SQLException {
+
+        long[] all = new long[batch.size() * 2];
+        for (int i = 0; i < batch.size(); i++) {
+            all[2 * i] = batch.get(i).getFrom().getId();
+            all[2 * i + 1] = batch.get(i).getTo().getId();
+        }
+        long[] ids = Arrays.stream(all).sorted().distinct().toArray();
+
+        StringBuilder sql = new StringBuilder("SELECT id, balance FROM account WHERE id IN (");
+        for (int i = 0; i < ids.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(")");
+
+        try (PreparedStatement lock = con.prepareStatement(
+                "UPDATE account SET balance = balance WHERE id = ?");
+                PreparedStatement select = con.prepareStatement(sql.toString())) {
+
+            int i = 1;
+            for (long id : ids) {
+                lock.setLong(1, id);
+                lock.addBatch();
+                select.setLong(i++, id);
+            }
+            lock.executeBatch();
+
+            AccountBalances balances = new AccountBalances(ids);
+            ResultSet rs = select.executeQuery();
+            while (rs.next()) {
+                int index = Arrays.binarySearch(ids, rs.getLong("id"));
+                balances.cents[index] = Cents.read(rs, "balance");
+                balances.found[index] = true;
+            }
+            return balances;
+        }
+    }
+
+    private void updateBalances(Connection con, AccountBalances balances) throws SQLException {
+
+        try (PreparedStatement prepStatement = con.prepareStatement(
+                "UPDATE account SET balance = ? WHERE id = ?")) {
+            for (int i = 0; i < balances.ids.length; i++) {
+                if (balances.changed[i]) {
+                    prepStatement.setBigDecimal(1, Cents.toBigDecimal(balances.cents[i]));
+                    prepStatement.setLong(2, balances.ids[i]);
+                    prepStatement.addBatch();
+                }
+            }
+            prepStatement.executeBatch();
+        }
+        for (int i = 0; i < balances.ids.length; i++) {
+            if (balances.changed[i]) {
+                changeLog.record(con, ChangeLog.Entity.ACCOUNT, ChangeLog.Kind.UPDATED, balances.ids[i]);
+            }
+        }
+    }
+
+    /**
+     * Takes consecutive payment ids of the reserved block, reserves the next
+     * block when the rest is too small. Ids of payments which are not executed
+     * stay unused.
+     *
+     * @return
+     * Returns the first of count ids.
+     */
+    private synchronized long takeIds(int count) throws SQLException {
+        if (idEnd - nextId < count) {
+            long reserved = Math.max(ID_BLOCK, count);
+            nextId = SchemaMigration.reservePaymentIds(dataSource, idEnd, reserved);
+            idEnd = nextId + reserved;
+        }
+        long first = nextId;
+        nextId += count;
+        return first;
+    }
+
+    private void insertPayments(Connection con, List<Payment> executed, long firstId) throws SQLException {
+
+        try (PreparedStatement prepStatement = con.prepareStatement(
+                "INSERT INTO PAYMENT (id, amount, fromAcc, toAcc, dateSent) VALUES (?,?,?,?,?)")) {
+
+            DailyRollup rollup = new DailyRollup();
+            long id = firstId;
+            for (Payment payment : executed) {
+                payment.setId(id++);
+                prepStatement.setLong(1, payment.getId());
+                prepStatement.setBigDecimal(2, payment.getAmount());
+                prepStatement.setLong(3, payment.getFrom().getId());
+                prepStatement.setLong(4, payment.getTo().getId());
+                prepStatement.setTimestamp(5, new java.sql.Timestamp(payment.getSent().getTime()));
+                prepStatement.addBatch();
+                rollup.add(payment);
+            }
+            prepStatement.executeBatch();
+
+            for (Payment payment : executed) {
+                changeLog.record(con, ChangeLog.Entity.PAYMENT, ChangeLog.Kind.CREATED, payment.getId());
+            }
+            rollup.apply(con);
+        }
+    }
+
+    @Override
+    public List<Payment> findIncomingPaymentsToAccount(Account account, Long afterId, int limit) {
+
+        validateAccount(account);
+        AccountManagerImpl.checkLimit(limit);
+
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement incomingPayments = connection.prepareStatement(
+                        PaymentManagerImpl.SELECT_PAYMENTS_WITH_ACCOUNTS
+                        + " WHERE p.toAcc = ? AND p.id > ? ORDER BY p.id FETCH FIRST ? ROWS ONLY");) {
+
+            return processPageToList(incomingPayments, account, afterId, limit, connection);
+
+        } catch (SQLException ex) {
+            log.error("Failed to retrieve incoming payments to account {}", account);
+            throw new ServiceFailureException("Failed to retrieve incoming payments to account " + account, ex);
+        }
+    }
+
+    @Override
+    public List<Payment> findOutgoingPaymentsToAccount(Account account, Long afterId, int limit) {
+
+        validateAccount(account);
+        AccountManagerImpl.checkLimit(limit);
+
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement outgoingPayments = connection.prepareStatement(
+                        PaymentManagerImpl.SELECT_PAYMENTS_WITH_ACCOUNTS
+                        + " WHERE p.fromAcc = ? AND p.id > ? ORDER BY p.id FETCH FIRST ? ROWS ONLY");) {
+
+            return processPageToList(outgoingPayments, account, afterId, limit, connection);
+
+        } catch (SQLException ex) {
+            log.error("Failed to retrieve incoming payments from account {}", account);
+            throw new ServiceFailureException("Failed to retrieve outgoing payments from account " + account, ex);
+        }
+    }
+
+    @Override
+    public Stream<Payment> streamIncomingPaymentsToAccount(Account account, int fetchSize) {
+
+        validateAccount(account);
+        checkAccountExists(account);
+
+        try {
+            return PaymentManagerImpl.streamPayments(dataSource,
+                    PaymentManagerImpl.SELECT_PAYMENTS_WITH_ACCOUNTS + " WHERE p.toAcc = ?", fetchSize, account.getId());
+        } catch (SQLException ex) {
+            log.error("Failed to retrieve incoming payments to account {}", account);
+            throw new ServiceFailureException("Failed to retrieve incoming payments to account " + account, ex);
+        }
+    }
+
+    @Override
+    public Stream<Payment> streamOutgoingPaymentsToAccount(Account account, int fetchSize) {
+
+        validateAccount(account);
+        checkAccountExists(account);
+
+        try {
+            return PaymentManagerImpl.streamPayments(dataSource,
+                    PaymentManagerImpl.SELECT_PAYMENTS_WITH_ACCOUNTS + " WHERE p.fromAcc = ?", fetchSize, account.getId());
+        } catch (SQLException ex) {
+            log.error("Failed to retrieve incoming payments from account {}", account);
+            throw new ServiceFailureException("Failed to retrieve outgoing payments from account " + account, ex);
+        }
+    }
+
+    @Override
+    public AccountStatement findStatement(Account account, Date from, Date to, int limit) {
+
+        validateAccount(account);
+        AccountManagerImpl.checkLimit(limit);
+        validatePeriod(from, to);
+
+        try (Connection connection = dataSource.getConnection();) {
+            int isolation = connection.getTransactionIsolation();
+            // the balance row stays locked until commit, payments change it before they
+            // are inserted, so sums below see exactly the payments included in the balance
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            connection.setAutoCommit(false);
+
+            try {
+                BigDecimal balance = findBalance(connection, account);
+                if (balance == null) {
+                    log.error("Entity not found {}", account);
+                    throw new EntityNotFoundException("Specified account does not exist!");
+                }
+                long balanceCents = Cents.of(balance);
+                BigDecimal closingBalance = Cents.toBigDecimal(balanceCents - sumPayments(connection, account, to, null));
+                BigDecimal openingBalance = Cents.toBigDecimal(balanceCents - sumPayments(connection, account, from, null));
+
+                List<Payment> incoming = findPaymentsInPeriod(connection, "p.toAcc", account, from, to, limit + 1);
+                List<Payment> outgoing = findPaymentsInPeriod(connection, "p.fromAcc", account, from, to, limit + 1);
+                connection.commit();
+
+                List<Payment> payments = mergeByDate(incoming, outgoing, limit + 1);
+                boolean truncated = payments.size() > limit;
+                if (truncated) {
+                    payments.remove(limit);
+                }
+                return new AccountStatement(account, from, to, openingBalance, closingBalance, payments, truncated);
+
+            } catch (Exception ex) {
+                try {
+                    connection.rollback();
+                } catch (SQLException ex1) {
+                    log.error("Error during rollback!");
+                    ex1.addSuppressed(ex);
+                }
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+                connection.setTransactionIsolation(isolation);
+            }
+
+        } catch (SQLException ex) {
+            log.error("Failed to retrieve statement of account {}", account);
+            throw new ServiceFailureException("Failed to retrieve statement of account " + account, ex);
+        }
+    }
+
+    /**
+     * Returns change of the balance of the account made by payments sent since
+     * given date until given date (exclusive), null for no end.
+     */
+    private long sumPayments(Connection con, Account account, Date since, Date until) throws SQLException {
+        return sumPayments(con, "toAcc", account, since, until) - sumPayments(con, "fromAcc", account, since, until);
+    }
+
+    private long sumPayments(Connection con, String column, Account account, Date since, Date until)
+            throws SQLException {
+
+        try (PreparedStatement prepStatement = con.prepareStatement(
+                "SELECT SUM(amount) FROM payment WHERE " + column + " = ? AND dateSent >= ?"
+                + (until == null ? "" : " AND dateSent < ?"))) {
+            prepStatement.setLong(1, account.getId());
+            prepStatement.setTimestamp(2, new java.sql.Timestamp(since.getTime()));
+            if (until != null) {
+                prepStatement.setTimestamp(3, new java.sql.Timestamp(until.getTime()));
+            }
+
+            ResultSet rs = prepStatement.executeQuery();
+            rs.next();
+            return Cents.read(rs, 1);
+        }
+    }
+
+    private List<Payment> findPaymentsInPeriod(Connection con, String column, Account account, Date from, Date to,
+            int limit) throws SQLException {
+
+        try (PreparedStatement prepStatement = con.prepareStatement(
+                PaymentManagerImpl.SELECT_PAYMENTS_WITH_ACCOUNTS + " WHERE " + column
+                + " = ? AND p.dateSent >= ? AND p.dateSent < ? ORDER BY p.dateSent, p.id FETCH FIRST ? ROWS ONLY")) {
+            prepStatement.setLong(1, account.getId());
+            prepStatement.setTimestamp(2, new java.sql.Timestamp(from.getTime()));
+            prepStatement.setTimestamp(3, new java.sql.Timestamp(to.getTime()));
+            prepStatement.setInt(4, limit);
+
+            return PaymentManagerImpl.resultSetToPaymentsWithAccounts(prepStatement.executeQuery());
+        }
+    }
+
+    private static List<Payment> mergeByDate(List<Payment> first, List<Payment> second, int limit) {
+
+        List<Payment> merged = new ArrayList<>(Math.min(limit, first.size() + second.size()));
+        int i = 0;
+        int j = 0;
+        while (merged.size() < limit && (i < first.size() || j < second.size())) {
+            if (j == second.size() || (i < first.size() && PAYMENT_ORDER.compare(first.get(i), second.get(j)) <= 0)) {
+                merged.add(first.get(i++));
+            } else {
+                merged.add(second.get(j++));
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    public BigDecimal findBalanceAt(Account account, Date date) {
+
+        validateAccount(account);
+        if (date == null) {
+            log.warn("Operation failed: date is null!");
+            throw new IllegalArgumentException("Date is null!");
+        }
+        checkAccountExists(account);
+
+        try (Connection connection = dataSource.getConnection();) {
+            try (PreparedStatement before = connection.prepareStatement("SELECT takenAt, balance FROM balance_checkpoint "
+                    + "WHERE accountId = ? AND takenAt <= ? ORDER BY takenAt DESC FETCH FIRST ROW ONLY")) {
+                before.setLong(1, account.getId());
+                before.setTimestamp(2, new java.sql.Timestamp(date.getTime()));
+
+                ResultSet rs = before.executeQuery();
+                if (rs.next()) {
+                    return Cents.toBigDecimal(Cents.read(rs, "balance")
+                            + sumPayments(connection, account, rs.getTimestamp("takenAt"), date));
+                }
+            }
+
+            // the account was created after the last checkpoint before the date
+            try (PreparedStatement after = connection.prepareStatement("SELECT takenAt, balance FROM balance_checkpoint "
+                    + "WHERE accountId = ? AND takenAt > ? ORDER BY takenAt FETCH FIRST ROW ONLY")) {
+                after.setLong(1, account.getId());
+                after.setTimestamp(2, new java.sql.Timestamp(date.getTime()));
+
+                ResultSet rs = after.executeQuery();
+                if (rs.next()) {
+                    return Cents.toBigDecimal(Cents.read(rs, "balance")
+                            - sumPayments(connection, account, date, rs.getTimestamp("takenAt")));
+                }
+            }
+        } catch (SQLException ex) {
+            log.error("Failed to retrieve balance of account {} at {}", account, date);
+            throw new ServiceFailureException("Failed to retrieve balance of account " + account + " at " + date, ex);
+        }
+
+        // no checkpoint of the account yet, the current balance is the nearest one
+        return findStatement(account, date, date, 1).getOpeningBalance();
+    }
+
+    @Override
+    public Turnover findTurnover(Account account, Date from, Date to) {
+
+        validateAccount(account);
+        validatePeriod(from, to);
+        checkAccountExists(account);
+
+        try (Connection connection = dataSource.getConnection();) {
+            String sql = "SELECT " + AGGREGATES + " FROM payment WHERE %s = ? AND dateSent >= ? AND dateSent < ?";
+            PaymentAggregate incoming = aggregate(connection, String.format(sql, "toAcc"),
+                    account.getId(), from, to, 0, rs -> account.getId()).get(account.getId());
+            PaymentAggregate outgoing = aggregate(connection, String.format(sql, "fromAcc"),
+                    account.getId(), from, to, 0, rs -> account.getId()).get(account.getId());
+
+            return new Turnover(account.getId(), from, to, incoming, outgoing);
+
+        } catch (SQLException ex) {
+            log.error("Failed to compute turnover of account {}", account);
+            throw new ServiceFailureException("Failed to compute turnover of account " + account, ex);
+        }
+    }
+
+    @Override
+    public List<Turnover> findTurnoverByPeriod(Account account, Date from, Date to, Turnover.Granularity granularity) {
+
+        validateAccount(account);
+        validatePeriod(from, to);
+        validateGranularity(granularity);
+
+        String groups = periodGroups(granularity, "dateSent");
+        String sql = "SELECT " + groups + ", " + AGGREGATES
+                + " FROM payment WHERE %s = ? AND dateSent >= ? AND dateSent < ? GROUP BY " + groups;
+        int groupColumns = granularity == Turnover.Granularity.DAY ? 3 : 2;
+        RowKey<Date> periodStart = periodStart(granularity);
+
+        checkAccountExists(account);
+
+        try (Connection connection = dataSource.getConnection();) {
+            Map<Date, PaymentAggregate> incoming = aggregate(connection, String.format(sql, "toAcc"),
+                    account.getId(), from, to, groupColumns, periodStart);
+            Map<Date, PaymentAggregate> outgoing = aggregate(connection, String.format(sql, "fromAcc"),
+                    account.getId(), from, to, groupColumns, periodStart);
+
+            TreeSet<Date> periods = new TreeSet<>(incoming.keySet());
+            periods.addAll(outgoing.keySet());
+
+            List<Turnover> result = new ArrayList<>(periods.size());
+            for (Date start : periods) {
+                Date end = periodEnd(start, granularity);
+                result.add(new Turnover(account.getId(),
+                        start.before(from) ? from : start,
+                        end.after(to) ? to : end,
+                        incoming.getOrDefault(start, PaymentAggregate.EMPTY),
+                        outgoing.getOrDefault(start, PaymentAggregate.EMPTY)));
+            }
+            return result;
+
+        } catch (SQLException ex) {
+            log.error("Failed to compute turnover of account {}", account);
+            throw new ServiceFailureException("Failed to compute turnover of account " + account, ex);
+        }
+    }
+
+    @Override
+    public Map<Long, Turnover> findTurnoverOfAllAccounts(Date from, Date to) {
+
+        validatePeriod(from, to);
+
+        try (Connection connection = dataSource.getConnection();) {
+            String sql = "SELECT %1$s, " + AGGREGATES
+                    + " FROM payment WHERE dateSent >= ? AND dateSent < ? GROUP BY %1$s";
+            Map<Long, PaymentAggregate> incoming = aggregate(connection, String.format(sql, "toAcc"),
+                    null, from, to, 1, rs -> rs.getLong(1));
+            Map<Long, PaymentAggregate> outgoing = aggregate(connection, String.format(sql, "fromAcc"),
+                    null, from, to, 1, rs -> rs.getLong(1));
+
+            Map<Long, Turnover> result = new HashMap<>();
+            TreeSet<Long> ids = new TreeSet<>(incoming.keySet());
+            ids.addAll(outgoing.keySet());
+            for (Long id : ids) {
+                result.put(id, new Turnover(id, from, to,
+                        incoming.getOrDefault(id, PaymentAggregate.EMPTY),
+                        outgoing.getOrDefault(id, PaymentAggregate.EMPTY)));
+            }
+            return result;
+
+        } catch (SQLException ex) {
+            log.error("Failed to compute turnover of accounts");
+            throw new ServiceFailureException("Failed to compute turnover of accounts", ex);
+        }
+    }
+
+    @Override
+    public List<Turnover> findRolledUpTurnover(Account account, Date from, Date to, Turnover.Granularity granularity) {
+
+        validateAccount(account);
+        validatePeriod(from, to);
+        validateGranularity(granularity);
+        checkAccountExists(account);
+
+        // whole days are read from the rollups, parts of the first and the last day from payments
+        Date firstDay = startOfDay(from);
+        if (firstDay.before(from)) {
+            firstDay = periodEnd(firstDay, Turnover.Granularity.DAY);
+        }
+        Date lastDay = startOfDay(to);
+        // count and sum of incoming and outgoing payments by period start
+        Map<Date, long[]> periods = new TreeMap<>();
+
+        Date headEnd = firstDay.before(to) ? firstDay : to;
+        Date tailStart = lastDay.after(headEnd) ? lastDay : headEnd;
+
+        try (Connection connection = dataSource.getConnection();) {
+            addExactTurnover(connection, account, from, headEnd, granularity, periods);
+            if (firstDay.before(lastDay)) {
+                addRolledUpTurnover(connection, account, firstDay, lastDay, granularity, periods);
+            }
+            addExactTurnover(connection, account, tailStart, to, granularity, periods);
+        } catch (SQLException ex) {
+            log.error("Failed to read rolled up turnover of account {}", account);
+            throw new ServiceFailureException("Failed to read rolled up turnover of account " + account, ex);
+        }
+
+        List<Turnover> result = new ArrayList<>(periods.size());
+        for (Map.Entry<Date, long[]> period : periods.entrySet()) {
+            long[] sums = period.getValue();
+            if (sums[0] == 0 && sums[2] == 0) {
+                // all payments of the period were deleted
+                continue;
+            }
+            Date start = period.getKey();
+            Date end = periodEnd(start, granularity);
+            result.add(new Turnover(account.getId(),
+                    start.before(from) ? from : start,
+                    end.after(to) ? to : end,
+                    sums[0] == 0 ? PaymentAggregate.EMPTY : new PaymentAggregate(sums[0], sums[1]),
+                    sums[2] == 0 ? PaymentAggregate.EMPTY : new PaymentAggregate(sums[2], sums[3])));
+        }
+        return result;
+    }
+
+    /**
+     * Adds daily rollups of whole days from fromDay to toDay to the periods.
+     */
+    private static void addRolledUpTurnover(Connection con, Account account, Date fromDay, Date toDay,
+            Turnover.Granularity granularity, Map<Date, long[]> periods) throws SQLException {
+
+        String groups = periodGroups(granularity, "sentDay");
+        RowKey<Date> periodStart = periodStart(granularity);
+        int groupColumns = granularity == Turnover.Granularity.DAY ? 3 : 2;
+
+        try (PreparedStatement prepStatement = con.prepareStatement("SELECT " + groups
+                + ", SUM(inCount), SUM(inSum), SUM(outCount), SUM(outSum) FROM payment_daily "
+                + "WHERE accountId = ? AND sentDay >= ? AND sentDay < ? GROUP BY " + groups)) {
+            prepStatement.setLong(1, account.getId());
+            prepStatement.setDate(2, new java.sql.Date(fromDay.getTime()));
+            prepStatement.setDate(3, new java.sql.Date(toDay.getTime()));
+
+            ResultSet rs = prepStatement.executeQuery();
+            while (rs.next()) {
+                long[] sums = periods.computeIfAbsent(periodStart.read(rs), start -> new long[4]);
+                sums[0] += rs.getLong(groupColumns + 1);
+                sums[1] += Cents.read(rs, groupColumns + 2);
+                sums[2] += rs.getLong(groupColumns + 3);
+                sums[3] += Cents.read(rs, groupColumns + 4);
+            }
+        }
+    }
+
+    /**
+     * Adds payments from from to to, which lie in one day, to the periods.
+     */
+    private static void addExactTurnover(Connection con, Account account, Date from, Date to,
+            Turnover.Granularity granularity, Map<Date, long[]> periods) throws SQLException {
+
+        if (!from.before(to)) {
+            return;
+        }
+        String sql = "SELECT " + AGGREGATES + " FROM payment WHERE %s = ? AND dateSent >= ? AND dateSent < ?";
+        PaymentAggregate incoming = aggregate(con, String.format(sql, "toAcc"),
+                account.getId(), from, to, 0, rs -> account.getId()).get(account.getId());
+        PaymentAggregate outgoing = aggregate(con, String.format(sql, "fromAcc"),
+                account.getId(), from, to, 0, rs -> account.getId()).get(account.getId());
+        if (incoming.getCount() == 0 && outgoing.getCount() == 0) {
+            return;
+        }
+
+        Calendar start = Calendar.getInstance();
+        start.setTime(startOfDay(from));
+        if (granularity == Turnover.Granularity.MONTH) {
+            start.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        long[] sums = periods.computeIfAbsent(start.getTime(), date -> new long[4]);
+        sums[0] += incoming.getCount();
+        sums[1] += Cents.of(incoming.getSum());
+        sums[2] += outgoing.getCount();
+        sums[3] += Cents.of(outgoing.getSum());
+    }
+
+    private static String periodGroups(Turnover.Granularity granularity, String column) {
+        String groups = "YEAR(" + column + "), MONTH(" + column + ")";
+        return granularity == Turnover.Granularity.DAY ? groups + ", DAY(" + column + ")" : groups;
+    }
+
+    /**
+     * Reads start of the period from columns of periodGroups(granularity, column).
+     */
+    private static RowKey<Date> periodStart(Turnover.Granularity granularity) {
+        return rs -> {
+            Calendar calendar = Calendar.getInstance();
+            calendar.clear();
+            calendar.set(rs.getInt(1), rs.getInt(2) - 1, granularity == Turnover.Granularity.DAY ? rs.getInt(3) : 1);
+            return calendar.getTime();
+        };
+    }
+
+    private static Date periodEnd(Date start, Turnover.Granularity granularity) {
+        Calendar end = Calendar.getInstance();
+        end.setTime(start);
+        end.add(granularity == Turnover.Granularity.DAY ? Calendar.DAY_OF_MONTH : Calendar.MONTH, 1);
+        return end.getTime();
+    }
+
+    private static Date startOfDay(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTime();
+    }
+
+    /**
+     * Reads key of a group of payments from the current row.
+     */
+    private interface RowKey<K> {
+
+        K read(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Executes aggregate query with parameters account id (if it is not null),
+     * from and to. Key columns are followed by AGGREGATES columns.
+     */
+    private static <K> Map<K, PaymentAggregate> aggregate(Connection con, String sql, Long accountId,
+            Date from, Date to, int keyColumns, RowKey<K> key) throws SQLException {
+
+        try (PreparedStatement prepStatement = con.prepareStatement(sql)) {
+            int i = 1;
+            if (accountId != null) {
+                prepStatement.setLong(i++, accountId);
+            }
+            prepStatement.setTimestamp(i++, new java.sql.Timestamp(from.getTime()));
+            prepStatement.setTimestamp(i, new java.sql.Timestamp(to.getTime()));
+
+            Map<K, PaymentAggregate> result = new HashMap<>();
+            ResultSet rs = prepStatement.executeQuery();
+            while (rs.next()) {
+                long count = rs.getLong(keyColumns + 1);
+                result.put(key.read(rs), count == 0 ? PaymentAggregate.EMPTY : new PaymentAggregate(count,
+                        Cents.read(rs, keyColumns + 2),
+                        Cents.read(rs, keyColumns + 3),
+                        Cents.read(rs, keyColumns + 4)));
+            }
+            return result;
+        }
+    }
+
+    private static void validateGranularity(Turnover.Granularity granularity) {
+        if (granularity == null) {
+            log.warn("Operation failed: granularity is null!");
+            throw new IllegalArgumentException("Granularity is null!");
+        }
+    }
+
+    private static void validatePeriod(Date from, Date to) {
+        if (from == null || to == null) {
+            log.warn("Operation failed: period is null!");
+            throw new IllegalArgumentException("Start and end of the period must be specified!");
+        }
+        if (to.before(from)) {
+            log.warn("Operation failed: period ends before it starts!");
+            throw new IllegalArgumentException("End of the period is before its start!");
+        }
+    }
+
+    private void checkAccountExists(Account account) {
         if (accManager.findAccountById(account.getId()) == null) {
             log.error("Entity not found {}", account);
             throw new EntityNotFoundException("Specified account does not exist!");
         }
+    }
+
+    private List<Payment> processStatementToList(PreparedStatement stmt, Account account, Connection con) throws SQLException {
+        if (accManager.findAccountById(account.getId(), con) == null) {
+            log.error("Entity not found {}", account);
+            throw new EntityNotFoundException("Specified account does not exist!");
+        }
 
         stmt.setLong(1, account.getId());
 
         ResultSet result = stmt.executeQuery();
 
-        List<Payment> resultList = new ArrayList<>();
+        return PaymentManagerImpl.resultSetToPaymentsWithAccounts(result);
+    }
 
-        while (result.next()) {
-            resultList.add(PaymentManagerImpl.resultSetToPayment(result, con));
+    private void checkPaymentForExecution(Payment payment) {
+        if (payment == null) {
+            log.warn("Operation failed: payment is null!");
+            throw new IllegalArgumentException("Payment is null!");
         }
+        if (payment.getId() != null) {
+            log.warn("Operation failed: id is null!");
+            throw new IllegalArgumentException("Payment cannot have set id before execution!");
+        }
+        if (payment.getFrom() == null) {
+            log.warn("Operation failed: from account is null!");
+            throw new IllegalArgumentException("Sender must be specified to execute a payment!");
+        }
+        if (payment.getTo() == null) {
+            log.warn("Operation failed: to account is null!");
+            throw new IllegalArgumentException("Reciever must be specified to execute a payment!");
+        }
+        if (payment.getAmount() == null) {
+            log.warn("Operation failed: amount is null!");
+            throw new IllegalArgumentException("Ammount of money must be specified for payment!");
+        }
+        if (payment.getAmount().signum() <= 0) {
+            log.warn("Operation failed: amount is not positive!");
+            throw new IllegalArgumentException("Amount of money must be positive!");
+        }
+        if (payment.getSent() != null) {
+            log.warn("Operation failed: date is null!");
+            throw new IllegalArgumentException("Timestamp of payment is assigned during this method!");
+        }
+        if (payment.getFrom().equals(payment.getTo())) {
+            log.warn("Operation failed: sender and receiver are the same accounts!");
+            throw new IllegalArgumentException("Sender and receiver are the same accounts!");
+        }
+    }
 
-        return resultList;
+    private List<Payment> processPageToList(PreparedStatement stmt, Account account, Long afterId, int limit,
+            Connection con) throws SQLException {
+        stmt.setLong(2, afterId == null ? Long.MIN_VALUE : afterId);
+        stmt.setInt(3, limit);
+        return processStatementToList(stmt, account, con);
     }
 
     private void validateAccount(Account account) {
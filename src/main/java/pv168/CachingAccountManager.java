@@ -0,0 +1,322 @@
+package pv168;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * AccountManager which keeps recently used accounts in memory and delegates
+ * everything else to another AccountManager.
+ *
+ * At most maxSize accounts are cached, the least recently used one is evicted
+ * first. Accounts written through this manager are put to the cache once the
+ * write is committed. Accounts changed by any other manager using the same
+ * DataSource are evicted using the ChangeLog before every cache lookup.
+ *
+ * Methods taking a Connection with autocommit switched off run inside of a
+ * transaction which may be rolled back, so they never read from nor write to
+ * the cache, written accounts are only evicted.
+ *
+ * Cached accounts are never handed out, callers get copies.
+ */
+public class CachingAccountManager implements AccountManager {
+
+    /**
+     * Number of cached accounts used by CachingAccountManager(delegate).
+     */
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final AccountManager delegate;
+    private final int maxSize;
+    private final Map<Long, Account> cache;
+    private long seenVersion;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    final static Logger log = LoggerFactory.getLogger(CachingAccountManager.class);
+
+    public CachingAccountManager(AccountManager delegate) {
+        this(delegate, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param delegate
+     * Manager used for everything which can not be served from the cache.
+     * @param maxSize
+     * Maximal number of cached accounts, must be positive.
+     */
+    public CachingAccountManager(AccountManager delegate, int maxSize) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate manager is null!");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive, was " + maxSize);
+        }
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+        this.seenVersion = delegate.getChangeVersion();
+        this.cache = new LinkedHashMap<Long, Account>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Account> eldest) {
+                if (size() > CachingAccountManager.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public void createAccount(Account account) {
+        long version = delegate.getChangeVersion();
+        delegate.createAccount(account);
+        writeThrough(account, version);
+    }
+
+    @Override
+    public void createAccount(Account account, Connection con) throws SQLException {
+        long version = delegate.getChangeVersion();
+        delegate.createAccount(account, con);
+        if (isAutoCommit(con)) {
+            writeThrough(account, version);
+        }
+    }
+
+    @Override
+    public void createAccounts(Collection<Account> accounts) {
+        delegate.createAccounts(accounts);
+    }
+
+    @Override
+    public void createAccounts(Collection<Account> accounts, Connection con) {
+        delegate.createAccounts(accounts, con);
+    }
+
+    @Override
+    public void deleteAccount(Account account) {
+        delegate.deleteAccount(account);
+        evict(account.getId());
+    }
+
+    @Override
+    public void deleteAccount(Account account, Connection con) {
+        delegate.deleteAccount(account, con);
+        evict(account.getId());
+    }
+
+    @Override
+    public void updateAccount(Account account) {
+        long version = delegate.getChangeVersion();
+        try {
+            delegate.updateAccount(account);
+        } catch (RuntimeException ex) {
+            evict(account == null ? null : account.getId());
+            throw ex;
+        }
+        writeThrough(account, version);
+    }
+
+    @Override
+    public void updateAccount(Account account, Connection con) {
+        long version = delegate.getChangeVersion();
+        try {
+            delegate.updateAccount(account, con);
+        } catch (RuntimeException ex) {
+            evict(account == null ? null : account.getId());
+            throw ex;
+        }
+        if (isAutoCommit(con)) {
+            writeThrough(account, version);
+        } else {
+            evict(account.getId());
+        }
+    }
+
+    @Override
+    public Account findAccountById(Long id) {
+        return findCachedAccountById(id, null);
+    }
+
+    @Override
+    public Account findAccountById(Long id, Connection con) {
+        if (!isAutoCommit(con)) {
+            return delegate.findAccountById(id, con);
+        }
+        return findCachedAccountById(id, con);
+    }
+
+    private Account findCachedAccountById(Long id, Connection con) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id is null!");
+        }
+
+        long version;
+        synchronized (this) {
+            syncWithChangeLog();
+            Account cached = cache.get(id);
+            if (cached != null) {
+                hits++;
+                return copy(cached);
+            }
+            misses++;
+            version = seenVersion;
+        }
+
+        Account account = con == null ? delegate.findAccountById(id) : delegate.findAccountById(id, con);
+
+        synchronized (this) {
+            syncWithChangeLog();
+            // account may have been changed while it was read
+            if (account != null && version == seenVersion) {
+                cache.put(id, copy(account));
+            }
+        }
+        return account;
+    }
+
+    @Override
+    public List<Account> findAllAccounts() {
+        return delegate.findAllAccounts();
+    }
+
+    @Override
+    public List<Account> findAllAccounts(Connection con) {
+        return delegate.findAllAccounts(con);
+    }
+
+    @Override
+    public Stream<Account> streamAllAccounts(int fetchSize) {
+        return delegate.streamAllAccounts(fetchSize);
+    }
+
+    @Override
+    public List<Account> findAccounts(Long afterId, int limit) {
+        return delegate.findAccounts(afterId, limit);
+    }
+
+    @Override
+    public List<Account> findAccounts(Long afterId, int skip, int limit) {
+        return delegate.findAccounts(afterId, skip, limit);
+    }
+
+    @Override
+    public int countAccounts() {
+        return delegate.countAccounts();
+    }
+
+    @Override
+    public long getChangeVersion() {
+        return delegate.getChangeVersion();
+    }
+
+    @Override
+    public List<ChangeLog.Change> findAccountChangesSince(long version) {
+        return delegate.findAccountChangesSince(version);
+    }
+
+    /**
+     * @return
+     * Returns number of findAccountById calls served from the cache.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return
+     * Returns number of findAccountById calls which had to read the database.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return
+     * Returns number of accounts evicted because the cache was full.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return
+     * Returns number of currently cached accounts.
+     */
+    public synchronized int getSize() {
+        return cache.size();
+    }
+
+    /**
+     * Evicts all cached accounts, counters are kept.
+     */
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    private synchronized void writeThrough(Account account, long version) {
+        syncWithChangeLog();
+        // cache the account only if nobody else changed it since it was written
+        List<ChangeLog.Change> changes = delegate.findAccountChangesSince(version);
+        int changesOfAccount = 0;
+        if (changes != null) {
+            for (ChangeLog.Change change : changes) {
+                if (account.getId().equals(change.getId())) {
+                    changesOfAccount++;
+                }
+            }
+        }
+        if (changes != null && changesOfAccount == 1) {
+            cache.put(account.getId(), copy(account));
+        }
+    }
+
+    private synchronized void evict(Long id) {
+        if (id != null) {
+            cache.remove(id);
+        }
+    }
+
+    private void syncWithChangeLog() {
+        long version = delegate.getChangeVersion();
+        if (version == seenVersion) {
+            return;
+        }
+        List<ChangeLog.Change> changes = delegate.findAccountChangesSince(seenVersion);
+        if (changes == null) {
+            log.debug("change log was trimmed, all {} cached accounts are evicted", cache.size());
+            cache.clear();
+        } else {
+            for (ChangeLog.Change change : changes) {
+                cache.remove(change.getId());
+                version = Math.max(version, change.getVersion());
+            }
+        }
+        seenVersion = version;
+    }
+
+    private static boolean isAutoCommit(Connection con) {
+        if (con == null) {
+            throw new IllegalArgumentException("Connection is null!");
+        }
+        try {
+            return con.getAutoCommit();
+        } catch (SQLException ex) {
+            log.error("autocommit mode of connection could not be read");
+            throw new ServiceFailureException("Failed to read autocommit mode of connection", ex);
+        }
+    }
+
+    private static Account copy(Account account) {
+        Account copy = Account.newAccount(account.getOwner(), account.getBalance());
+        copy.setId(account.getId());
+        return copy;
+    }
+}
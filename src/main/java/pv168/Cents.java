@@ -0,0 +1,86 @@
+package pv168;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Money as a long number of cents. Columns balance and amount are
+ * DECIMAL(17,2), so every stored value fits in a long, and arithmetic on
+ * cents allocates nothing. Managers compute with cents internally and
+ * convert to BigDecimal only for values returned to callers.
+ */
+public final class Cents {
+
+    private static final int SCALE = 2;
+
+    private Cents() {
+    }
+
+    /**
+     * @param amount
+     * Amount with at most two decimal places.
+     * @return
+     * Returns the amount in cents.
+     * @throws IllegalArgumentException
+     * if the amount has more decimal places or does not fit in a long.
+     */
+    public static long of(BigDecimal amount) {
+        try {
+            // stays on the compact long representation, unlike unscaledValue()
+            return amount.movePointRight(SCALE).longValueExact();
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("Amount " + amount + " is not a whole number of cents!", ex);
+        }
+    }
+
+    /**
+     * @return
+     * Returns cents as an amount with two decimal places.
+     */
+    public static BigDecimal toBigDecimal(long cents) {
+        return BigDecimal.valueOf(cents, SCALE);
+    }
+
+    /**
+     * Converts cents back to the scale of the values they were computed from,
+     * so the result equals the result of BigDecimal arithmetic.
+     *
+     * @param scale
+     * Scale of the result, cents must be representable in it.
+     * @return
+     * Returns cents as an amount with given number of decimal places.
+     */
+    public static BigDecimal toBigDecimal(long cents, int scale) {
+        if (scale == SCALE - 1) {
+            return BigDecimal.valueOf(cents / 10, scale);
+        }
+        if (scale == 0) {
+            return BigDecimal.valueOf(cents / 100);
+        }
+        BigDecimal amount = BigDecimal.valueOf(cents, SCALE);
+        return scale == SCALE ? amount : amount.setScale(scale);
+    }
+
+    /**
+     * Reads DECIMAL column of the current row.
+     *
+     * @return
+     * Returns value of the column in cents, zero for SQL NULL.
+     */
+    static long read(ResultSet rs, int column) throws SQLException {
+        BigDecimal value = rs.getBigDecimal(column);
+        return value == null ? 0 : of(value);
+    }
+
+    /**
+     * Reads DECIMAL column of the current row.
+     *
+     * @return
+     * Returns value of the column in cents, zero for SQL NULL.
+     */
+    static long read(ResultSet rs, String column) throws SQLException {
+        BigDecimal value = rs.getBigDecimal(column);
+        return value == null ? 0 : of(value);
+    }
+}
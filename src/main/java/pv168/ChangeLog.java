@@ -0,0 +1,227 @@
+package pv168;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Log of accounts and payments changed by managers working with the same
+ * DataSource. Every change gets a version number, so views can ask for the
+ * changes made since the version they already show and reload only those
+ * rows. Changes done inside of a transaction are kept aside until the
+ * transaction is committed and forgotten if it is rolled back, so views never
+ * see rows which were not stored.
+ *
+ * Managers tell the log about the end of transactions they manage themselves.
+ * Callers passing their own connection in a transaction to manager methods
+ * have to call committed(con) or rolledBack(con) too. Changes of a
+ * transaction which ended without it are logged once its connection is
+ * closed or back in autocommit mode, whether they were committed or not, and
+ * a warning is logged.
+ *
+ * Only the last CAPACITY changes are kept.
+ */
+public final class ChangeLog {
+
+    static final int CAPACITY = 10000;
+
+    /**
+     * Changed table.
+     */
+    public enum Entity {
+        ACCOUNT, PAYMENT
+    }
+
+    /**
+     * Kind of change.
+     */
+    public enum Kind {
+        CREATED, UPDATED, DELETED
+    }
+
+    /**
+     * One change of one row.
+     */
+    public static final class Change {
+
+        private final long version;
+        private final Entity entity;
+        private final Kind kind;
+        private final Long id;
+
+        Change(long version, Entity entity, Kind kind, Long id) {
+            this.version = version;
+            this.entity = entity;
+            this.kind = kind;
+            this.id = id;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public Entity getEntity() {
+            return entity;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return "Change{" + "version=" + version + ", entity=" + entity + ", kind=" + kind + ", id=" + id + '}';
+        }
+    }
+
+    private static final Map<DataSource, ChangeLog> LOGS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Deque<Change> changes = new ArrayDeque<>();
+    private long version = 0;
+    // changes of transactions which were not committed yet, version is not assigned
+    private final Map<Connection, List<Change>> pending = new WeakHashMap<>();
+
+    final static Logger log = LoggerFactory.getLogger(ChangeLog.class);
+
+    private ChangeLog() {
+    }
+
+    /**
+     * @return
+     * Returns change log shared by all managers of given DataSource.
+     */
+    public static ChangeLog of(DataSource dataSource) {
+        return LOGS.computeIfAbsent(dataSource, ds -> new ChangeLog());
+    }
+
+    /**
+     * @return
+     * Returns version of the last logged change, 0 if nothing was changed yet.
+     */
+    public synchronized long getVersion() {
+        recordUnreported();
+        return version;
+    }
+
+    /**
+     * Logs change done on given connection, right away in autocommit mode,
+     * otherwise when its transaction is committed.
+     */
+    void record(Connection con, Entity entity, Kind kind, Long id) throws SQLException {
+        if (con.getAutoCommit()) {
+            synchronized (this) {
+                recordUnreported();
+                record(entity, kind, id);
+            }
+            return;
+        }
+        synchronized (this) {
+            pending.computeIfAbsent(con, c -> new ArrayList<>()).add(new Change(0, entity, kind, id));
+        }
+    }
+
+    /**
+     * Logs changes done in the transaction of given connection, must be called
+     * after the transaction was committed.
+     */
+    public synchronized void committed(Connection con) {
+        List<Change> committed = pending.remove(con);
+        if (committed != null) {
+            for (Change change : committed) {
+                record(change.getEntity(), change.getKind(), change.getId());
+            }
+        }
+    }
+
+    /**
+     * Forgets changes done in the transaction of given connection, must be
+     * called after the transaction was rolled back.
+     */
+    public synchronized void rolledBack(Connection con) {
+        pending.remove(con);
+    }
+
+    /**
+     * Logs changes of transactions which ended without committed(con) or
+     * rolledBack(con). It is not known whether they were committed, views
+     * rather reload rows which did not change than miss a change.
+     */
+    private void recordUnreported() {
+        for (Iterator<Map.Entry<Connection, List<Change>>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Connection, List<Change>> transaction = it.next();
+            if (hasEnded(transaction.getKey())) {
+                it.remove();
+                log.warn("{} changes were not reported by committed(con) or rolledBack(con)",
+                        transaction.getValue().size());
+                for (Change change : transaction.getValue()) {
+                    record(change.getEntity(), change.getKind(), change.getId());
+                }
+            }
+        }
+    }
+
+    private static boolean hasEnded(Connection con) {
+        try {
+            return con.isClosed() || con.getAutoCommit();
+        } catch (SQLException ex) {
+            return true;
+        }
+    }
+
+    synchronized void record(Entity entity, Kind kind, Long id) {
+        version++;
+        changes.addLast(new Change(version, entity, kind, id));
+        if (changes.size() > CAPACITY) {
+            changes.removeFirst();
+        }
+    }
+
+    /**
+     * Returns changes of given table logged after given version, oldest first.
+     *
+     * @param entity
+     * Changed table.
+     * @param sinceVersion
+     * Version already known to the caller.
+     * @return
+     * Returns List of changes, or null if some of the changes are no longer
+     * kept and caller has to reload everything.
+     */
+    public synchronized List<Change> findChangesSince(Entity entity, long sinceVersion) {
+        if (sinceVersion > version) {
+            throw new IllegalArgumentException("Version " + sinceVersion + " was not logged yet!");
+        }
+        recordUnreported();
+        if (sinceVersion < version - changes.size()) {
+            return null;
+        }
+
+        List<Change> result = new ArrayList<>();
+        Iterator<Change> it = changes.descendingIterator();
+        while (it.hasNext()) {
+            Change change = it.next();
+            if (change.getVersion() <= sinceVersion) {
+                break;
+            }
+            if (change.getEntity() == entity) {
+                result.add(change);
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+}
@@ -0,0 +1,313 @@
+package pv168;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains table payment_daily, which holds count and sum of incoming and
+ * outgoing payments of every account and day, so reports over long periods
+ * read one row per day instead of every payment.
+ *
+ * Changes of payments are collected by add() and remove() and written by
+ * apply(), which must be called in the transaction writing the payments.
+ * Rows are updated in ascending order of account id and day, so concurrent
+ * transactions cannot deadlock on them.
+ */
+public final class DailyRollup {
+
+    /**
+     * Inserts rollups of all payments of accounts selected by the condition
+     * appended to toAcc and fromAcc, e.g. "BETWEEN ? AND ?".
+     */
+    static final String INSERT_ROLLUPS = "INSERT INTO payment_daily "
+            + "(accountId, sentDay, inCount, inSum, outCount, outSum) "
+            + "SELECT accountId, sentDay, SUM(inCount), SUM(inSum), SUM(outCount), SUM(outSum) FROM ("
+            + "SELECT toAcc, DATE(dateSent), "
+            + "CAST(1 AS BIGINT), CAST(amount AS DECIMAL(31,2)), CAST(0 AS BIGINT), CAST(0 AS DECIMAL(31,2)) "
+            + "FROM payment WHERE toAcc %1$s "
+            + "UNION ALL "
+            + "SELECT fromAcc, DATE(dateSent), CAST(0 AS BIGINT), CAST(0 AS DECIMAL(31,2)), "
+            + "CAST(1 AS BIGINT), CAST(amount AS DECIMAL(31,2)) "
+            + "FROM payment WHERE fromAcc %1$s) t (accountId, sentDay, inCount, inSum, outCount, outSum) "
+            + "GROUP BY accountId, sentDay";
+
+    private static final String DUPLICATE_KEY = "23505";
+
+    final static Logger log = LoggerFactory.getLogger(DailyRollup.class);
+
+    /**
+     * Change of one row of payment_daily, sums in cents.
+     */
+    private static final class Delta {
+
+        private long inCount;
+        private long inSum;
+        private long outCount;
+        private long outSum;
+
+        boolean isZero() {
+            return inCount == 0 && outCount == 0 && inSum == 0 && outSum == 0;
+        }
+    }
+
+    // account id -> day -> change
+    private final Map<Long, Map<LocalDate, Delta>> deltas = new TreeMap<>();
+
+    /**
+     * Adds stored payment to rollups of both of its accounts.
+     */
+    DailyRollup add(Payment payment) {
+        return add(payment.getFrom().getId(), payment.getTo().getId(), payment.getSent(),
+                Cents.of(payment.getAmount()), 1);
+    }
+
+    /**
+     * Removes payment from rollups of both of its accounts, payment must have
+     * the values it was added with.
+     */
+    DailyRollup remove(Payment payment) {
+        return add(payment.getFrom().getId(), payment.getTo().getId(), payment.getSent(),
+                Cents.of(payment.getAmount()), -1);
+    }
+
+    /**
+     * Removes payment with given id as it is stored in the database.
+     *
+     * @return
+     * Returns false if no such payment exists.
+     */
+    boolean removeStored(Connection con, long paymentId) throws SQLException {
+
+        try (PreparedStatement prepStatement = con.prepareStatement(
+                "SELECT amount, fromAcc, toAcc, dateSent FROM payment WHERE id = ?")) {
+            prepStatement.setLong(1, paymentId);
+
+            ResultSet rs = prepStatement.executeQuery();
+            if (!rs.next()) {
+                return false;
+            }
+            add(rs.getLong("fromAcc"), rs.getLong("toAcc"), rs.getTimestamp("dateSent"), Cents.read(rs, "amount"), -1);
+            return true;
+        }
+    }
+
+    /**
+     * Adds (count 1) or removes (count -1) payment given by its values.
+     */
+    DailyRollup add(long from, long to, Date sent, long amount, int count) {
+        LocalDate day = dayOf(sent);
+
+        Delta out = delta(from, day);
+        out.outCount += count;
+        out.outSum += count * amount;
+
+        Delta in = delta(to, day);
+        in.inCount += count;
+        in.inSum += count * amount;
+        return this;
+    }
+
+    private Delta delta(long accountId, LocalDate day) {
+        return deltas.computeIfAbsent(accountId, id -> new TreeMap<>()).computeIfAbsent(day, d -> new Delta());
+    }
+
+    /**
+     * Writes collected changes and forgets them.
+     *
+     * @param con
+     * Connection of the transaction which changed the payments.
+     */
+    void apply(Connection con) throws SQLException {
+
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        List<Long> accounts = new ArrayList<>();
+        List<LocalDate> days = new ArrayList<>();
+        List<Delta> changes = new ArrayList<>();
+        for (Map.Entry<Long, Map<LocalDate, Delta>> account : deltas.entrySet()) {
+            for (Map.Entry<LocalDate, Delta> day : account.getValue().entrySet()) {
+                if (day.getValue().isZero()) {
+                    continue;
+                }
+                accounts.add(account.getKey());
+                days.add(day.getKey());
+                changes.add(day.getValue());
+            }
+        }
+        deltas.clear();
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        int[] updated;
+        try (PreparedStatement update = con.prepareStatement("UPDATE payment_daily SET "
+                + "inCount = inCount + ?, inSum = inSum + ?, outCount = outCount + ?, outSum = outSum + ? "
+                + "WHERE accountId = ? AND sentDay = ?")) {
+            for (int i = 0; i < changes.size(); i++) {
+                setDelta(update, changes.get(i));
+                update.setLong(5, accounts.get(i));
+                update.setDate(6, java.sql.Date.valueOf(days.get(i)));
+                update.addBatch();
+            }
+            updated = update.executeBatch();
+        }
+
+        for (int i = 0; i < changes.size(); i++) {
+            if (updated[i] == 0) {
+                insert(con, accounts.get(i), days.get(i), changes.get(i));
+            }
+        }
+    }
+
+    private static void insert(Connection con, long accountId, LocalDate day, Delta delta) throws SQLException {
+
+        try (PreparedStatement insert = con.prepareStatement("INSERT INTO payment_daily "
+                + "(inCount, inSum, outCount, outSum, accountId, sentDay) VALUES (?,?,?,?,?,?)")) {
+            setDelta(insert, delta);
+            insert.setLong(5, accountId);
+            insert.setDate(6, java.sql.Date.valueOf(day));
+            insert.executeUpdate();
+        } catch (SQLException ex) {
+            if (!DUPLICATE_KEY.equals(ex.getSQLState())) {
+                throw ex;
+            }
+            // the first payment of the day was stored concurrently, add to its row
+            DailyRollup retry = new DailyRollup();
+            retry.deltas.computeIfAbsent(accountId, id -> new TreeMap<>()).put(day, delta);
+            retry.apply(con);
+        }
+    }
+
+    private static void setDelta(PreparedStatement prepStatement, Delta delta) throws SQLException {
+        prepStatement.setLong(1, delta.inCount);
+        prepStatement.setBigDecimal(2, Cents.toBigDecimal(delta.inSum));
+        prepStatement.setLong(3, delta.outCount);
+        prepStatement.setBigDecimal(4, Cents.toBigDecimal(delta.outSum));
+    }
+
+    /**
+     * Recomputes table payment_daily from table payment, e.g. after payments
+     * were changed by SQL directly. Accounts are split into ranges of ids
+     * rebuilt in parallel, each in its own transaction. Payments can not be
+     * stored while a range is rebuilt.
+     *
+     * @param dataSource
+     * DataSource of the database.
+     * @param parallelism
+     * Number of ranges rebuilt at once, must be positive.
+     * @return
+     * Returns number of rows of payment_daily.
+     */
+    public static long rebuild(DataSource dataSource, int parallelism) {
+        if (dataSource == null) {
+            throw new IllegalArgumentException("Data source is null!");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive!");
+        }
+
+        long minId;
+        long maxId;
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement prepStatement = connection.prepareStatement("SELECT MIN(id), MAX(id) FROM account")) {
+            ResultSet rs = prepStatement.executeQuery();
+            rs.next();
+            minId = rs.getLong(1);
+            maxId = rs.getLong(2);
+        } catch (SQLException ex) {
+            log.error("daily rollups could not be rebuilt");
+            throw new ServiceFailureException("Failed to rebuild daily rollups!", ex);
+        }
+
+        long rangeSize = Math.max(1, (maxId - minId) / parallelism + 1);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<Long>> ranges = new ArrayList<>();
+            for (int i = 0; i < parallelism; i++) {
+                // the first and the last range are open, so no account can be missed
+                long low = i == 0 ? Long.MIN_VALUE : minId + i * rangeSize;
+                long high = i == parallelism - 1 ? Long.MAX_VALUE : minId + (i + 1) * rangeSize - 1;
+                ranges.add(executor.submit(() -> rebuildRange(dataSource, low, high)));
+            }
+
+            long rows = 0;
+            for (Future<Long> range : ranges) {
+                rows += range.get();
+            }
+            log.info("daily rollups were rebuilt, {} rows", rows);
+            return rows;
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceFailureException("Rebuild of daily rollups was interrupted!", ex);
+        } catch (ExecutionException ex) {
+            log.error("daily rollups could not be rebuilt");
+            throw new ServiceFailureException("Failed to rebuild daily rollups!", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long rebuildRange(DataSource dataSource, long low, long high) throws SQLException {
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                // payments of the range can not change until its rollups are rebuilt
+                try (PreparedStatement lock = connection.prepareStatement("LOCK TABLE payment IN SHARE MODE")) {
+                    lock.execute();
+                }
+                try (PreparedStatement delete = connection.prepareStatement(
+                        "DELETE FROM payment_daily WHERE accountId BETWEEN ? AND ?")) {
+                    delete.setLong(1, low);
+                    delete.setLong(2, high);
+                    delete.executeUpdate();
+                }
+                long rows;
+                try (PreparedStatement insert = connection.prepareStatement(
+                        String.format(INSERT_ROLLUPS, "BETWEEN ? AND ?"))) {
+                    insert.setLong(1, low);
+                    insert.setLong(2, high);
+                    insert.setLong(3, low);
+                    insert.setLong(4, high);
+                    rows = insert.executeUpdate();
+                }
+                connection.commit();
+                return rows;
+            } catch (SQLException | RuntimeException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * @return
+     * Returns day of the date in the default time zone, the same as
+     * DATE(dateSent) computed by the database.
+     */
+    static LocalDate dayOf(Date date) {
+        return Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+}
@@ -0,0 +1,418 @@
+package pv168;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DataSource measuring time spent by SQL statements. Connections, statements
+ * and result sets of the wrapped DataSource are wrapped into proxies which
+ * record prepare, execute and fetch time and number of fetched rows per
+ * normalized SQL text, see StatementStatistics.
+ *
+ * Executions taking at least slowThresholdMillis, including fetching of their
+ * rows, are logged as warnings together with their bind parameters.
+ *
+ * Time spent waiting for connections in getConnection() is recorded too,
+ * together with number of waiting threads and failed attempts, see
+ * PoolMetrics.
+ *
+ * SQL is normalized by collapsing whitespace, replacing literals by ? and
+ * lists of parameters like IN (?, ?, ?) by (?, ...), so statements differing
+ * only in their values share statistics.
+ */
+public class InstrumentedDataSource implements DataSource {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+    private static final int NORMALIZED_CACHE_SIZE = 1000;
+    private static final String BATCH = "<statement batch>";
+
+    private final DataSource dataSource;
+    private final long slowThresholdNanos;
+    private final ConcurrentMap<String, StatementStatistics> statistics = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> normalized = new ConcurrentHashMap<>();
+    private final LongAdder waiting = new LongAdder();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder borrowFailures = new LongAdder();
+    private final LatencyHistogram borrowLatencies = new LatencyHistogram();
+    final static Logger log = LoggerFactory.getLogger(InstrumentedDataSource.class);
+
+    /**
+     * @param dataSource
+     * Wrapped DataSource.
+     * @param slowThresholdMillis
+     * Executions taking at least this time are logged, must not be negative.
+     */
+    public InstrumentedDataSource(DataSource dataSource, long slowThresholdMillis) {
+        if (dataSource == null) {
+            throw new IllegalArgumentException("Data source is null!");
+        }
+        if (slowThresholdMillis < 0) {
+            throw new IllegalArgumentException("Slow query threshold must not be negative, was " + slowThresholdMillis);
+        }
+        this.dataSource = dataSource;
+        this.slowThresholdNanos = slowThresholdMillis * 1000000;
+    }
+
+    /**
+     * @return
+     * Returns statistics of all executed statements in no particular order.
+     */
+    public List<StatementStatistics> getStatistics() {
+        return new ArrayList<>(statistics.values());
+    }
+
+    /**
+     * @param count
+     * Maximal number of returned statements.
+     * @return
+     * Returns statistics of statements which took the most time in total,
+     * the slowest first.
+     */
+    public List<StatementStatistics> getTopStatements(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Count must not be negative, was " + count);
+        }
+        List<StatementStatistics> top = getStatistics();
+        top.sort(Comparator.comparingLong(StatementStatistics::getTotalNanos).reversed());
+        return new ArrayList<>(top.subList(0, Math.min(count, top.size())));
+    }
+
+    /**
+     * @param sql
+     * SQL text as passed to prepareStatement.
+     * @return
+     * Returns statistics of given statement, null if it was not used yet.
+     */
+    public StatementStatistics getStatistics(String sql) {
+        return statistics.get(normalize(sql));
+    }
+
+    /**
+     * Forgets statistics of all statements.
+     */
+    public void clearStatistics() {
+        statistics.clear();
+    }
+
+    /**
+     * @return
+     * Returns number of threads currently waiting in getConnection().
+     */
+    public long getWaitingThreads() {
+        return waiting.sum();
+    }
+
+    /**
+     * @return
+     * Returns number of successful getConnection() calls.
+     */
+    public long getBorrows() {
+        return borrows.sum();
+    }
+
+    /**
+     * @return
+     * Returns number of getConnection() calls which failed, e.g. because no
+     * connection was free within the maximal wait time of the pool.
+     */
+    public long getBorrowFailures() {
+        return borrowFailures.sum();
+    }
+
+    /**
+     * @return
+     * Returns histogram of time spent in getConnection() in nanoseconds.
+     */
+    public LatencyHistogram.Snapshot getBorrowLatencies() {
+        return borrowLatencies.snapshot();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return borrow(null, null);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return borrow(username, password);
+    }
+
+    private Connection borrow(String username, String password) throws SQLException {
+        waiting.increment();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Connection connection = username == null && password == null
+                    ? dataSource.getConnection() : dataSource.getConnection(username, password);
+            failed = false;
+            return wrap(connection);
+        } finally {
+            waiting.decrement();
+            borrowLatencies.record(System.nanoTime() - start);
+            if (failed) {
+                borrowFailures.increment();
+            } else {
+                borrows.increment();
+            }
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(dataSource)) {
+            return iface.cast(dataSource);
+        }
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(dataSource) || dataSource.isWrapperFor(iface);
+    }
+
+    String normalize(String sql) {
+        String result = normalized.get(sql);
+        if (result == null) {
+            result = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+            result = STRING_LITERAL.matcher(result).replaceAll("?");
+            result = NUMBER_LITERAL.matcher(result).replaceAll("?");
+            result = PARAMETER_LIST.matcher(result).replaceAll("(?, ...)");
+            // statements built from values would fill the cache, so it is bounded
+            if (normalized.size() < NORMALIZED_CACHE_SIZE) {
+                normalized.put(sql, result);
+            }
+        }
+        return result;
+    }
+
+    private StatementStatistics statisticsOf(String sql) {
+        return statistics.computeIfAbsent(sql, StatementStatistics::new);
+    }
+
+    private Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new ConnectionHandler(connection));
+    }
+
+    private void finished(StatementStatistics stats, long nanos, Map<Integer, Object> parameters, long rows) {
+        stats.finished(nanos);
+        if (nanos >= slowThresholdNanos && log.isWarnEnabled()) {
+            log.warn("slow statement took {} ms, {} rows, parameters {}: {}",
+                    new Object[]{nanos / 1000000, rows, parameters, stats.getSql()});
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private final class ConnectionHandler implements InvocationHandler {
+
+        private final Connection connection;
+
+        ConnectionHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("prepareStatement") || name.equals("prepareCall")) {
+                StatementStatistics stats = statisticsOf(normalize((String) args[0]));
+                long start = System.nanoTime();
+                Object statement = InstrumentedDataSource.invoke(connection, method, args);
+                stats.prepared(System.nanoTime() - start);
+                Class<?> type = name.equals("prepareCall") ? CallableStatement.class : PreparedStatement.class;
+                return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                        new StatementHandler((Statement) statement, stats));
+            }
+            if (name.equals("createStatement")) {
+                Object statement = InstrumentedDataSource.invoke(connection, method, args);
+                return Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{Statement.class},
+                        new StatementHandler((Statement) statement, null));
+            }
+            return InstrumentedDataSource.invoke(connection, method, args);
+        }
+    }
+
+    private final class StatementHandler implements InvocationHandler {
+
+        private final Statement statement;
+        private final StatementStatistics prepared;
+        private final Map<Integer, Object> parameters = new TreeMap<>();
+        private int batched = 0;
+        private ResultSetHandler resultSet;
+
+        StatementHandler(Statement statement, StatementStatistics prepared) {
+            this.statement = statement;
+            this.prepared = prepared;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                parameters.put((Integer) args[0], name.equals("setNull") ? null : args[1]);
+            } else if (name.equals("clearParameters")) {
+                parameters.clear();
+            } else if (name.equals("addBatch")) {
+                batched++;
+            } else if (name.equals("clearBatch")) {
+                batched = 0;
+            } else if (name.startsWith("execute")) {
+                return execute(method, args);
+            } else if (name.equals("close")) {
+                finishResultSet();
+            }
+            return InstrumentedDataSource.invoke(statement, method, args);
+        }
+
+        private Object execute(Method method, Object[] args) throws Throwable {
+            finishResultSet();
+
+            StatementStatistics stats;
+            if (args != null && args.length > 0 && args[0] instanceof String) {
+                stats = statisticsOf(normalize((String) args[0]));
+            } else {
+                stats = prepared != null ? prepared : statisticsOf(BATCH);
+            }
+            Map<Integer, Object> executed = new TreeMap<>(parameters);
+            if (method.getName().equals("executeBatch")) {
+                executed.put(0, batched + " batched");
+                batched = 0;
+            }
+
+            Object result;
+            long start = System.nanoTime();
+            try {
+                result = InstrumentedDataSource.invoke(statement, method, args);
+            } catch (Throwable ex) {
+                long nanos = System.nanoTime() - start;
+                stats.executed(nanos, true);
+                finished(stats, nanos, executed, 0);
+                throw ex;
+            }
+            long nanos = System.nanoTime() - start;
+            stats.executed(nanos, false);
+
+            if (result instanceof ResultSet) {
+                // the execution is finished when its rows are fetched
+                resultSet = new ResultSetHandler((ResultSet) result, stats, nanos, executed);
+                return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                        resultSet);
+            }
+            finished(stats, nanos, executed, 0);
+            return result;
+        }
+
+        /**
+         * Result set is closed together with its statement or by the next
+         * execution, so it is finished here if it was not closed before.
+         */
+        private void finishResultSet() {
+            if (resultSet != null) {
+                resultSet.finish();
+                resultSet = null;
+            }
+        }
+    }
+
+    private final class ResultSetHandler implements InvocationHandler {
+
+        private final ResultSet resultSet;
+        private final StatementStatistics stats;
+        private final long executeNanos;
+        private final Map<Integer, Object> parameters;
+        private long fetchNanos = 0;
+        private long rows = 0;
+        private boolean finished = false;
+
+        ResultSetHandler(ResultSet resultSet, StatementStatistics stats, long executeNanos,
+                Map<Integer, Object> parameters) {
+            this.resultSet = resultSet;
+            this.stats = stats;
+            this.executeNanos = executeNanos;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("next")) {
+                long start = System.nanoTime();
+                Object result = InstrumentedDataSource.invoke(resultSet, method, args);
+                fetchNanos += System.nanoTime() - start;
+                if (Boolean.TRUE.equals(result)) {
+                    rows++;
+                }
+                return result;
+            }
+            if (name.equals("close")) {
+                finish();
+            }
+            return InstrumentedDataSource.invoke(resultSet, method, args);
+        }
+
+        void finish() {
+            if (!finished) {
+                finished = true;
+                stats.fetched(fetchNanos, rows);
+                finished(stats, executeNanos + fetchNanos, parameters, rows);
+            }
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package pv168;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * BankingManager which executes payments in memory. Balances of all
+ * accounts are kept in cents in an array indexed by account id. Payments
+ * are queued in a lock-free ring buffer and executed one by one by a single
+ * writer thread, so no lock is needed. Every batch of executed payments is
+ * appended to the journal file before callers are notified and then written
+ * to the database by a background projection.
+ *
+ * The journal is forced to the disk once per batch, so payments queued
+ * concurrently share one write. When the ledger starts, payments of the
+ * journal which were not written to the database yet, for example because
+ * the application crashed, are applied to the balances and written again.
+ * Records of payments written by the projection are deleted from the
+ * journal, so it holds only the payments the database may miss.
+ *
+ * Payments are read from the database, so they are seen by find methods
+ * only after the projection wrote them, awaitProjection() waits for it.
+ * While the ledger runs it owns balances of the accounts: balances changed
+ * by AccountManager.updateAccount are not seen by it and payments must not
+ * be executed by other managers. close() writes all executed payments to
+ * the database.
+ *
+ * Payments are dated when they are executed but reach the database later,
+ * so a balance checkpoint would miss payments dated before it. Checkpoints
+ * are not taken while a ledger runs on the database, and findBalanceAt()
+ * waits for the projection and replays payments from the current balance.
+ */
+public class LedgerBankingManager implements BankingManager, AutoCloseable {
+
+    private static final int RING_CAPACITY = 1 << 16;
+    private static final int MAX_BATCH = 4096;
+    private static final long ID_BLOCK = 1 << 20;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // balance of an account which was not loaded
+    private static final long UNKNOWN = Long.MIN_VALUE;
+
+    /**
+     * Payment queued for the writer, result fields are set by the writer
+     * before done is completed.
+     */
+    private static final class Transfer {
+
+        private final long from;
+        private final long to;
+        private final long amount;
+        private final CompletableFuture<Transfer> done = new CompletableFuture<>();
+        private PaymentResult result;
+        private long id;
+        private long sent;
+        private long fromBalance;
+        private long toBalance;
+
+        Transfer(long from, long to, long amount) {
+            this.from = from;
+            this.to = to;
+            this.amount = amount;
+        }
+    }
+
+    private final DataSource dataSource;
+    private final BankingManager reader;
+    private final RingBuffer<Transfer> ring = new RingBuffer<>(RING_CAPACITY);
+    private final PaymentJournal journal;
+    private final LedgerProjection projection;
+    private final Thread writer;
+    private final AtomicInteger submitting = new AtomicInteger();
+    private volatile boolean writerIdle;
+    private volatile boolean closed;
+
+    // owned by the writer thread
+    private long[] balances;
+    private long nextId;
+    private long idEnd;
+
+    // data sources of running ledgers, see BalanceCheckpoints
+    private static final Set<DataSource> RUNNING = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+
+    final static Logger log = LoggerFactory.getLogger(LedgerBankingManager.class);
+
+    /**
+     * Loads balances of all accounts and starts the writer.
+     *
+     * @param dataSource
+     * DataSource of a database migrated by SchemaMigration.
+     * @param journalFile
+     * Path of the journal the executed payments are appended to, its
+     * segments are files of the same name with a numeric suffix.
+     */
+    public LedgerBankingManager(DataSource dataSource, Path journalFile) {
+        if (dataSource == null) {
+            throw new IllegalArgumentException("Data source is null!");
+        }
+        if (journalFile == null) {
+            throw new IllegalArgumentException("Journal file is null!");
+        }
+        this.dataSource = dataSource;
+        this.reader = new BankingManagerImpl(dataSource);
+        RUNNING.add(dataSource);
+
+        List<LedgerProjection.Entry> replayed;
+        try {
+            long lastProjected;
+            try (Connection connection = dataSource.getConnection()) {
+                lastProjected = LedgerProjection.findLastPaymentId(connection);
+            }
+            balances = loadBalances();
+            journal = new PaymentJournal(journalFile);
+            journal.release(lastProjected);
+            replayed = replay(journal.readAfter(lastProjected));
+            // before the projection runs, the table lock of the reservation would wait for its inserts
+            reserveIds(1);
+        } catch (SQLException | IOException ex) {
+            RUNNING.remove(dataSource);
+            log.error("ledger could not be started");
+            throw new ServiceFailureException("Failed to start ledger!", ex);
+        }
+        projection = new LedgerProjection(dataSource);
+        for (int i = 0; i < replayed.size(); i += MAX_BATCH) {
+            projection.submit(replayed.subList(i, Math.min(replayed.size(), i + MAX_BATCH)));
+        }
+
+        writer = new Thread(this::runWriter, "ledger-writer");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("ledger started with {} account slots", balances.length);
+    }
+
+    private long[] loadBalances() throws SQLException {
+
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement prepStatement = connection.prepareStatement("SELECT id, balance FROM account")) {
+
+            long[] loaded = new long[1024];
+            Arrays.fill(loaded, UNKNOWN);
+            ResultSet rs = prepStatement.executeQuery();
+            while (rs.next()) {
+                loaded = ensureCapacity(loaded, rs.getLong("id"));
+                loaded[(int) rs.getLong("id")] = Cents.read(rs, "balance");
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * Applies payments of the journal which are missing in the database to
+     * the balances. Their ids were reserved already, new ids continue after
+     * them.
+     *
+     * @return
+     * Returns payments which have to be written to the database.
+     */
+    private List<LedgerProjection.Entry> replay(List<LedgerProjection.Entry> entries) {
+        List<LedgerProjection.Entry> replayed = new ArrayList<>(entries.size());
+        for (LedgerProjection.Entry entry : entries) {
+            nextId = idEnd = Math.max(idEnd, entry.id + 1);
+            if (!isKnown(entry.from) || !isKnown(entry.to)) {
+                log.error("payment {} of the journal can not be replayed, its account was deleted", entry.id);
+                continue;
+            }
+            balances[(int) entry.from] -= entry.amount;
+            balances[(int) entry.to] += entry.amount;
+            replayed.add(entry);
+        }
+        if (!replayed.isEmpty()) {
+            log.info("{} payments were replayed from the journal", replayed.size());
+        }
+        return replayed;
+    }
+
+    private static long[] ensureCapacity(long[] array, long id) {
+        if (id < 0 || id >= Integer.MAX_VALUE) {
+            throw new ServiceFailureException("Account id " + id + " can not be held by the ledger!");
+        }
+        if (id < array.length) {
+            return array;
+        }
+        int length = array.length;
+        long[] larger = Arrays.copyOf(array, (int) Math.min(Integer.MAX_VALUE, Math.max(id + 1, 2L * length)));
+        Arrays.fill(larger, length, larger.length, UNKNOWN);
+        return larger;
+    }
+
+    @Override
+    public void executePayment(Payment payment) {
+
+        checkPaymentForExecution(payment);
+
+        Transfer transfer = await(submit(Arrays.asList(payment)).get(0));
+        switch (transfer.result) {
+            case INSUFFICIENT_BALANCE:
+                log.warn("Operation failed: sending account does not have enough money for the payment {} !", payment);
+                throw new InsufficientBalanceException("The sending account does not have enough money for the payment!");
+            case ACCOUNT_NOT_FOUND:
+                log.error("Entity not found, payment {}", payment);
+                throw new EntityNotFoundException("Sender or receiver was not found in the database!");
+            default:
+                setExecuted(payment, transfer);
+        }
+    }
+
+    @Override
+    public List<PaymentResult> executePayments(List<Payment> payments) {
+
+        if (payments == null) {
+            log.warn("Operation failed: payments are null!");
+            throw new IllegalArgumentException("Payments are null!");
+        }
+        for (Payment payment : payments) {
+            checkPaymentForExecution(payment);
+        }
+
+        List<Transfer> transfers = submit(payments);
+        List<PaymentResult> results = new ArrayList<>(payments.size());
+        for (int i = 0; i < transfers.size(); i++) {
+            Transfer transfer = await(transfers.get(i));
+            if (transfer.result == PaymentResult.EXECUTED) {
+                setExecuted(payments.get(i), transfer);
+            }
+            results.add(transfer.result);
+        }
+
+        log.info("{} payments were processed", payments.size());
+        return results;
+    }
+
+    private List<Transfer> submit(List<Payment> payments) {
+
+        // amounts are converted before anything is queued, so a wrong one fails all payments
+        List<Transfer> transfers = new ArrayList<>(payments.size());
+        for (Payment payment : payments) {
+            transfers.add(new Transfer(payment.getFrom().getId(), payment.getTo().getId(),
+                    Cents.of(payment.getAmount())));
+        }
+
+        // the writer does not stop while a submission is running
+        submitting.incrementAndGet();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Ledger is closed!");
+            }
+            if (projection.failure() != null) {
+                log.error("payments are rejected, projection to the database failed");
+                throw new ServiceFailureException("Payments are rejected, projection of payments to the database failed!",
+                        projection.failure());
+            }
+            for (Transfer transfer : transfers) {
+                ring.put(transfer);
+                if (writerIdle) {
+                    LockSupport.unpark(writer);
+                }
+            }
+        } finally {
+            submitting.decrementAndGet();
+        }
+        return transfers;
+    }
+
+    private static Transfer await(Transfer transfer) {
+        try {
+            return transfer.done.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof ServiceFailureException) {
+                throw (ServiceFailureException) ex.getCause();
+            }
+            throw new ServiceFailureException("Failed to execute payment!", ex.getCause());
+        }
+    }
+
+    private static void setExecuted(Payment payment, Transfer transfer) {
+        payment.setId(transfer.id);
+        payment.setSent(new Date(transfer.sent));
+        payment.getFrom().setBalance(Cents.toBigDecimal(transfer.fromBalance));
+        payment.getTo().setBalance(Cents.toBigDecimal(transfer.toBalance));
+    }
+
+    private void runWriter() {
+        List<Transfer> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            if (ring.drainTo(batch, MAX_BATCH) == 0) {
+                if (closed && submitting.get() == 0 && ring.isEmpty()) {
+                    return;
+                }
+                idle();
+                continue;
+            }
+            try {
+                execute(batch);
+            } catch (RuntimeException ex) {
+                log.error("batch of {} payments failed", batch.size(), ex);
+                for (Transfer transfer : batch) {
+                    transfer.done.completeExceptionally(ex);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void idle() {
+        writerIdle = true;
+        // a producer which did not see writerIdle has made the ring non-empty already
+        if (ring.isEmpty() && !closed) {
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+        writerIdle = false;
+    }
+
+    private void execute(List<Transfer> batch) {
+
+        try {
+            // all database reads happen before any balance is changed
+            for (Transfer transfer : batch) {
+                load(transfer.from);
+                load(transfer.to);
+            }
+            reserveIds(batch.size());
+        } catch (SQLException ex) {
+            throw new ServiceFailureException("Failed to prepare payments for execution!", ex);
+        }
+
+        long sent = System.currentTimeMillis();
+        List<LedgerProjection.Entry> executed = new ArrayList<>();
+        for (Transfer transfer : batch) {
+            if (!isKnown(transfer.from) || !isKnown(transfer.to)) {
+                transfer.result = PaymentResult.ACCOUNT_NOT_FOUND;
+            } else if (balances[(int) transfer.from] < transfer.amount) {
+                transfer.result = PaymentResult.INSUFFICIENT_BALANCE;
+            } else {
+                transfer.fromBalance = balances[(int) transfer.from] -= transfer.amount;
+                transfer.toBalance = balances[(int) transfer.to] += transfer.amount;
+                transfer.id = nextId++;
+                transfer.sent = sent;
+                transfer.result = PaymentResult.EXECUTED;
+                journal.add(transfer.id, transfer.from, transfer.to, transfer.amount, sent);
+                executed.add(new LedgerProjection.Entry(transfer.id, transfer.from, transfer.to,
+                        transfer.amount, sent));
+            }
+        }
+
+        try {
+            journal.write();
+        } catch (IOException ex) {
+            // nothing of the batch was executed
+            for (int i = executed.size() - 1; i >= 0; i--) {
+                LedgerProjection.Entry entry = executed.get(i);
+                balances[(int) entry.from] += entry.amount;
+                balances[(int) entry.to] -= entry.amount;
+            }
+            nextId -= executed.size();
+            throw new ServiceFailureException("Failed to write payments to the journal!", ex);
+        }
+
+        try {
+            journal.release(projection.projectedId());
+        } catch (IOException ex) {
+            // the batch is in the journal already, the records are deleted by a later release
+            log.warn("written payments could not be deleted from the journal", ex);
+        }
+        projection.submit(executed);
+        for (Transfer transfer : batch) {
+            transfer.done.complete(transfer);
+        }
+    }
+
+    private boolean isKnown(long id) {
+        return id >= 0 && id < balances.length && balances[(int) id] != UNKNOWN;
+    }
+
+    /**
+     * Loads balance of an account created after the ledger was started.
+     */
+    private void load(long id) throws SQLException {
+        if (isKnown(id)) {
+            return;
+        }
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement prepStatement = connection.prepareStatement(
+                        "SELECT balance FROM account WHERE id = ?")) {
+            prepStatement.setLong(1, id);
+
+            ResultSet rs = prepStatement.executeQuery();
+            if (rs.next()) {
+                balances = ensureCapacity(balances, id);
+                balances[(int) id] = Cents.read(rs, "balance");
+            }
+        }
+    }
+
+    private void reserveIds(int count) throws SQLException {
+        if (idEnd - nextId >= count) {
+            return;
+        }
+        long reserved = Math.max(ID_BLOCK, count);
+        nextId = SchemaMigration.reservePaymentIds(dataSource, idEnd, reserved);
+        idEnd = nextId + reserved;
+    }
+
+    /**
+     * Waits until all payments executed before the call are written to the
+     * database.
+     */
+    public void awaitProjection() {
+        try {
+            projection.awaitProjected();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceFailureException("Waiting for the projection was interrupted!", ex);
+        }
+    }
+
+    /**
+     * Executes queued payments, writes all of them to the database and stops
+     * the ledger.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceFailureException("Closing of the ledger was interrupted!", ex);
+        }
+        projection.close();
+        try (PaymentJournal closing = journal) {
+            closing.release(projection.projectedId());
+        } catch (IOException ex) {
+            throw new ServiceFailureException("Failed to close the journal!", ex);
+        } finally {
+            RUNNING.remove(dataSource);
+        }
+        log.info("ledger was closed");
+    }
+
+    private void checkPaymentForExecution(Payment payment) {
+        if (payment == null) {
+            log.warn("Operation failed: payment is null!");
+            throw new IllegalArgumentException("Payment is null!");
+        }
+        if (payment.getId() != null) {
+            log.warn("Operation failed: id is null!");
+            throw new IllegalArgumentException("Payment cannot have set id before execution!");
+        }
+        if (payment.getFrom() == null || payment.getTo() == null) {
+            log.warn("Operation failed: account is null!");
+            throw new IllegalArgumentException("Sender and receiver must be specified to execute a payment!");
+        }
+        if (payment.getFrom().getId() == null || payment.getTo().getId() == null) {
+            log.warn("Operation failed: account id is null!");
+            throw new IllegalArgumentException("Sender and receiver must be stored in the database!");
+        }
+        if (payment.getFrom().getId().equals(payment.getTo().getId())) {
+            log.warn("Operation failed: sender and receiver are the same accounts!");
+            throw new IllegalArgumentException("Sender and receiver are the same accounts!");
+        }
+        if (payment.getAmount() == null) {
+            log.warn("Operation failed: amount is null!");
+            throw new IllegalArgumentException("Ammount of money must be specified for payment!");
+        }
+        if (payment.getAmount().signum() <= 0) {
+            log.warn("Operation failed: amount is not positive!");
+            throw new IllegalArgumentException("Amount of money must be positive!");
+        }
+        if (payment.getSent() != null) {
+            log.warn("Operation failed: date is null!");
+            throw new IllegalArgumentException("Timestamp of payment is assigned during this method!");
+        }
+    }
+
+    @Override
+    public List<Payment> findAllIncomingPaymentsToAccount(Account account) {
+        return reader.findAllIncomingPaymentsToAccount(account);
+    }
+
+    @Override
+    public List<Payment> findOutgoingPaymentsToAccount(Account account) {
+        return reader.findOutgoingPaymentsToAccount(account);
+    }
+
+    @Override
+    public List<Payment> findIncomingPaymentsToAccount(Account account, Long afterId, int limit) {
+        return reader.findIncomingPaymentsToAccount(account, afterId, limit);
+    }
+
+    @Override
+    public List<Payment> findOutgoingPaymentsToAccount(Account account, Long afterId, int limit) {
+        return reader.findOutgoingPaymentsToAccount(account, afterId, limit);
+    }
+
+    @Override
+    public Stream<Payment> streamIncomingPaymentsToAccount(Account account, int fetchSize) {
+        return reader.streamIncomingPaymentsToAccount(account, fetchSize);
+    }
+
+    @Override
+    public Stream<Payment> streamOutgoingPaymentsToAccount(Account account, int fetchSize) {
+        return reader.streamOutgoingPaymentsToAccount(account, fetchSize);
+    }
+
+    @Override
+    public AccountStatement findStatement(Account account, Date from, Date to, int limit) {
+        return reader.findStatement(account, from, to, limit);
+    }
+
+    /**
+     * Balance checkpoints miss payments which were not projected yet, so the
+     * balance is computed from the current balance of the account in the
+     * database and payments sent since the date, after the projection wrote
+     * all payments executed before the call.
+     */
+    @Override
+    public BigDecimal findBalanceAt(Account account, Date date) {
+        if (date == null) {
+            log.warn("Operation failed: date is null!");
+            throw new IllegalArgumentException("Date is null!");
+        }
+        awaitProjection();
+        return reader.findStatement(account, date, date, 1).getOpeningBalance();
+    }
+
+    /**
+     * @return
+     * Returns true if a ledger which was not closed yet executes payments of
+     * the database.
+     */
+    static boolean isRunning(DataSource dataSource) {
+        return RUNNING.contains(dataSource);
+    }
+
+    @Override
+    public Turnover findTurnover(Account account, Date from, Date to) {
+        return reader.findTurnover(account, from, to);
+    }
+
+    @Override
+    public List<Turnover> findTurnoverByPeriod(Account account, Date from, Date to, Turnover.Granularity granularity) {
+        return reader.findTurnoverByPeriod(account, from, to, granularity);
+    }
+
+    @Override
+    public Map<Long, Turnover> findTurnoverOfAllAccounts(Date from, Date to) {
+        return reader.findTurnoverOfAllAccounts(from, to);
+    }
+
+    @Override
+    public List<Turnover> findRolledUpTurnover(Account account, Date from, Date to, Turnover.Granularity granularity) {
+        return reader.findRolledUpTurnover(account, from, to, granularity);
+    }
+}
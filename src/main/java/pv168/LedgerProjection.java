@@ -0,0 +1,299 @@
+package pv168;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes payments executed by LedgerBankingManager to tables payment,
+ * account and payment_daily in a background thread. Batches queued while
+ * the previous one was written are written in one transaction. At most
+ * MAX_BACKLOG payments wait for the database, further batches wait until
+ * there is space, so the sustained rate of the ledger is the rate of the
+ * projection. Id of the last written payment is stored in table
+ * ledger_projection in the same transaction, journal records after it are
+ * replayed when the ledger starts again.
+ *
+ * Transactions failing for a transient reason, a deadlock, a lock timeout
+ * or a lost connection, are retried. Any other failure would fail again, so
+ * the projection stops writing: later payments must not move the stored id
+ * past the failed ones. The payments stay in the journal and failure() tells
+ * the ledger to reject new ones.
+ */
+final class LedgerProjection implements AutoCloseable {
+
+    /**
+     * Executed payment, amount in cents and time of sending in milliseconds.
+     */
+    static final class Entry {
+
+        final long id;
+        final long from;
+        final long to;
+        final long amount;
+        final long sent;
+
+        Entry(long id, long from, long to, long amount, long sent) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.amount = amount;
+            this.sent = sent;
+        }
+    }
+
+    private static final int MAX_BACKLOG = 1 << 20;
+    private static final int MAX_TRANSACTION = 1 << 16;
+    private static final long RETRY_MILLIS = 1000;
+    // SQLState classes of transaction rollback and connection exception
+    private static final String TRANSACTION_ROLLBACK = "40";
+    private static final String CONNECTION_EXCEPTION = "08";
+
+    private final DataSource dataSource;
+    private final ChangeLog changeLog;
+    private final BlockingQueue<List<Entry>> queue = new LinkedBlockingQueue<>();
+    private final Semaphore backlog = new Semaphore(MAX_BACKLOG);
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile Exception failure;
+    // id of the last payment written by this projection
+    private volatile long projectedId;
+    // numbers of batches, guarded by this
+    private long submitted;
+    private long projected;
+
+    final static Logger log = LoggerFactory.getLogger(LedgerProjection.class);
+
+    LedgerProjection(DataSource dataSource) {
+        this.dataSource = dataSource;
+        this.changeLog = ChangeLog.of(dataSource);
+        thread = new Thread(this::run, "ledger-projection");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues batch of payments, waits while the backlog is full, so the
+     * ledger can not run away from the database.
+     */
+    void submit(List<Entry> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // the batch is executed already, it must not be lost by an interrupt
+        backlog.acquireUninterruptibly(batch.size());
+        synchronized (this) {
+            submitted++;
+        }
+        queue.add(batch);
+    }
+
+    /**
+     * Waits until all batches submitted before the call are written.
+     *
+     * @throws ServiceFailureException
+     * If the projection failed, so the batches are not written.
+     */
+    synchronized void awaitProjected() throws InterruptedException {
+        long target = submitted;
+        while (projected < target) {
+            wait();
+        }
+        if (failure != null) {
+            throw new ServiceFailureException("Projection of payments to the database failed!", failure);
+        }
+    }
+
+    /**
+     * @return
+     * Returns id of the last payment written to the database since the
+     * projection was created, 0 if none was written.
+     */
+    long projectedId() {
+        return projectedId;
+    }
+
+    /**
+     * @return
+     * Returns exception which stopped the projection, null if it runs.
+     */
+    Exception failure() {
+        return failure;
+    }
+
+    private void run() {
+        List<List<Entry>> batches = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                List<Entry> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batches.add(first);
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            int payments = batches.get(0).size();
+            while (payments < MAX_TRANSACTION && !queue.isEmpty()) {
+                List<Entry> next = queue.poll();
+                batches.add(next);
+                payments += next.size();
+            }
+
+            if (failure == null) {
+                writeWithRetry(batches);
+            }
+            backlog.release(payments);
+            synchronized (this) {
+                projected += batches.size();
+                notifyAll();
+            }
+            batches.clear();
+        }
+    }
+
+    /**
+     * @return
+     * Returns id of the last payment written to the database by a
+     * projection.
+     */
+    static long findLastPaymentId(Connection connection) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("SELECT lastPaymentId FROM ledger_projection");
+                ResultSet rs = st.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private void writeWithRetry(List<List<Entry>> batches) {
+        while (true) {
+            try {
+                write(batches);
+                return;
+            } catch (SQLException | RuntimeException ex) {
+                int payments = batches.stream().mapToInt(List::size).sum();
+                if (!isTransient(ex)) {
+                    failure = ex;
+                    log.error("{} payments could not be written to the database, the projection is stopped, "
+                            + "they are replayed from the journal by the next start", payments, ex);
+                    return;
+                }
+                if (closed) {
+                    log.error("{} payments could not be written to the database, they are replayed from the journal by the next start",
+                            payments, ex);
+                    return;
+                }
+                log.error("{} payments could not be written to the database, retrying", payments, ex);
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ex1) {
+                    // retried at once
+                }
+            }
+        }
+    }
+
+    private static boolean isTransient(Exception ex) {
+        if (!(ex instanceof SQLException)) {
+            return false;
+        }
+        String state = ((SQLException) ex).getSQLState();
+        return state != null && (state.startsWith(TRANSACTION_ROLLBACK) || state.startsWith(CONNECTION_EXCEPTION));
+    }
+
+    private void write(List<List<Entry>> batches) throws SQLException {
+
+        // account id -> change of balance in cents, updated in ascending id order
+        Map<Long, Long> changes = new TreeMap<>();
+        DailyRollup rollup = new DailyRollup();
+        long lastId = 0;
+        for (List<Entry> batch : batches) {
+            for (Entry entry : batch) {
+                lastId = Math.max(lastId, entry.id);
+                changes.merge(entry.from, -entry.amount, Long::sum);
+                changes.merge(entry.to, entry.amount, Long::sum);
+                rollup.add(entry.from, entry.to, new Date(entry.sent), entry.amount, 1);
+            }
+        }
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                try (PreparedStatement update = connection.prepareStatement(
+                        "UPDATE account SET balance = balance + ? WHERE id = ?")) {
+                    for (Map.Entry<Long, Long> change : changes.entrySet()) {
+                        update.setBigDecimal(1, Cents.toBigDecimal(change.getValue()));
+                        update.setLong(2, change.getKey());
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                }
+
+                try (PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO payment (id, amount, fromAcc, toAcc, dateSent) VALUES (?,?,?,?,?)")) {
+                    for (List<Entry> batch : batches) {
+                        for (Entry entry : batch) {
+                            insert.setLong(1, entry.id);
+                            insert.setBigDecimal(2, Cents.toBigDecimal(entry.amount));
+                            insert.setLong(3, entry.from);
+                            insert.setLong(4, entry.to);
+                            insert.setTimestamp(5, new java.sql.Timestamp(entry.sent));
+                            insert.addBatch();
+                        }
+                    }
+                    insert.executeBatch();
+                }
+
+                rollup.apply(connection);
+                try (PreparedStatement watermark = connection.prepareStatement(
+                        "UPDATE ledger_projection SET lastPaymentId = ? WHERE lastPaymentId < ?")) {
+                    watermark.setLong(1, lastId);
+                    watermark.setLong(2, lastId);
+                    watermark.executeUpdate();
+                }
+                connection.commit();
+                projectedId = Math.max(projectedId, lastId);
+            } catch (SQLException | RuntimeException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+
+        for (Long id : changes.keySet()) {
+            changeLog.record(ChangeLog.Entity.ACCOUNT, ChangeLog.Kind.UPDATED, id);
+        }
+        for (List<Entry> batch : batches) {
+            for (Entry entry : batch) {
+                changeLog.record(ChangeLog.Entity.PAYMENT, ChangeLog.Kind.CREATED, entry.id);
+            }
+        }
+    }
+
+    /**
+     * Writes queued batches and stops the thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceFailureException("Closing of the projection was interrupted!", ex);
+        }
+    }
+}
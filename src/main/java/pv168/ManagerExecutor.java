@@ -0,0 +1,301 @@
+package pv168;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs blocking manager calls in background and returns their results as
+ * CompletableFuture, so callers can start many independent calls without
+ * waiting for each of them:
+ *
+ *     ManagerExecutor executor = new ManagerExecutor(8, 1000);
+ *     AsyncAccountManager accounts = executor.accountManager(new AccountManagerImpl(ds));
+ *     accounts.findAccountById(id).thenAccept(...);
+ *
+ * At most maxConcurrent calls run at once, it should be the size of the
+ * connection pool, so the calls do not wait for connections. At most
+ * maxQueued further calls wait for them, more calls are rejected: their
+ * futures complete exceptionally by RejectedExecutionException at once, so
+ * a caller, e.g. the event dispatch thread, is never blocked. Calls run in
+ * virtual threads if the JVM has them, otherwise in a pool of maxConcurrent
+ * daemon threads.
+ *
+ * Exceptions of the manager, including IllegalArgumentException of invalid
+ * arguments, complete the future exceptionally, they are never thrown by the
+ * async methods themselves.
+ *
+ * It is an Executor with the same limits too, e.g. for SwingWorker, which
+ * is a Runnable. execute() throws RejectedExecutionException when the
+ * executor is full.
+ */
+public final class ManagerExecutor implements Executor, AutoCloseable {
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final ExecutorService executor;
+    // calls allowed to run at once, null if the pool itself has maxConcurrent threads
+    private final Semaphore running;
+    private final Semaphore capacity;
+    private volatile boolean closed;
+
+    final static Logger log = LoggerFactory.getLogger(ManagerExecutor.class);
+
+    /**
+     * @param maxConcurrent
+     * Maximal number of calls running at once, must be positive.
+     * @param maxQueued
+     * Maximal number of calls waiting for a free thread, must not be
+     * negative.
+     */
+    public ManagerExecutor(int maxConcurrent, int maxQueued) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("Maximal number of concurrent calls must be positive, was "
+                    + maxConcurrent);
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("Maximal number of queued calls must not be negative, was "
+                    + maxQueued);
+        }
+        capacity = new Semaphore(maxConcurrent + maxQueued);
+
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null) {
+            executor = virtual;
+            running = new Semaphore(maxConcurrent);
+        } else {
+            AtomicInteger threads = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(maxConcurrent, task -> {
+                Thread thread = new Thread(task, "manager-executor-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            running = null;
+        }
+        log.info("manager executor with {} concurrent and {} queued calls uses {} threads",
+                new Object[]{maxConcurrent, maxQueued, virtual != null ? "virtual" : "platform"});
+    }
+
+    /**
+     * @return
+     * Returns executor starting a virtual thread per task, null if the JVM
+     * does not have virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            log.warn("virtual threads are not available, platform threads are used", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Runs call in background unless maxConcurrent calls are running and
+     * maxQueued calls are waiting already.
+     *
+     * @param call
+     * Blocking call, e.g. of a manager.
+     * @return
+     * Returns future completed by the result of the call, or exceptionally by
+     * its exception, or by RejectedExecutionException if the executor is full.
+     * @throws IllegalStateException
+     * If the executor is closed.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> call) {
+        if (call == null) {
+            throw new IllegalArgumentException("Call is null!");
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!start(call, future)) {
+            future.completeExceptionally(new RejectedExecutionException("Manager executor is full!"));
+        }
+        return future;
+    }
+
+    /**
+     * Runs task in background like submit(). Exceptions thrown by the task
+     * are ignored.
+     *
+     * @throws RejectedExecutionException
+     * If the executor is full.
+     * @throws IllegalStateException
+     * If the executor is closed.
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("Task is null!");
+        }
+        if (!start(() -> {
+            task.run();
+            return null;
+        }, new CompletableFuture<>())) {
+            throw new RejectedExecutionException("Manager executor is full!");
+        }
+    }
+
+    /**
+     * @return
+     * Returns false if the executor is full, so the call was not started.
+     */
+    private <T> boolean start(Supplier<T> call, CompletableFuture<T> future) {
+        if (closed) {
+            throw new IllegalStateException("Manager executor is closed!");
+        }
+        if (!capacity.tryAcquire()) {
+            log.debug("manager executor is full, a call was rejected");
+            return false;
+        }
+        try {
+            executor.execute(() -> run(call, future));
+        } catch (RejectedExecutionException ex) {
+            capacity.release();
+            throw new IllegalStateException("Manager executor is closed!", ex);
+        }
+        return true;
+    }
+
+    private <T> void run(Supplier<T> call, CompletableFuture<T> future) {
+        try {
+            if (running != null) {
+                running.acquireUninterruptibly();
+            }
+            try {
+                future.complete(call.get());
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            } finally {
+                if (running != null) {
+                    running.release();
+                }
+            }
+        } finally {
+            capacity.release();
+        }
+    }
+
+    /**
+     * @return
+     * Returns AccountManager whose calls are run by this executor.
+     */
+    public AsyncAccountManager accountManager(AccountManager manager) {
+        return async(AsyncAccountManager.class, AccountManager.class, manager);
+    }
+
+    /**
+     * @return
+     * Returns PaymentManager whose calls are run by this executor.
+     */
+    public AsyncPaymentManager paymentManager(PaymentManager manager) {
+        return async(AsyncPaymentManager.class, PaymentManager.class, manager);
+    }
+
+    /**
+     * @return
+     * Returns BankingManager whose calls are run by this executor.
+     */
+    public AsyncBankingManager bankingManager(BankingManager manager) {
+        return async(AsyncBankingManager.class, BankingManager.class, manager);
+    }
+
+    /**
+     * Wraps manager into a proxy of asyncInterface. Every method of
+     * asyncInterface returns CompletableFuture and calls the method of
+     * managerInterface with the same name and parameters.
+     */
+    private <A, M> A async(Class<A> asyncInterface, Class<M> managerInterface, M manager) {
+        if (manager == null) {
+            throw new IllegalArgumentException("Manager is null!");
+        }
+
+        Map<Method, Method> methods = new HashMap<>();
+        for (Method method : asyncInterface.getMethods()) {
+            if (method.getReturnType() != CompletableFuture.class) {
+                throw new IllegalArgumentException(method + " does not return CompletableFuture");
+            }
+            try {
+                methods.put(method, managerInterface.getMethod(method.getName(), method.getParameterTypes()));
+            } catch (NoSuchMethodException ex) {
+                throw new IllegalArgumentException(method + " has no counterpart in " + managerInterface, ex);
+            }
+        }
+        return asyncInterface.cast(Proxy.newProxyInstance(asyncInterface.getClassLoader(),
+                new Class<?>[]{asyncInterface}, new AsyncHandler(manager, methods)));
+    }
+
+    private final class AsyncHandler implements InvocationHandler {
+
+        private final Object manager;
+        private final Map<Method, Method> methods;
+
+        AsyncHandler(Object manager, Map<Method, Method> methods) {
+            this.manager = manager;
+            this.methods = methods;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Method target = methods.get(method);
+            if (target == null) {
+                // equals, hashCode and toString of Object
+                try {
+                    return method.invoke(manager, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+            return submit(() -> {
+                try {
+                    return target.invoke(manager, args);
+                } catch (InvocationTargetException ex) {
+                    throw sneakyThrow(ex.getCause());
+                } catch (IllegalAccessException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            });
+        }
+    }
+
+    /**
+     * Manager interfaces declare only unchecked exceptions, but a checked one
+     * thrown by a manager must reach the future unchanged.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> RuntimeException sneakyThrow(Throwable ex) throws E {
+        throw (E) ex;
+    }
+
+    /**
+     * Finishes submitted calls and stops the threads. Calls submitted after
+     * close() throw IllegalStateException.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("manager calls did not finish in {} s", CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
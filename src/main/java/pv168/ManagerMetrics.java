@@ -0,0 +1,162 @@
+package pv168;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records call counts, error counts and latency histograms of manager
+ * methods. A manager is instrumented by wrapping it into a proxy of its
+ * interface:
+ *
+ *     AccountManager manager = ManagerMetrics.instrument(AccountManager.class, new AccountManagerImpl(ds));
+ *
+ * Metrics of one method are shared by all instrumented managers of the same
+ * interface and are registered as MXBean
+ * pv168:type=ManagerMetrics,manager=AccountManager,method="findAccountById(Long)".
+ *
+ * Latency of methods returning Stream covers only opening of the stream, not
+ * reading of its rows.
+ */
+public final class ManagerMetrics {
+
+    static final String JMX_DOMAIN = "pv168";
+
+    private static final ConcurrentMap<String, MethodMetrics> METRICS = new ConcurrentSkipListMap<>();
+    final static Logger log = LoggerFactory.getLogger(ManagerMetrics.class);
+
+    private ManagerMetrics() {
+    }
+
+    /**
+     * Wraps manager into a proxy recording metrics of every method of given
+     * interface.
+     *
+     * @param managerInterface
+     * Interface implemented by the manager, e.g. AccountManager.class.
+     * @param manager
+     * Instrumented manager.
+     * @return
+     * Returns proxy implementing managerInterface, which delegates all calls
+     * to manager.
+     */
+    public static <T> T instrument(Class<T> managerInterface, T manager) {
+        if (managerInterface == null || !managerInterface.isInterface()) {
+            throw new IllegalArgumentException("Manager interface must be an interface, was " + managerInterface);
+        }
+        if (manager == null) {
+            throw new IllegalArgumentException("Manager is null!");
+        }
+
+        Map<Method, MethodMetrics> methods = new HashMap<>();
+        for (Method method : managerInterface.getMethods()) {
+            methods.put(method, metricsOf(managerInterface.getSimpleName(), signatureOf(method)));
+        }
+        return managerInterface.cast(Proxy.newProxyInstance(managerInterface.getClassLoader(),
+                new Class<?>[]{managerInterface}, new MetricsHandler(manager, methods)));
+    }
+
+    /**
+     * @return
+     * Returns metrics of all instrumented methods ordered by manager and
+     * method name.
+     */
+    public static Collection<MethodMetrics> getAll() {
+        return new ArrayList<>(METRICS.values());
+    }
+
+    /**
+     * @param manager
+     * Simple name of manager interface, e.g. "AccountManager".
+     * @param method
+     * Method name with simple names of parameter types, e.g.
+     * "findAccountById(Long)".
+     * @return
+     * Returns metrics of given method, null if no such method was
+     * instrumented.
+     */
+    public static MethodMetrics get(String manager, String method) {
+        return METRICS.get(manager + "." + method);
+    }
+
+    private static MethodMetrics metricsOf(String manager, String method) {
+        return METRICS.computeIfAbsent(manager + "." + method, key -> {
+            MethodMetrics metrics = new MethodMetrics(manager, method);
+            register(metrics);
+            return metrics;
+        });
+    }
+
+    private static void register(MethodMetrics metrics) {
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ManagerMetrics,manager=" + metrics.getManager()
+                    + ",method=" + ObjectName.quote(metrics.getMethod()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+        } catch (JMException ex) {
+            log.warn("metrics of {} could not be registered in JMX", metrics, ex);
+        }
+    }
+
+    private static String signatureOf(Method method) {
+        StringBuilder signature = new StringBuilder(method.getName()).append('(');
+        Class<?>[] types = method.getParameterTypes();
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0) {
+                signature.append(',');
+            }
+            signature.append(types[i].getSimpleName());
+        }
+        return signature.append(')').toString();
+    }
+
+    private static final class MetricsHandler implements InvocationHandler {
+
+        private final Object manager;
+        private final Map<Method, MethodMetrics> methods;
+
+        MetricsHandler(Object manager, Map<Method, MethodMetrics> methods) {
+            this.manager = manager;
+            this.methods = methods;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            MethodMetrics metrics = methods.get(method);
+            if (metrics == null) {
+                // equals, hashCode and toString of Object
+                return invokeManager(method, args);
+            }
+
+            metrics.started();
+            boolean failed = true;
+            long start = System.nanoTime();
+            try {
+                Object result = invokeManager(method, args);
+                failed = false;
+                return result;
+            } finally {
+                metrics.finished(System.nanoTime() - start, failed);
+            }
+        }
+
+        private Object invokeManager(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(manager, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package pv168;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calls, failures and latency histogram of one manager method, see
+ * ManagerMetrics.
+ */
+public final class MethodMetrics implements MethodMetricsMXBean {
+
+    private final String manager;
+    private final String method;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder active = new LongAdder();
+
+    MethodMetrics(String manager, String method) {
+        this.manager = manager;
+        this.method = method;
+    }
+
+    void started() {
+        active.increment();
+    }
+
+    void finished(long nanos, boolean failed) {
+        active.decrement();
+        calls.increment();
+        if (failed) {
+            errors.increment();
+        }
+        latencies.record(nanos);
+    }
+
+    public String getManager() {
+        return manager;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public LatencyHistogram.Snapshot getLatencies() {
+        return latencies.snapshot();
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getActiveCalls() {
+        return active.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latencies.snapshot().getMean() / 1000;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return getPercentileMicros(50);
+    }
+
+    @Override
+    public double getP90Micros() {
+        return getPercentileMicros(90);
+    }
+
+    @Override
+    public double getP99Micros() {
+        return getPercentileMicros(99);
+    }
+
+    @Override
+    public double getP999Micros() {
+        return getPercentileMicros(99.9);
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return latencies.snapshot().getMax() / 1000.0;
+    }
+
+    private double getPercentileMicros(double percentile) {
+        return latencies.snapshot().getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return manager + "." + method;
+    }
+}
@@ -0,0 +1,25 @@
+package pv168;
+
+/**
+ * JMX view of calls of one manager method, latencies are in microseconds.
+ */
+public interface MethodMetricsMXBean {
+
+    public long getCalls();
+
+    public long getErrors();
+
+    public long getActiveCalls();
+
+    public double getMeanMicros();
+
+    public double getP50Micros();
+
+    public double getP90Micros();
+
+    public double getP99Micros();
+
+    public double getP999Micros();
+
+    public double getMaxMicros();
+}
@@ -0,0 +1,123 @@
+package pv168;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically logs snapshot of ManagerMetrics, one line per method called
+ * since the application started. Throughput is computed from calls made
+ * since the previous snapshot. If an InstrumentedDataSource is given, its
+ * TOP_STATEMENTS statements taking the most time are logged as well, and so
+ * are PoolMetrics if given.
+ */
+public final class MetricsReporter implements AutoCloseable {
+
+    static final int TOP_STATEMENTS = 10;
+
+    private final ScheduledExecutorService executor;
+    private final InstrumentedDataSource dataSource;
+    private final PoolMetrics pool;
+    private final Map<String, Long> lastCalls = new HashMap<>();
+    private long lastNanos = System.nanoTime();
+    final static Logger log = LoggerFactory.getLogger(MetricsReporter.class);
+
+    private MetricsReporter(long period, TimeUnit unit, InstrumentedDataSource dataSource, PoolMetrics pool) {
+        this.dataSource = dataSource;
+        this.pool = pool;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::report, period, period, unit);
+    }
+
+    /**
+     * Starts logging of snapshots in a daemon thread.
+     *
+     * @param period
+     * Time between two snapshots, must be positive.
+     * @param unit
+     * Unit of period.
+     * @return
+     * Returns running reporter, close() stops it.
+     */
+    public static MetricsReporter start(long period, TimeUnit unit) {
+        return start(period, unit, null, null);
+    }
+
+    /**
+     * Does the same as start(period, unit), but logs statistics of the most
+     * expensive statements of given DataSource and gauges of the connection
+     * pool too.
+     *
+     * @param period
+     * Time between two snapshots, must be positive.
+     * @param unit
+     * Unit of period.
+     * @param dataSource
+     * DataSource whose statements are logged, null to log only managers.
+     * @param pool
+     * Metrics of the connection pool, null if they should not be logged.
+     * @return
+     * Returns running reporter, close() stops it.
+     */
+    public static MetricsReporter start(long period, TimeUnit unit, InstrumentedDataSource dataSource,
+            PoolMetrics pool) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive, was " + period);
+        }
+        return new MetricsReporter(period, unit, dataSource, pool);
+    }
+
+    synchronized void report() {
+        if (!log.isInfoEnabled()) {
+            return;
+        }
+        long now = System.nanoTime();
+        double seconds = (now - lastNanos) / 1e9;
+        lastNanos = now;
+
+        for (MethodMetrics metrics : ManagerMetrics.getAll()) {
+            long calls = metrics.getCalls();
+            if (calls == 0) {
+                continue;
+            }
+            Long last = lastCalls.put(metrics.toString(), calls);
+            double rate = (calls - (last == null ? 0 : last)) / seconds;
+            LatencyHistogram.Snapshot latencies = metrics.getLatencies();
+            log.info(String.format("%s calls=%d errors=%d active=%d rate=%.1f/s "
+                    + "mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                    metrics, calls, metrics.getErrors(), metrics.getActiveCalls(), rate,
+                    latencies.getMean() / 1000,
+                    latencies.getValueAtPercentile(50) / 1000.0,
+                    latencies.getValueAtPercentile(90) / 1000.0,
+                    latencies.getValueAtPercentile(99) / 1000.0,
+                    latencies.getValueAtPercentile(99.9) / 1000.0,
+                    latencies.getMax() / 1000.0));
+        }
+
+        if (pool != null) {
+            log.info(pool.toString());
+        }
+        if (dataSource != null) {
+            for (StatementStatistics statement : dataSource.getTopStatements(TOP_STATEMENTS)) {
+                log.info(statement.toString());
+            }
+        }
+    }
+
+    /**
+     * Stops the reporter and logs the last snapshot.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        report();
+    }
+}
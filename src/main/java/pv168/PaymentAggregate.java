@@ -0,0 +1,81 @@
+package pv168;
+
+import java.math.BigDecimal;
+
+/**
+ * Count, sum, minimum and maximum of amounts of a group of payments,
+ * computed by the database.
+ */
+public class PaymentAggregate {
+
+    /**
+     * Aggregate of no payments.
+     */
+    public static final PaymentAggregate EMPTY = new PaymentAggregate(0, 0);
+
+    // amounts in cents, min and max are valid only with range
+    private final long count;
+    private final long sum;
+    private final boolean range;
+    private final long min;
+    private final long max;
+
+    /**
+     * Aggregate without minimum and maximum.
+     */
+    PaymentAggregate(long count, long sum) {
+        this(count, sum, false, 0, 0);
+    }
+
+    PaymentAggregate(long count, long sum, long min, long max) {
+        this(count, sum, true, min, max);
+    }
+
+    private PaymentAggregate(long count, long sum, boolean range, long min, long max) {
+        this.count = count;
+        this.sum = sum;
+        this.range = range;
+        this.min = min;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return
+     * Returns sum of amounts, zero if there are no payments.
+     */
+    public BigDecimal getSum() {
+        return Cents.toBigDecimal(sum);
+    }
+
+    long getSumCents() {
+        return sum;
+    }
+
+    /**
+     * @return
+     * Returns the smallest amount, null if there are no payments or the
+     * aggregate was read from daily rollups.
+     */
+    public BigDecimal getMin() {
+        return range ? Cents.toBigDecimal(min) : null;
+    }
+
+    /**
+     * @return
+     * Returns the largest amount, null if there are no payments or the
+     * aggregate was read from daily rollups.
+     */
+    public BigDecimal getMax() {
+        return range ? Cents.toBigDecimal(max) : null;
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentAggregate{" + "count=" + count + ", sum=" + getSum() + ", min=" + getMin()
+                + ", max=" + getMax() + '}';
+    }
+}
@@ -0,0 +1,272 @@
+package pv168;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of payments executed by LedgerBankingManager. Every
+ * payment is a record of RECORD_SIZE bytes: length of the payload, the
+ * payload of id, sender id, receiver id, amount in cents and time of
+ * sending in milliseconds, all of them longs, and CRC32 of the payload.
+ *
+ * The journal is a sequence of segment files named by the journal file with
+ * a suffix .1, .2, ... in the same directory. Records are appended to the
+ * last segment, the next one is started when it is longer than
+ * SEGMENT_SIZE. release() deletes records whose payments were all written
+ * to the database, so the journal does not grow and a start reads only
+ * payments which may have to be replayed.
+ *
+ * Records of one batch are written by one call of write() and forced to
+ * the disk once by FileChannel.force(false), the group commit of all
+ * payments of the batch. They are written by the channel, not through a
+ * memory mapped region: force() of the channel does not have to flush
+ * changes of mapped regions, and MappedByteBuffer.force() reports I/O errors
+ * differently in different JDK versions. A segment is read until the first
+ * record with a wrong length or checksum, the last segment is cut there when
+ * the journal opens, so a record torn by a crash is never replayed.
+ */
+final class PaymentJournal implements AutoCloseable {
+
+    private static final int PAYLOAD_SIZE = 5 * Long.BYTES;
+    static final int RECORD_SIZE = Integer.BYTES + PAYLOAD_SIZE + Integer.BYTES;
+    static final long SEGMENT_SIZE = 16 << 20;
+
+    private final Path directory;
+    private final String name;
+    // number of a closed segment -> id of its last payment, 0 if it has none
+    private final Map<Long, Long> closedSegments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_SIZE);
+    private long segment;
+    private FileChannel channel;
+    // offset of the end of written records and id of the last of them in the current segment
+    private long end;
+    private long lastId;
+
+    final static Logger log = LoggerFactory.getLogger(PaymentJournal.class);
+
+    /**
+     * @param file
+     * Path of the journal, its segments are files next to it.
+     */
+    PaymentJournal(Path file) throws IOException {
+        directory = file.toAbsolutePath().getParent();
+        name = file.getFileName().toString();
+
+        List<Long> segments = findSegments();
+        segment = segments.isEmpty() ? 1 : segments.remove(segments.size() - 1);
+        for (Long number : segments) {
+            long[] read = read(number, Long.MAX_VALUE, null);
+            if (read[0] < Files.size(segmentFile(number))) {
+                log.warn("segment {} of journal {} has invalid records after offset {}",
+                        new Object[]{number, file, read[0]});
+            }
+            closedSegments.put(number, read[1]);
+        }
+        channel = open(segment);
+        long[] read = read(segment, Long.MAX_VALUE, null);
+        end = read[0];
+        lastId = read[1];
+        // a record which was not completely written before a crash
+        channel.truncate(end);
+    }
+
+    private List<Long> findSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, name + ".*")) {
+            for (Path file : files) {
+                try {
+                    segments.add(Long.parseLong(file.getFileName().toString().substring(name.length() + 1)));
+                } catch (NumberFormatException ex) {
+                    // not a segment of the journal
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private Path segmentFile(long number) {
+        return directory.resolve(name + "." + number);
+    }
+
+    private FileChannel open(long number) throws IOException {
+        return FileChannel.open(segmentFile(number), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads records of a segment, stops at the first record which is not
+     * valid.
+     *
+     * @param afterId
+     * Records with this id or a smaller one are skipped.
+     * @param entries
+     * List the records are added to, null if they are only counted.
+     * @return
+     * Returns offset of the end of the valid records and id of the last of
+     * them, 0 if there is none.
+     */
+    private long[] read(long number, long afterId, List<LedgerProjection.Entry> entries) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(1024 * RECORD_SIZE);
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        long offset = 0;
+        long last = 0;
+        try (FileChannel file = FileChannel.open(segmentFile(number), StandardOpenOption.READ)) {
+            while (true) {
+                chunk.clear();
+                int read = file.read(chunk, offset);
+                if (read < RECORD_SIZE) {
+                    return new long[]{offset, last};
+                }
+                chunk.flip();
+                while (chunk.remaining() >= RECORD_SIZE) {
+                    if (chunk.getInt() != PAYLOAD_SIZE) {
+                        return new long[]{offset, last};
+                    }
+                    chunk.get(payload);
+                    crc.reset();
+                    crc.update(payload, 0, PAYLOAD_SIZE);
+                    if (chunk.getInt() != (int) crc.getValue()) {
+                        return new long[]{offset, last};
+                    }
+                    ByteBuffer record = ByteBuffer.wrap(payload);
+                    long id = record.getLong();
+                    if (entries != null && id > afterId) {
+                        entries.add(new LedgerProjection.Entry(id, record.getLong(), record.getLong(),
+                                record.getLong(), record.getLong()));
+                    }
+                    last = id;
+                    offset += RECORD_SIZE;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param afterId
+     * Id of the last payment which does not have to be replayed.
+     * @return
+     * Returns records with greater ids, in order of their execution.
+     */
+    List<LedgerProjection.Entry> readAfter(long afterId) throws IOException {
+        List<LedgerProjection.Entry> entries = new ArrayList<>();
+        for (Long number : closedSegments.keySet()) {
+            read(number, afterId, entries);
+        }
+        read(segment, afterId, entries);
+        return entries;
+    }
+
+    /**
+     * Adds record to the current batch.
+     */
+    void add(long id, long from, long to, long amount, long sent) {
+        if (buffer.remaining() < RECORD_SIZE) {
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        buffer.putInt(PAYLOAD_SIZE);
+        int payload = buffer.position();
+        buffer.putLong(id).putLong(from).putLong(to).putLong(amount).putLong(sent);
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + payload, PAYLOAD_SIZE);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Writes records of the current batch to the file and forces them to the
+     * disk. If it fails, no record of the batch stays in the file.
+     */
+    void write() throws IOException {
+        buffer.flip();
+        try {
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+            if (end >= SEGMENT_SIZE) {
+                roll();
+            }
+            long start = end;
+            try {
+                while (buffer.hasRemaining()) {
+                    end += channel.write(buffer, end);
+                }
+                channel.force(false);
+            } catch (IOException ex) {
+                // the batch is overwritten by the next one
+                end = start;
+                try {
+                    channel.truncate(start);
+                } catch (IOException ex1) {
+                    ex.addSuppressed(ex1);
+                }
+                throw ex;
+            }
+            // ids of a batch grow, the last record has the greatest one
+            lastId = buffer.getLong(buffer.limit() - RECORD_SIZE + Integer.BYTES);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Closes the current segment and starts the next one.
+     */
+    private void roll() throws IOException {
+        FileChannel next = open(segment + 1);
+        channel.close();
+        closedSegments.put(segment, lastId);
+        channel = next;
+        segment++;
+        end = 0;
+        lastId = 0;
+    }
+
+    /**
+     * Deletes records which do not have to be replayed: closed segments whose
+     * payments are all written to the database, and records of the current
+     * segment if all of them are written too.
+     *
+     * @param projectedId
+     * Id of the last payment written to the database.
+     */
+    void release(long projectedId) throws IOException {
+        for (Iterator<Map.Entry<Long, Long>> it = closedSegments.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Long> closed = it.next();
+            // ids grow from segment to segment
+            if (closed.getValue() > projectedId) {
+                return;
+            }
+            Files.delete(segmentFile(closed.getKey()));
+            it.remove();
+            log.debug("segment {} of journal {} was deleted", closed.getKey(), name);
+        }
+        if (end > 0 && lastId <= projectedId) {
+            channel.truncate(0);
+            channel.force(false);
+            end = 0;
+            lastId = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -2,6 +2,7 @@ package pv168;
 
 import java.sql.Connection;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Created by xvancik on 3/8/16.
@@ -11,14 +12,35 @@ public interface PaymentManager {
 
     public void createPayment(Payment payment);
     
+    /**
+     * Does the same as createPayment(payment) in the transaction of given connection.
+     * If autocommit of con is false, the caller has to call
+     * ChangeLog.of(dataSource).committed(con) after commit, or
+     * rolledBack(con) after rollback, so views of the data source see the
+     * change.
+     */
     public void createPayment(Payment payment, Connection con);
 
     public void deletePayment(Payment payment);
     
+    /**
+     * Does the same as deletePayment(payment) in the transaction of given connection.
+     * If autocommit of con is false, the caller has to call
+     * ChangeLog.of(dataSource).committed(con) after commit, or
+     * rolledBack(con) after rollback, so views of the data source see the
+     * change.
+     */
     public void deletePayment(Payment payment, Connection con);
 
     public void updatePayment(Payment payment);
     
+    /**
+     * Does the same as updatePayment(payment) in the transaction of given connection.
+     * If autocommit of con is false, the caller has to call
+     * ChangeLog.of(dataSource).committed(con) after commit, or
+     * rolledBack(con) after rollback, so views of the data source see the
+     * change.
+     */
     public void updatePayment(Payment payment, Connection con);
 
     public Payment findPaymentById(Long id);
@@ -29,4 +51,69 @@ public interface PaymentManager {
     
     public List<Payment> findAllPayments(Connection con);
 
+    /**
+     * Retrieves all payments lazily together with their accounts, rows are read
+     * from the database while the stream is consumed.
+     *
+     * @param fetchSize
+     * Number of rows fetched from the database at once, must be positive.
+     * @return
+     * Returns Stream of all payments, which must be closed after use.
+     */
+    public Stream<Payment> streamAllPayments(int fetchSize);
+
+    /**
+     * Retrieves one page of payments ordered by id together with their accounts.
+     * Next page is retrieved by passing id of the last payment of this page
+     * as afterId.
+     *
+     * @param afterId
+     * Id of the last payment of previous page, null for the first page.
+     * @param limit
+     * Maximal number of returned payments, must be positive.
+     * @return
+     * Returns List of at most limit payments with id greater than afterId.
+     */
+    public List<Payment> findPayments(Long afterId, int limit);
+
+    /**
+     * Does the same as findPayments(afterId, limit), but skips given number of
+     * payments after afterId first.
+     *
+     * @param afterId
+     * Id of the last known payment, null to start from the first payment.
+     * @param skip
+     * Number of payments after afterId to be skipped, must not be negative.
+     * @param limit
+     * Maximal number of returned payments, must be positive.
+     * @return
+     * Returns List of at most limit payments ordered by id.
+     */
+    public List<Payment> findPayments(Long afterId, int skip, int limit);
+
+    /**
+     * @return
+     * Returns number of payments stored in the database.
+     */
+    public int countPayments();
+
+    /**
+     * @return
+     * Returns version of the last change of accounts or payments made by
+     * managers using the same DataSource, see ChangeLog.
+     */
+    public long getChangeVersion();
+
+    /**
+     * Retrieves ids of payments which were created, updated or deleted after
+     * given version.
+     *
+     * @param version
+     * Version returned by getChangeVersion() when the view was loaded.
+     * @return
+     * Returns List of changes ordered by version, or null if everything has to
+     * be reloaded.
+     */
+    public List<ChangeLog.Change> findPaymentChangesSince(long version);
+
 }
@@ -9,7 +9,10 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,10 +24,25 @@ import static pv168.AccountManagerImpl.*;
 public class PaymentManagerImpl implements PaymentManager {
 
     private final DataSource dataSource;
+    private final ChangeLog changeLog;
     final static Logger log = LoggerFactory.getLogger(PaymentManagerImpl.class);
 
+    /**
+     * Selects payments together with both of their accounts, so whole payment
+     * can be built from one row without additional queries. Callers append
+     * WHERE / ORDER BY clauses using alias p for payment.
+     */
+    static final String SELECT_PAYMENTS_WITH_ACCOUNTS = "SELECT "
+            + "p.id, p.amount, p.dateSent, "
+            + "f.id AS fromId, f.owner AS fromOwner, f.balance AS fromBalance, "
+            + "t.id AS toId, t.owner AS toOwner, t.balance AS toBalance "
+            + "FROM payment p "
+            + "JOIN account f ON p.fromAcc = f.id "
+            + "JOIN account t ON p.toAcc = t.id";
+
     public PaymentManagerImpl(DataSource dataSource) {
         this.dataSource = dataSource;
+        this.changeLog = ChangeLog.of(dataSource);
     }
 
     @Override
@@ -33,9 +51,10 @@ public class PaymentManagerImpl implements PaymentManager {
         checkPaymentForCreatePayment(payment);
 
         try (Connection connection = dataSource.getConnection();) {
-            createPaymentInnerProcess(connection, payment);
-            log.info("payment {} was created", payment);
+            inTransaction(connection, () -> createPaymentInnerProcess(connection, payment));
+            log.debug("payment {} was created", payment);
         } catch (SQLException ex) {
+            payment.setId(null);
             log.error("payment {} coudld not be created", payment);
             throw new ServiceFailureException("Error when inserting payment " + payment, ex);
         }
@@ -45,7 +64,7 @@ public class PaymentManagerImpl implements PaymentManager {
     public void createPayment(Payment payment, Connection con) throws ServiceFailureException {
         checkPaymentForCreatePayment(payment);
         createPaymentInnerProcess(con, payment);
-        log.info("payment {} was created", payment);
+        log.debug("payment {} was created", payment);
     }
 
     @Override
@@ -54,8 +73,8 @@ public class PaymentManagerImpl implements PaymentManager {
         checkPaymentForDeletePayment(payment);
 
         try (Connection connection = dataSource.getConnection();) {
-            deletePaymentInnerProcess(connection, payment);
-            log.info("payment {} was deleted", payment);
+            inTransaction(connection, () -> deletePaymentInnerProcess(connection, payment));
+            log.debug("payment {} was deleted", payment);
         } catch (SQLException ex) {
             log.info("payment {} coudld not be deleted", payment);
             throw new ServiceFailureException(
@@ -67,7 +86,7 @@ public class PaymentManagerImpl implements PaymentManager {
     public void deletePayment(Payment payment, Connection con) throws ServiceFailureException {
         checkPaymentForDeletePayment(payment);
         deletePaymentInnerProcess(con, payment);
-        log.info("payment {} was deleted", payment);
+        log.debug("payment {} was deleted", payment);
     }
 
     @Override
@@ -76,8 +95,8 @@ public class PaymentManagerImpl implements PaymentManager {
         checkPaymentForUpdatePayment(payment);
 
         try (Connection connection = dataSource.getConnection();) {
-            updatePaymentInnerProcess(connection, payment);
-            log.info("payment {} was updated", payment);
+            inTransaction(connection, () -> updatePaymentInnerProcess(connection, payment));
+            log.debug("payment {} was updated", payment);
         } catch (SQLException ex) {
             log.info("payment {} coudld not updated", payment);
             throw new ServiceFailureException(
@@ -89,7 +108,7 @@ public class PaymentManagerImpl implements PaymentManager {
     public void updatePayment(Payment payment, Connection con) throws ServiceFailureException {
         checkPaymentForUpdatePayment(payment);
         updatePaymentInnerProcess(con, payment);
-        log.info("payment {} was updated", payment);
+        log.debug("payment {} was updated", payment);
     }
 
     @Override
@@ -128,7 +147,88 @@ public class PaymentManagerImpl implements PaymentManager {
         return findAllPaymentsInnerProcess(con);
     }
 
+    @Override
+    public List<Payment> findPayments(Long afterId, int limit) throws ServiceFailureException {
+        return findPayments(afterId, 0, limit);
+    }
+
+    @Override
+    public List<Payment> findPayments(Long afterId, int skip, int limit) throws ServiceFailureException {
+
+        checkSkip(skip);
+        checkLimit(limit);
+
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement prepStatement = connection.prepareStatement(SELECT_PAYMENTS_WITH_ACCOUNTS
+                        + " WHERE p.id > ? ORDER BY p.id OFFSET ? ROWS FETCH FIRST ? ROWS ONLY")) {
+            prepStatement.setLong(1, afterId == null ? Long.MIN_VALUE : afterId);
+            prepStatement.setInt(2, skip);
+            prepStatement.setInt(3, limit);
+
+            return resultSetToPaymentsWithAccounts(prepStatement.executeQuery());
+        } catch (SQLException ex) {
+            log.error("Failed to retrieve payments after id {}", afterId);
+            throw new ServiceFailureException(
+                    "Error when retrieving payments after id " + afterId, ex);
+        }
+    }
+
+    @Override
+    public int countPayments() throws ServiceFailureException {
+
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement prepStatement = connection.prepareStatement("SELECT COUNT(*) FROM payment")) {
+            ResultSet rs = prepStatement.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        } catch (SQLException ex) {
+            log.error("Failed to count payments");
+            throw new ServiceFailureException("Error when counting payments", ex);
+        }
+    }
+
+    @Override
+    public long getChangeVersion() {
+        return changeLog.getVersion();
+    }
+
+    @Override
+    public List<ChangeLog.Change> findPaymentChangesSince(long version) {
+        return changeLog.findChangesSince(ChangeLog.Entity.PAYMENT, version);
+    }
+
+    @Override
+    public Stream<Payment> streamAllPayments(int fetchSize) throws ServiceFailureException {
+
+        try {
+            return streamPayments(dataSource, SELECT_PAYMENTS_WITH_ACCOUNTS, fetchSize);
+        } catch (SQLException ex) {
+            log.error("Failed to stream all payments record");
+            throw new ServiceFailureException(
+                    "Error when retrieving all payments", ex);
+        }
+    }
+
 //------------------------------------------------------------------------------
+    /**
+     * Runs work in one transaction, so that a payment and its daily rollups
+     * are changed together.
+     */
+    private void inTransaction(Connection con, Runnable work) throws SQLException {
+        con.setAutoCommit(false);
+        try {
+            work.run();
+            con.commit();
+            changeLog.committed(con);
+        } catch (SQLException | RuntimeException ex) {
+            con.rollback();
+            changeLog.rolledBack(con);
+            throw ex;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
     public static Long getKey(ResultSet keyRS, Payment payment) throws ServiceFailureException, SQLException {
         if (keyRS.next()) {
             if (keyRS.getMetaData().getColumnCount() != 1) {
@@ -153,55 +253,65 @@ public class PaymentManagerImpl implements PaymentManager {
         }
     }
 
-    public static Payment resultSetToPayment(ResultSet rs, Connection con) throws SQLException {
+    /**
+     * Builds payment from a row of SELECT_PAYMENTS_WITH_ACCOUNTS. Accounts are
+     * looked up in passed identity map first, so each account is materialized
+     * only once per result set.
+     *
+     * @param rs
+     * ResultSet positioned on a row of SELECT_PAYMENTS_WITH_ACCOUNTS.
+     * @param accounts
+     * Identity map of accounts already built from the same result set.
+     * @return
+     * Payment with both accounts set.
+     */
+    public static Payment resultSetToPaymentWithAccounts(ResultSet rs, Map<Long, Account> accounts) throws SQLException {
         Payment payment = new Payment();
-        Date date = new Date(rs.getTimestamp("dateSent").getTime());
         payment.setId(rs.getLong("id"));
         payment.setAmount(rs.getBigDecimal("amount"));
-        payment.setSent(date);
+        payment.setSent(new Date(rs.getTimestamp("dateSent").getTime()));
 
-        Long fromId = rs.getLong("fromAcc");
-        Long toId = rs.getLong("toAcc");
-
-        findAccountsToPayment(payment, con, fromId, toId);
+        payment.setFrom(joinedAccount(rs, accounts, "fromId", "fromOwner", "fromBalance"));
+        payment.setTo(joinedAccount(rs, accounts, "toId", "toOwner", "toBalance"));
         return payment;
     }
 
-    private static void findAccountsToPayment(Payment payment, Connection connection, Long fromAcc, Long toAcc) {
-
-        try (PreparedStatement stFrom = connection.prepareStatement(""
-                + "SELECT * FROM account WHERE id = ?");
-                PreparedStatement stTo = connection.prepareStatement(""
-                        + "SELECT * FROM account WHERE id = ?");) {
-            stFrom.setLong(1, fromAcc);
-            ResultSet rsFrom = stFrom.executeQuery();
-            stTo.setLong(1, toAcc);
-            ResultSet rsTo = stTo.executeQuery();
+    /**
+     * Reads all rows of SELECT_PAYMENTS_WITH_ACCOUNTS result set into List.
+     */
+    public static List<Payment> resultSetToPaymentsWithAccounts(ResultSet rs) throws SQLException {
+        Map<Long, Account> accounts = new HashMap<>();
+        List<Payment> result = new ArrayList<>();
 
-            if (rsFrom.next()) {
-                Account from = resultSetToAccount(rsFrom);
-                payment.setFrom(from);
-                if (rsFrom.next()) {
-                    log.error("Internal error: More accounts with same id found");
-                    throw new ServiceFailureException(
-                            "Internal error: More accounts with same id found");
-                }
-            }
-            if (rsTo.next()) {
-                Account to = resultSetToAccount(rsTo);
-                payment.setTo(to);
-                if (rsTo.next()) {
-                    log.error("Internal error: More accounts with same id found");
-                    throw new ServiceFailureException(
-                            "Internal error: More accounts with same id found");
-                }
-            }
-        } catch (SQLException ex) {
-            log.error("rror when retrieving accounts to payment with id {}", payment.getId());
-            throw new ServiceFailureException(
-                    "Error when retrieving accounts to payment with id " + payment.getId(), ex);
+        while (rs.next()) {
+            result.add(resultSetToPaymentWithAccounts(rs, accounts));
         }
+        return result;
+    }
+
+    /**
+     * Streams result of SELECT_PAYMENTS_WITH_ACCOUNTS based query. Accounts are
+     * not shared between rows, so memory does not grow with the stream.
+     */
+    static Stream<Payment> streamPayments(DataSource dataSource, String sql, int fetchSize,
+            Object... params) throws SQLException {
+        return ResultSetStream.query(dataSource, sql, fetchSize,
+                rs -> resultSetToPaymentWithAccounts(rs, new HashMap<>(4)), params);
+    }
 
+    private static Account joinedAccount(ResultSet rs, Map<Long, Account> accounts,
+            String idColumn, String ownerColumn, String balanceColumn) throws SQLException {
+        Long id = rs.getLong(idColumn);
+        Account account = accounts.get(id);
+
+        if (account == null) {
+            account = new Account();
+            account.setId(id);
+            account.setOwner(rs.getString(ownerColumn));
+            account.setBalance(rs.getBigDecimal(balanceColumn));
+            accounts.put(id, account);
+        }
+        return account;
     }
 
 //------------------------------------------------------------------------------
@@ -218,6 +328,10 @@ public class PaymentManagerImpl implements PaymentManager {
             log.warn("Operation failed: amount is negative!");
             throw new IllegalArgumentException("amount is negative number");
         }
+        if (payment.getAmount().stripTrailingZeros().scale() > 2) {
+            log.warn("Operation failed: amount has fractions of cents!");
+            throw new IllegalArgumentException("amount has fractions of cents");
+        }
         if (payment.getFrom() == null) {
             log.warn("Operation failed: from account is null!");
             throw new IllegalArgumentException("account from is null");
@@ -258,7 +372,10 @@ public class PaymentManagerImpl implements PaymentManager {
             }
 
             ResultSet keyRS = prepStatement.getGeneratedKeys();
-            payment.setId(getKey(keyRS, payment));
+            Long id = getKey(keyRS, payment);
+            new DailyRollup().add(payment).apply(con);
+            payment.setId(id);
+            changeLog.record(con, ChangeLog.Entity.PAYMENT, ChangeLog.Kind.CREATED, payment.getId());
 
         } catch (SQLException ex) {
             log.error("payment {} coudl not be created", payment);
@@ -285,6 +402,8 @@ public class PaymentManagerImpl implements PaymentManager {
                 "DELETE FROM payment WHERE id = ?")) {
 
             prepStatement.setLong(1, payment.getId());
+            DailyRollup rollup = new DailyRollup();
+            rollup.removeStored(con, payment.getId());
 
             int count = prepStatement.executeUpdate();
             if (count == 0) {
@@ -294,6 +413,8 @@ public class PaymentManagerImpl implements PaymentManager {
                 log.error(count + " rows have been affected!");
                 throw new ServiceFailureException("Invalid deleted rows count detected (one row should be updated): " + count);
             }
+            rollup.apply(con);
+            changeLog.record(con, ChangeLog.Entity.PAYMENT, ChangeLog.Kind.DELETED, payment.getId());
 
         } catch (SQLException ex) {
             log.error("payment {} coudl not be deleted", payment);
@@ -319,6 +440,8 @@ public class PaymentManagerImpl implements PaymentManager {
             prepStatement.setLong(3, payment.getTo().getId());
             prepStatement.setTimestamp(4, new java.sql.Timestamp(payment.getSent().getTime()));
             prepStatement.setLong(5, payment.getId());
+            DailyRollup rollup = new DailyRollup();
+            rollup.removeStored(con, payment.getId());
 
             int count = prepStatement.executeUpdate();
             if (count == 0) {
@@ -328,6 +451,8 @@ public class PaymentManagerImpl implements PaymentManager {
                 log.error(count + " rows have been affected!");
                 throw new ServiceFailureException("Invalid updated rows count detected (one row should be updated): " + count);
             }
+            rollup.add(payment).apply(con);
+            changeLog.record(con, ChangeLog.Entity.PAYMENT, ChangeLog.Kind.UPDATED, payment.getId());
 
         } catch (SQLException ex) {
             log.error("payment {} could not be updated", payment);
@@ -346,23 +471,23 @@ public class PaymentManagerImpl implements PaymentManager {
     private Payment findPaymentByIdInnerProcess(Long id, Connection con) {
 
         try (PreparedStatement prepStatement = con.prepareStatement(
-                "SELECT * FROM payment WHERE id = ?")) {
+                SELECT_PAYMENTS_WITH_ACCOUNTS + " WHERE p.id = ?")) {
             prepStatement.setLong(1, id);
             ResultSet rs = prepStatement.executeQuery();
+            Map<Long, Account> accounts = new HashMap<>();
 
             if (rs.next()) {
-                Payment payment = resultSetToPayment(rs, con);
-                findAccountsToPayment(payment, con, rs.getLong("fromAcc"), rs.getLong("toAcc"));
+                Payment payment = resultSetToPaymentWithAccounts(rs, accounts);
                 if (rs.next()) {
                     log.error("found more than one entity with id {}", id);
                     throw new ServiceFailureException(
                             "Internal error: More entities with the same id found "
-                            + "(source id: " + id + ", found " + payment + " and " + resultSetToPayment(rs, con));
+                            + "(source id: " + id + ", found " + payment + " and " + resultSetToPaymentWithAccounts(rs, accounts));
                 }
-                log.info("payment {} was found", payment);
+                log.debug("payment {} was found", payment);
                 return payment;
             } else {
-                log.info("payment with id {} was not found", id);
+                log.debug("payment with id {} was not found", id);
                 return null;
             }
         } catch (SQLException ex) {
@@ -375,17 +500,12 @@ public class PaymentManagerImpl implements PaymentManager {
     private List<Payment> findAllPaymentsInnerProcess(Connection con) {
 
         try (PreparedStatement prepStatement = con.prepareStatement(
-                "SELECT * FROM payment")) {
+                SELECT_PAYMENTS_WITH_ACCOUNTS)) {
 
             ResultSet rs = prepStatement.executeQuery();
 
-            List<Payment> result = new ArrayList<>();
-            while (rs.next()) {
-                Payment current = resultSetToPayment(rs, con);
-                findAccountsToPayment(current, con, rs.getLong("fromAcc"), rs.getLong("toAcc"));
-                result.add(current);
-            }
-            log.info("all payments was successfully retrieved", result);
+            List<Payment> result = resultSetToPaymentsWithAccounts(rs);
+            log.debug("all payments was successfully retrieved", result);
             return result;
 
         } catch (SQLException ex) {
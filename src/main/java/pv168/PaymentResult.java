@@ -0,0 +1,23 @@
+package pv168;
+
+/**
+ * Outcome of one payment passed to BankingManager.executePayments(payments).
+ */
+public enum PaymentResult {
+
+    /**
+     * Payment was executed and stored, its id and date are set.
+     */
+    EXECUTED,
+
+    /**
+     * Sending account did not have enough money, nothing was changed.
+     */
+    INSUFFICIENT_BALANCE,
+
+    /**
+     * Sending or receiving account does not exist in the database, nothing
+     * was changed.
+     */
+    ACCOUNT_NOT_FOUND
+}
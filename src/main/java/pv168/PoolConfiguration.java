@@ -0,0 +1,176 @@
+package pv168;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates DBCP connection pool configured from properties.
+ *
+ * Property jdbc.mode selects how the database is reached:
+ *
+ *     client    (default) network client connecting to a Derby server by
+ *               jdbc.driver, jdbc.url, jdbc.user and jdbc.password
+ *     embedded  Derby running inside of this JVM, no TCP round trip per
+ *               statement, configured by
+ *
+ *     jdbc.embedded.database         database name or path, created if it does not exist
+ *     jdbc.embedded.logDevice        directory of transaction log, used when the database is created,
+ *                                    e.g. on another disk than data
+ *     derby.system.home              directory of databases given by relative path
+ *     derby.storage.pageCacheSize    number of pages cached in memory
+ *     derby.storage.pageSize         page size in bytes of newly created tables and indexes
+ *     derby.storage.checkpointInterval  bytes of transaction log written between checkpoints
+ *
+ * Properties starting by derby. are set as system properties before the
+ * embedded database is booted, unless they are set already, e.g. by -D.
+ *
+ * The pool is configured by following optional properties, DBCP defaults are
+ * used for missing ones:
+ *
+ *     jdbc.pool.initialSize                    connections opened at start
+ *     jdbc.pool.maxActive                      maximal open connections, negative for no limit
+ *     jdbc.pool.maxIdle                        maximal idle connections
+ *     jdbc.pool.minIdle                        idle connections kept by the evictor
+ *     jdbc.pool.maxWaitMillis                  wait for free connection before failing, negative for ever
+ *     jdbc.pool.validationQuery                query validating connections, e.g. VALUES 1
+ *     jdbc.pool.testOnBorrow                   validate connection before it is borrowed
+ *     jdbc.pool.testOnReturn                   validate connection when it is returned
+ *     jdbc.pool.testWhileIdle                  validate idle connections by the evictor
+ *     jdbc.pool.timeBetweenEvictionRunsMillis  period of the evictor, negative for no evictor
+ *     jdbc.pool.minEvictableIdleTimeMillis     idle time after which connection is evicted
+ *     jdbc.pool.numTestsPerEvictionRun         idle connections checked by one evictor run
+ *     jdbc.pool.poolPreparedStatements         reuse prepared statements of one connection
+ *     jdbc.pool.maxOpenPreparedStatements      maximal pooled statements, negative for no limit
+ */
+public final class PoolConfiguration {
+
+    static final String PREFIX = "jdbc.pool.";
+    static final String EMBEDDED_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+
+    final static Logger log = LoggerFactory.getLogger(PoolConfiguration.class);
+
+    private PoolConfiguration() {
+    }
+
+    /**
+     * @param p
+     * Properties with connection and pool configuration.
+     * @return
+     * Returns configured pool, connections are opened on the first
+     * getConnection() call.
+     * @throws IllegalArgumentException
+     * If some pool property has invalid value.
+     */
+    public static BasicDataSource createPool(Properties p) {
+        if (p == null) {
+            throw new IllegalArgumentException("Properties are null!");
+        }
+
+        BasicDataSource bds = new BasicDataSource();
+        if (isEmbedded(p)) {
+            setDerbySystemProperties(p);
+            bds.setDriverClassName(EMBEDDED_DRIVER);
+            bds.setUrl(embeddedUrl(p));
+        } else {
+            bds.setDriverClassName(p.getProperty("jdbc.driver"));
+            bds.setUrl(p.getProperty("jdbc.url"));
+        }
+        bds.setUsername(p.getProperty("jdbc.user"));
+        bds.setPassword(p.getProperty("jdbc.password"));
+
+        set(p, "initialSize", Integer::valueOf, bds::setInitialSize);
+        set(p, "maxActive", Integer::valueOf, bds::setMaxActive);
+        set(p, "maxIdle", Integer::valueOf, bds::setMaxIdle);
+        set(p, "minIdle", Integer::valueOf, bds::setMinIdle);
+        set(p, "maxWaitMillis", Long::valueOf, bds::setMaxWait);
+        set(p, "validationQuery", Function.identity(), bds::setValidationQuery);
+        set(p, "testOnBorrow", PoolConfiguration::parseBoolean, bds::setTestOnBorrow);
+        set(p, "testOnReturn", PoolConfiguration::parseBoolean, bds::setTestOnReturn);
+        set(p, "testWhileIdle", PoolConfiguration::parseBoolean, bds::setTestWhileIdle);
+        set(p, "timeBetweenEvictionRunsMillis", Long::valueOf, bds::setTimeBetweenEvictionRunsMillis);
+        set(p, "minEvictableIdleTimeMillis", Long::valueOf, bds::setMinEvictableIdleTimeMillis);
+        set(p, "numTestsPerEvictionRun", Integer::valueOf, bds::setNumTestsPerEvictionRun);
+        set(p, "poolPreparedStatements", PoolConfiguration::parseBoolean, bds::setPoolPreparedStatements);
+        set(p, "maxOpenPreparedStatements", Integer::valueOf, bds::setMaxOpenPreparedStatements);
+
+        return bds;
+    }
+
+    /**
+     * @return
+     * Returns true if properties select embedded Derby.
+     * @throws IllegalArgumentException
+     * If jdbc.mode is neither client nor embedded.
+     */
+    public static boolean isEmbedded(Properties p) {
+        String mode = p.getProperty("jdbc.mode", "client").trim();
+        if (mode.equalsIgnoreCase("embedded")) {
+            return true;
+        }
+        if (mode.equalsIgnoreCase("client")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Invalid value of jdbc.mode: " + mode);
+    }
+
+    /**
+     * Shuts down embedded Derby, so that it does not have to recover its
+     * databases on the next start. Does nothing if Derby was not booted.
+     */
+    public static void shutdownEmbedded() {
+        try {
+            DriverManager.getConnection("jdbc:derby:;shutdown=true").close();
+        } catch (SQLException ex) {
+            // Derby reports successful shutdown by SQLException with state XJ015
+            if (!"XJ015".equals(ex.getSQLState()) && !"08001".equals(ex.getSQLState())) {
+                log.error("embedded Derby could not be shut down", ex);
+            }
+        }
+    }
+
+    static String embeddedUrl(Properties p) {
+        String database = p.getProperty("jdbc.embedded.database");
+        if (database == null || database.trim().isEmpty()) {
+            throw new IllegalArgumentException("jdbc.embedded.database must be set in embedded mode!");
+        }
+        StringBuilder url = new StringBuilder("jdbc:derby:").append(database.trim()).append(";create=true");
+        String logDevice = p.getProperty("jdbc.embedded.logDevice");
+        if (logDevice != null && !logDevice.trim().isEmpty()) {
+            url.append(";logDevice=").append(logDevice.trim());
+        }
+        return url.toString();
+    }
+
+    private static void setDerbySystemProperties(Properties p) {
+        for (String name : p.stringPropertyNames()) {
+            if (name.startsWith("derby.") && System.getProperty(name) == null) {
+                System.setProperty(name, p.getProperty(name).trim());
+            }
+        }
+    }
+
+    private static <T> void set(Properties p, String name, Function<String, T> parser, Consumer<T> setter) {
+        String value = p.getProperty(PREFIX + name);
+        if (value == null || value.trim().isEmpty()) {
+            return;
+        }
+        try {
+            setter.accept(parser.apply(value.trim()));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid value of " + PREFIX + name + ": " + value, ex);
+        }
+    }
+
+    private static Boolean parseBoolean(String value) {
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException("Expected true or false");
+        }
+        return Boolean.valueOf(value);
+    }
+}
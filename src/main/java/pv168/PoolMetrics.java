@@ -0,0 +1,103 @@
+package pv168;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gauges of the connection pool behind an InstrumentedDataSource. Numbers of
+ * active and idle connections are read from DBCP pool, waiting threads, wait
+ * times and failures are measured by InstrumentedDataSource, so they are
+ * known for any wrapped DataSource.
+ */
+public final class PoolMetrics implements PoolMetricsMXBean {
+
+    private final InstrumentedDataSource dataSource;
+    private final BasicDataSource pool;
+    final static Logger log = LoggerFactory.getLogger(PoolMetrics.class);
+
+    /**
+     * @param dataSource
+     * DataSource measuring waits for connections.
+     * @param pool
+     * Pool wrapped by dataSource, null if it is not a DBCP pool.
+     */
+    public PoolMetrics(InstrumentedDataSource dataSource, BasicDataSource pool) {
+        if (dataSource == null) {
+            throw new IllegalArgumentException("Data source is null!");
+        }
+        this.dataSource = dataSource;
+        this.pool = pool;
+    }
+
+    /**
+     * Registers these metrics as MXBean pv168:type=PoolMetrics,name=given name.
+     */
+    public PoolMetrics register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName(ManagerMetrics.JMX_DOMAIN + ":type=PoolMetrics,name=" + ObjectName.quote(name)));
+        } catch (JMException ex) {
+            log.warn("pool metrics {} could not be registered in JMX", name, ex);
+        }
+        return this;
+    }
+
+    @Override
+    public int getActive() {
+        return pool == null ? -1 : pool.getNumActive();
+    }
+
+    @Override
+    public int getIdle() {
+        return pool == null ? -1 : pool.getNumIdle();
+    }
+
+    @Override
+    public int getMaxActive() {
+        return pool == null ? -1 : pool.getMaxActive();
+    }
+
+    @Override
+    public long getWaiters() {
+        return dataSource.getWaitingThreads();
+    }
+
+    @Override
+    public long getBorrows() {
+        return dataSource.getBorrows();
+    }
+
+    @Override
+    public long getBorrowFailures() {
+        return dataSource.getBorrowFailures();
+    }
+
+    @Override
+    public double getWaitP50Micros() {
+        return dataSource.getBorrowLatencies().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getWaitP99Micros() {
+        return dataSource.getBorrowLatencies().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getWaitMaxMicros() {
+        return dataSource.getBorrowLatencies().getMax() / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram.Snapshot waits = dataSource.getBorrowLatencies();
+        return String.format("pool active=%d idle=%d maxActive=%d waiters=%d borrows=%d failures=%d "
+                + "wait p50=%.1fus p99=%.1fus max=%.1fus",
+                getActive(), getIdle(), getMaxActive(), getWaiters(), getBorrows(), getBorrowFailures(),
+                waits.getValueAtPercentile(50) / 1000.0, waits.getValueAtPercentile(99) / 1000.0,
+                waits.getMax() / 1000.0);
+    }
+}
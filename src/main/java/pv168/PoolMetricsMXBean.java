@@ -0,0 +1,26 @@
+package pv168;
+
+/**
+ * JMX view of the connection pool, latencies are in microseconds. Values
+ * which are not known for the pool are -1.
+ */
+public interface PoolMetricsMXBean {
+
+    public int getActive();
+
+    public int getIdle();
+
+    public int getMaxActive();
+
+    public long getWaiters();
+
+    public long getBorrows();
+
+    public long getBorrowFailures();
+
+    public double getWaitP50Micros();
+
+    public double getWaitP99Micros();
+
+    public double getWaitMaxMicros();
+}
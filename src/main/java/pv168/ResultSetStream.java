@@ -0,0 +1,117 @@
+package pv168;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.sql.DataSource;
+
+/**
+ * Stream backed by forward-only ResultSet. Rows are mapped lazily while the
+ * stream is consumed, so only fetched rows are held in memory. Closing the
+ * stream closes the result set, its statement and the connection.
+ */
+final class ResultSetStream {
+
+    /**
+     * Maps current row of ResultSet to an object.
+     */
+    interface RowMapper<T> {
+
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    private ResultSetStream() {
+    }
+
+    /**
+     * Executes query on a new connection and returns stream over its rows.
+     *
+     * @param dataSource
+     * Source of the connection, which is closed together with the stream.
+     * @param sql
+     * Query to be executed.
+     * @param fetchSize
+     * Number of rows fetched from the database at once, must be positive.
+     * @param mapper
+     * Maps rows to stream elements.
+     * @param params
+     * Values of query parameters.
+     * @return
+     * Returns stream which must be closed after use.
+     */
+    static <T> Stream<T> query(DataSource dataSource, String sql, int fetchSize,
+            RowMapper<T> mapper, Object... params) throws SQLException {
+
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be positive!");
+        }
+
+        Connection con = dataSource.getConnection();
+        PreparedStatement prepStatement = null;
+        ResultSet rs;
+        try {
+            prepStatement = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            prepStatement.setFetchSize(fetchSize);
+            for (int i = 0; i < params.length; i++) {
+                prepStatement.setObject(i + 1, params[i]);
+            }
+            rs = prepStatement.executeQuery();
+        } catch (SQLException ex) {
+            close(null, prepStatement, con, ex);
+            throw ex;
+        }
+
+        Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                try {
+                    if (!rs.next()) {
+                        return false;
+                    }
+                    action.accept(mapper.map(rs));
+                    return true;
+                } catch (SQLException ex) {
+                    throw new ServiceFailureException("Failed to read next row of " + sql, ex);
+                }
+            }
+        };
+
+        PreparedStatement statement = prepStatement;
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            SQLException ex = new SQLException("Failed to close result set of " + sql);
+            close(rs, statement, con, ex);
+            if (ex.getSuppressed().length > 0) {
+                throw new ServiceFailureException(ex);
+            }
+        });
+    }
+
+    private static void close(ResultSet rs, PreparedStatement prepStatement, Connection con, SQLException cause) {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+        } catch (SQLException ex) {
+            cause.addSuppressed(ex);
+        }
+        try {
+            if (prepStatement != null) {
+                prepStatement.close();
+            }
+        } catch (SQLException ex) {
+            cause.addSuppressed(ex);
+        }
+        try {
+            con.close();
+        } catch (SQLException ex) {
+            cause.addSuppressed(ex);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package pv168;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue of many producers and one consumer. Producers
+ * claim slots by incrementing the tail, the consumer frees them by
+ * incrementing the head, no lock is taken by either side.
+ */
+final class RingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // written only by the consumer
+    private volatile long head;
+
+    /**
+     * @param capacity
+     * Maximal number of queued elements, a power of two.
+     */
+    RingBuffer(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two, was " + capacity);
+        }
+        slots = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds element, waits while the buffer is full.
+     */
+    void put(E element) {
+        while (true) {
+            long claimed = tail.get();
+            if (claimed - head > mask) {
+                // full, the consumer frees slots soon
+                LockSupport.parkNanos(1000);
+            } else if (tail.compareAndSet(claimed, claimed + 1)) {
+                slots.lazySet((int) claimed & mask, element);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves queued elements to the list, called by the consumer only.
+     *
+     * @param max
+     * Maximal number of moved elements.
+     * @return
+     * Returns number of moved elements.
+     */
+    int drainTo(List<E> target, int max) {
+        long current = head;
+        int drained = 0;
+        while (drained < max) {
+            int index = (int) current & mask;
+            E element = slots.get(index);
+            if (element == null) {
+                // empty, or the producer of the slot has not stored it yet
+                break;
+            }
+            slots.lazySet(index, null);
+            target.add(element);
+            current++;
+            drained++;
+        }
+        head = current;
+        return drained;
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+}
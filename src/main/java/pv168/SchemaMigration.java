@@ -0,0 +1,338 @@
+package pv168;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates and upgrades database schema. Applied migrations are recorded in
+ * table schema_version, so migrate() can be called on every start and
+ * applies only migrations which are missing, in order of their versions.
+ * Every migration runs in its own transaction.
+ *
+ * Databases created before schema_version existed already contain tables
+ * account and payment, the first migration creates only missing tables, so
+ * such databases are taken over as they are.
+ */
+public final class SchemaMigration {
+
+    /**
+     * Part of a migration which depends on data, run after its statements.
+     */
+    private interface Step {
+
+        void apply(Connection connection) throws SQLException;
+    }
+
+    /**
+     * One step of the schema upgrade.
+     */
+    private static final class Migration {
+
+        private final int version;
+        private final String description;
+        private final List<String> statements;
+        private final Step after;
+
+        Migration(int version, String description, String... statements) {
+            this(version, description, null, statements);
+        }
+
+        Migration(int version, String description, Step after, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = Arrays.asList(statements);
+            this.after = after;
+        }
+    }
+
+    private static final String CREATE_ACCOUNT = "CREATE TABLE account ("
+            + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
+            + "owner VARCHAR(200) ,"
+            + "balance DECIMAL(17,2))";
+
+    private static final String CREATE_PAYMENT = "CREATE TABLE payment ("
+            + "id BIGINT NOT NULL primary key generated always as identity, "
+            + "amount DECIMAL(17,2), "
+            + "fromAcc BIGINT NOT NULL, "
+            + "toAcc BIGINT NOT NULL, "
+            + "FOREIGN KEY (fromAcc) REFERENCES account (id),"
+            + "FOREIGN KEY (toAcc) REFERENCES account (id),"
+            + "dateSent TIMESTAMP )";
+
+    static final String CREATE_PAYMENT_DAILY = "CREATE TABLE payment_daily ("
+            + "accountId BIGINT NOT NULL, "
+            + "sentDay DATE NOT NULL, "
+            + "inCount BIGINT NOT NULL, "
+            + "inSum DECIMAL(31,2) NOT NULL, "
+            + "outCount BIGINT NOT NULL, "
+            + "outSum DECIMAL(31,2) NOT NULL, "
+            + "PRIMARY KEY (accountId, sentDay))";
+
+    static final String CREATE_BALANCE_CHECKPOINT = "CREATE TABLE balance_checkpoint ("
+            + "accountId BIGINT NOT NULL, "
+            + "takenAt TIMESTAMP NOT NULL, "
+            + "balance DECIMAL(17,2), "
+            + "PRIMARY KEY (accountId, takenAt))";
+
+    // Derby can not change GENERATED ALWAYS of an existing column
+    private static final String CREATE_PAYMENT_WITH_ASSIGNABLE_IDS = "CREATE TABLE payment_new ("
+            + "id BIGINT NOT NULL PRIMARY KEY GENERATED BY DEFAULT AS IDENTITY, "
+            + "amount DECIMAL(17,2), "
+            + "fromAcc BIGINT NOT NULL, "
+            + "toAcc BIGINT NOT NULL, "
+            + "FOREIGN KEY (fromAcc) REFERENCES account (id),"
+            + "FOREIGN KEY (toAcc) REFERENCES account (id),"
+            + "dateSent TIMESTAMP )";
+
+    // id of the last journal record written to the database, one row
+    static final String CREATE_LEDGER_PROJECTION = "CREATE TABLE ledger_projection ("
+            + "lastPaymentId BIGINT NOT NULL)";
+
+    private static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+            new Migration(1, "tables account and payment", CREATE_ACCOUNT, CREATE_PAYMENT),
+            // statements of one account are read by index range scan ordered by date
+            new Migration(2, "indexes of payments by account and date",
+                    "CREATE INDEX payment_from_sent ON payment (fromAcc, dateSent)",
+                    "CREATE INDEX payment_to_sent ON payment (toAcc, dateSent)",
+                    "CREATE INDEX payment_sent ON payment (dateSent)"),
+            new Migration(3, "daily rollups of payments", CREATE_PAYMENT_DAILY,
+                    String.format(DailyRollup.INSERT_ROLLUPS, "IS NOT NULL")),
+            new Migration(4, "balance checkpoints", CREATE_BALANCE_CHECKPOINT),
+            new Migration(5, "payment ids assignable by the ledger",
+                    connection -> reservePaymentIds(connection, 1, 0),
+                    CREATE_PAYMENT_WITH_ASSIGNABLE_IDS,
+                    "INSERT INTO payment_new (id, amount, fromAcc, toAcc, dateSent) "
+                    + "SELECT id, amount, fromAcc, toAcc, dateSent FROM payment",
+                    "DROP TABLE payment",
+                    "RENAME TABLE payment_new TO payment",
+                    "CREATE INDEX payment_from_sent ON payment (fromAcc, dateSent)",
+                    "CREATE INDEX payment_to_sent ON payment (toAcc, dateSent)",
+                    "CREATE INDEX payment_sent ON payment (dateSent)"),
+            new Migration(6, "payments written by the ledger projection", CREATE_LEDGER_PROJECTION,
+                    "INSERT INTO ledger_projection (lastPaymentId) VALUES (0)"),
+            // pages of payments of one account are read by index range scan ordered by id
+            new Migration(7, "indexes of payments by account and id",
+                    "CREATE INDEX payment_from_id ON payment (fromAcc, id)",
+                    "CREATE INDEX payment_to_id ON payment (toAcc, id)")
+    ));
+
+    /**
+     * Version of the schema created by migrate().
+     */
+    public static final int LATEST_VERSION = MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+
+    private static final String TABLE_EXISTS = "X0Y32";
+    private static final String DEADLOCK = "40001";
+    private static final int MAX_ATTEMPTS = 5;
+
+    final static Logger log = LoggerFactory.getLogger(SchemaMigration.class);
+
+    private SchemaMigration() {
+    }
+
+    /**
+     * Applies all migrations newer than the current version of the schema.
+     *
+     * @param dataSource
+     * DataSource of migrated database.
+     * @return
+     * Returns version of the schema after migration.
+     * @throws ServiceFailureException
+     * If some migration fails, migrations applied before it stay applied.
+     */
+    public static int migrate(DataSource dataSource) {
+        if (dataSource == null) {
+            throw new IllegalArgumentException("Data source is null!");
+        }
+
+        try (Connection connection = dataSource.getConnection()) {
+            createVersionTable(connection);
+
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                int version = 0;
+                for (Migration migration : MIGRATIONS) {
+                    // other instances wait here until this one finishes the migration
+                    try (PreparedStatement lock = connection.prepareStatement(
+                            "LOCK TABLE schema_version IN EXCLUSIVE MODE")) {
+                        lock.execute();
+                    }
+                    version = findVersion(connection);
+                    if (migration.version > version) {
+                        apply(connection, migration);
+                        version = migration.version;
+                    }
+                    connection.commit();
+                }
+                return version;
+            } catch (SQLException | RuntimeException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException ex) {
+            log.error("database schema could not be migrated");
+            throw new ServiceFailureException("Failed to migrate database schema!", ex);
+        }
+    }
+
+    /**
+     * @param dataSource
+     * DataSource of the database.
+     * @return
+     * Returns version of the schema, 0 if no migration was applied yet.
+     */
+    public static int getCurrentVersion(DataSource dataSource) {
+        try (Connection connection = dataSource.getConnection()) {
+            if (!tableExists(connection, "SCHEMA_VERSION")) {
+                return 0;
+            }
+            return findVersion(connection);
+        } catch (SQLException ex) {
+            log.error("version of database schema could not be read");
+            throw new ServiceFailureException("Failed to read version of database schema!", ex);
+        }
+    }
+
+    private static void apply(Connection connection, Migration migration) throws SQLException {
+        log.info("applying schema migration {}: {}", migration.version, migration.description);
+
+        for (String sql : migration.statements) {
+            if (migration.version == 1 && isCreateOfExistingTable(connection, sql)) {
+                log.info("table of statement {} exists already, it is kept", sql);
+                continue;
+            }
+            try (PreparedStatement st = connection.prepareStatement(sql)) {
+                st.execute();
+            }
+        }
+        if (migration.after != null) {
+            migration.after.apply(connection);
+        }
+
+        try (PreparedStatement st = connection.prepareStatement(
+                "INSERT INTO schema_version (version, description, appliedAt) VALUES (?,?,?)")) {
+            st.setInt(1, migration.version);
+            st.setString(2, migration.description);
+            st.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            st.executeUpdate();
+        }
+    }
+
+    /**
+     * Reserves payment ids in its own transaction, see
+     * reservePaymentIds(Connection, long, long).
+     */
+    static long reservePaymentIds(DataSource dataSource, long notBelow, long count) throws SQLException {
+        for (int attempt = 1;; attempt++) {
+            try (Connection connection = dataSource.getConnection()) {
+                connection.setAutoCommit(false);
+                try {
+                    long first = reservePaymentIds(connection, notBelow, count);
+                    connection.commit();
+                    return first;
+                } catch (SQLException | RuntimeException ex) {
+                    connection.rollback();
+                    throw ex;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException ex) {
+                // the table lock may deadlock with a transaction writing payments
+                if (!DEADLOCK.equals(ex.getSQLState()) || attempt == MAX_ATTEMPTS) {
+                    throw ex;
+                }
+                log.warn("reservation of payment ids was chosen as deadlock victim, attempt {}", attempt);
+            }
+        }
+    }
+
+    /**
+     * Reserves payment ids for inserts with explicit ids, ids generated by the
+     * database continue after them. Must be called in a transaction, the
+     * payment table stays locked until its end, so the transaction should be
+     * committed right after the call.
+     *
+     * @param notBelow
+     * The smallest id which may be reserved.
+     * @param count
+     * Number of reserved ids.
+     * @return
+     * Returns the first reserved id, it is greater than ids of all stored
+     * rows and of all ids reserved before.
+     */
+    static long reservePaymentIds(Connection connection, long notBelow, long count) throws SQLException {
+        try (PreparedStatement lock = connection.prepareStatement("LOCK TABLE payment IN EXCLUSIVE MODE")) {
+            lock.execute();
+        }
+        long first = notBelow;
+        try (PreparedStatement st = connection.prepareStatement("SELECT MAX(id) FROM payment");
+                ResultSet rs = st.executeQuery()) {
+            rs.next();
+            first = Math.max(first, rs.getLong(1) + 1);
+        }
+        // ids reserved before may not be inserted yet, the identity was restarted after them
+        try (PreparedStatement st = connection.prepareStatement(
+                "VALUES SYSCS_UTIL.SYSCS_PEEK_AT_IDENTITY(CURRENT SCHEMA, 'PAYMENT')");
+                ResultSet rs = st.executeQuery()) {
+            if (rs.next()) {
+                first = Math.max(first, rs.getLong(1));
+            }
+        }
+        try (Statement st = connection.createStatement()) {
+            st.execute("ALTER TABLE payment ALTER COLUMN id RESTART WITH " + (first + count));
+        }
+        return first;
+    }
+
+    private static boolean isCreateOfExistingTable(Connection connection, String sql) throws SQLException {
+        String[] words = sql.split("\\s+");
+        return words[0].equalsIgnoreCase("CREATE") && words[1].equalsIgnoreCase("TABLE")
+                && tableExists(connection, words[2].toUpperCase());
+    }
+
+    private static void createVersionTable(Connection connection) throws SQLException {
+        if (tableExists(connection, "SCHEMA_VERSION")) {
+            return;
+        }
+        try (Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE schema_version ("
+                    + "version INT NOT NULL PRIMARY KEY, "
+                    + "description VARCHAR(200), "
+                    + "appliedAt TIMESTAMP)");
+        } catch (SQLException ex) {
+            // created concurrently by another instance
+            if (!TABLE_EXISTS.equals(ex.getSQLState())) {
+                throw ex;
+            }
+        }
+    }
+
+    private static int findVersion(Connection connection) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("SELECT MAX(version) FROM schema_version");
+                ResultSet rs = st.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static boolean tableExists(Connection connection, String table) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet rs = metaData.getTables(null, metaData.getUserName().toUpperCase(), table, null)) {
+            return rs.next();
+        }
+    }
+}
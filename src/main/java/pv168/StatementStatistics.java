@@ -0,0 +1,121 @@
+package pv168;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregated statistics of one normalized SQL statement, see
+ * InstrumentedDataSource. Times are in nanoseconds.
+ */
+public final class StatementStatistics {
+
+    private final String sql;
+    private final LongAdder prepares = new LongAdder();
+    private final LongAdder prepareNanos = new LongAdder();
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder executeNanos = new LongAdder();
+    private final LongAdder fetchNanos = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    StatementStatistics(String sql) {
+        this.sql = sql;
+    }
+
+    void prepared(long nanos) {
+        prepares.increment();
+        prepareNanos.add(nanos);
+    }
+
+    void executed(long nanos, boolean failed) {
+        executions.increment();
+        executeNanos.add(nanos);
+        if (failed) {
+            errors.increment();
+        }
+    }
+
+    void fetched(long nanos, long fetchedRows) {
+        fetchNanos.add(nanos);
+        rows.add(fetchedRows);
+    }
+
+    /**
+     * Records latency of one execution including fetching of its rows.
+     */
+    void finished(long nanos) {
+        latencies.record(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * @return
+     * Returns SQL text with whitespace collapsed and literals replaced by ?.
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    public long getPrepares() {
+        return prepares.sum();
+    }
+
+    public long getPrepareNanos() {
+        return prepareNanos.sum();
+    }
+
+    public long getExecutions() {
+        return executions.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getExecuteNanos() {
+        return executeNanos.sum();
+    }
+
+    public long getFetchNanos() {
+        return fetchNanos.sum();
+    }
+
+    /**
+     * @return
+     * Returns total time spent preparing, executing and fetching.
+     */
+    public long getTotalNanos() {
+        return getPrepareNanos() + getExecuteNanos() + getFetchNanos();
+    }
+
+    /**
+     * @return
+     * Returns number of rows read from result sets of this statement.
+     */
+    public long getRows() {
+        return rows.sum();
+    }
+
+    /**
+     * @return
+     * Returns the longest execution including fetching of its rows.
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public LatencyHistogram.Snapshot getLatencies() {
+        return latencies.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("executions=%d errors=%d rows=%d total=%.1fms prepare=%.1fms execute=%.1fms "
+                + "fetch=%.1fms p99=%.1fms max=%.1fms sql=%s",
+                getExecutions(), getErrors(), getRows(), getTotalNanos() / 1e6, getPrepareNanos() / 1e6,
+                getExecuteNanos() / 1e6, getFetchNanos() / 1e6, getLatencies().getValueAtPercentile(99) / 1e6,
+                getMaxNanos() / 1e6, sql);
+    }
+}
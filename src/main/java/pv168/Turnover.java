@@ -0,0 +1,69 @@
+package pv168;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Aggregates of incoming and outgoing payments of one account sent in period
+ * from (inclusive) to (exclusive).
+ */
+public class Turnover {
+
+    /**
+     * Length of periods of BankingManager.findTurnoverByPeriod(account, from, to, granularity).
+     * Periods start at midnight of the default time zone, like dates of payments
+     * stored in the database.
+     */
+    public enum Granularity {
+        DAY,
+        MONTH
+    }
+
+    private final Long accountId;
+    private final Date from;
+    private final Date to;
+    private final PaymentAggregate incoming;
+    private final PaymentAggregate outgoing;
+
+    Turnover(Long accountId, Date from, Date to, PaymentAggregate incoming, PaymentAggregate outgoing) {
+        this.accountId = accountId;
+        this.from = from;
+        this.to = to;
+        this.incoming = incoming;
+        this.outgoing = outgoing;
+    }
+
+    public Long getAccountId() {
+        return accountId;
+    }
+
+    public Date getFrom() {
+        return from;
+    }
+
+    public Date getTo() {
+        return to;
+    }
+
+    public PaymentAggregate getIncoming() {
+        return incoming;
+    }
+
+    public PaymentAggregate getOutgoing() {
+        return outgoing;
+    }
+
+    /**
+     * @return
+     * Returns sum of incoming amounts minus sum of outgoing amounts.
+     */
+    public BigDecimal getNetFlow() {
+        return Cents.toBigDecimal(incoming.getSumCents() - outgoing.getSumCents());
+    }
+
+    @Override
+    public String toString() {
+        return "Turnover{" + "accountId=" + accountId + ", from=" + from + ", to=" + to
+                + ", incoming=" + incoming + ", outgoing=" + outgoing + '}';
+    }
+}
@@ -6,6 +6,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import pv168.Account;
 import pv168.AccountManagerImpl;
+import pv168.ChangeLog;
 import pv168.EntityNotFoundException;
 
 import javax.sql.DataSource;
@@ -15,6 +16,8 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.*;
@@ -130,6 +133,90 @@ public class AccountManagerImplTest {
 
     }
 
+    @Test
+    public void testCreateAccounts() {
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            accounts.add(newAccount("Owner " + i, new BigDecimal(i)));
+        }
+
+        manager.createAccounts(accounts);
+
+        for (Account account : accounts) {
+            assertNotNull(account.getId());
+        }
+        assertThat(manager.findAllAccounts()).hasSize(2500).containsAll(accounts);
+        assertEquals(accounts.get(1234), manager.findAccountById(accounts.get(1234).getId()));
+    }
+
+    @Test
+    public void testCreateAccountAfterCreateAccounts() {
+        Account first = newAccount("Pepa", new BigDecimal(500));
+        manager.createAccount(first);
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            accounts.add(newAccount("Owner " + i, new BigDecimal(i)));
+        }
+
+        manager.createAccounts(accounts);
+        Account last = newAccount("Honza", new BigDecimal(500));
+        manager.createAccount(last);
+
+        assertThat(accounts.get(0).getId()).isGreaterThan(first.getId());
+        assertThat(last.getId()).isGreaterThan(accounts.get(9).getId());
+        assertThat(manager.findAllAccounts()).hasSize(12).contains(first, last).containsAll(accounts);
+    }
+
+    @Test
+    public void testConcurrentCreateAccounts() throws Exception {
+        // the first insert preallocates identity values, Derby may time out
+        // concurrent inserts preallocating them at once
+        manager.createAccount(newAccount("Pepa", new BigDecimal(500)));
+        List<List<Account>> loads = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            List<Account> accounts = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                accounts.add(newAccount("Owner " + t + "/" + i, new BigDecimal(i)));
+            }
+            loads.add(accounts);
+            threads.add(new Thread(() -> manager.createAccounts(accounts)));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(manager.findAllAccounts()).hasSize(9001);
+        for (List<Account> accounts : loads) {
+            for (Account account : accounts) {
+                assertEquals(account, manager.findAccountById(account.getId()));
+            }
+        }
+    }
+
+    @Test
+    public void testCreateAccountsWithAssignedId() {
+        Account account1 = newAccount("Pepa", new BigDecimal(500));
+        Account account2 = newAccount("Honza", new BigDecimal(500));
+        account2.setId(1L);
+
+        List<Account> accounts = new ArrayList<>();
+        accounts.add(account1);
+        accounts.add(account2);
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Passed account.id must not be set!");
+        try {
+            manager.createAccounts(accounts);
+        } finally {
+            assertThat(account1.getId()).isNull();
+            assertThat(manager.findAllAccounts()).isEmpty();
+        }
+    }
+
     @Test
     public void testDeleteAccount() {
         Account acc1 = newAccount("John", new BigDecimal(50));
@@ -291,6 +378,127 @@ public class AccountManagerImplTest {
         assertThat(result).isNull();
     }
 
+    @Test
+    public void testStreamAllAccounts() {
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Account account = newAccount("Owner " + i, new BigDecimal(i));
+            manager.createAccount(account);
+            accounts.add(account);
+        }
+
+        try (Stream<Account> stream = manager.streamAllAccounts(7)) {
+            assertThat(stream.collect(Collectors.toList())).hasSize(50).containsAll(accounts);
+        }
+    }
+
+    @Test
+    public void testStreamAllAccountsWithInvalidFetchSize() {
+        exception.expect(IllegalArgumentException.class);
+        manager.streamAllAccounts(0);
+    }
+
+    @Test
+    public void testFindAccountsByPages() {
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            Account account = newAccount("Owner " + i, new BigDecimal(i));
+            manager.createAccount(account);
+            accounts.add(account);
+        }
+
+        List<Account> firstPage = manager.findAccounts(null, 3);
+        List<Account> secondPage = manager.findAccounts(firstPage.get(2).getId(), 3);
+        List<Account> lastPage = manager.findAccounts(secondPage.get(2).getId(), 3);
+
+        assertThat(firstPage).containsExactlyElementsOf(accounts.subList(0, 3));
+        assertThat(secondPage).containsExactlyElementsOf(accounts.subList(3, 6));
+        assertThat(lastPage).containsExactlyElementsOf(accounts.subList(6, 7));
+        assertThat(manager.findAccounts(lastPage.get(0).getId(), 3)).isEmpty();
+    }
+
+    @Test
+    public void testFindAccountsWithSkip() {
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            Account account = newAccount("Owner " + i, new BigDecimal(i));
+            manager.createAccount(account);
+            accounts.add(account);
+        }
+
+        assertEquals(7, manager.countAccounts());
+        assertThat(manager.findAccounts(null, 5, 3)).containsExactlyElementsOf(accounts.subList(5, 7));
+        assertThat(manager.findAccounts(accounts.get(1).getId(), 2, 2)).containsExactlyElementsOf(accounts.subList(4, 6));
+    }
+
+    @Test
+    public void testFindAccountChangesSince() {
+        long version = manager.getChangeVersion();
+        Account acc1 = newAccount("John", new BigDecimal(50));
+        Account acc2 = newAccount("Paul", new BigDecimal(800));
+        manager.createAccount(acc1);
+        manager.createAccount(acc2);
+        acc1.setBalance(new BigDecimal(60));
+        manager.updateAccount(acc1);
+        manager.deleteAccount(acc2);
+
+        List<ChangeLog.Change> changes = manager.findAccountChangesSince(version);
+        assertEquals(4, changes.size());
+        assertEquals(ChangeLog.Kind.CREATED, changes.get(0).getKind());
+        assertEquals(acc1.getId(), changes.get(0).getId());
+        assertEquals(ChangeLog.Kind.UPDATED, changes.get(2).getKind());
+        assertEquals(acc1.getId(), changes.get(2).getId());
+        assertEquals(ChangeLog.Kind.DELETED, changes.get(3).getKind());
+        assertEquals(acc2.getId(), changes.get(3).getId());
+        assertEquals(manager.getChangeVersion(), changes.get(3).getVersion());
+
+        assertThat(manager.findAccountChangesSince(manager.getChangeVersion())).isEmpty();
+    }
+
+    @Test
+    public void testChangesOfTransactionAreLoggedAfterCommit() throws SQLException {
+        long version = manager.getChangeVersion();
+        Account acc1 = newAccount("John", new BigDecimal(50));
+        Account acc2 = newAccount("Paul", new BigDecimal(800));
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            manager.createAccount(acc1, connection);
+            assertThat(manager.findAccountChangesSince(version)).isEmpty();
+            connection.rollback();
+            ChangeLog.of(dataSource).rolledBack(connection);
+
+            manager.createAccount(acc2, connection);
+            connection.commit();
+            ChangeLog.of(dataSource).committed(connection);
+            connection.setAutoCommit(true);
+        }
+
+        List<ChangeLog.Change> changes = manager.findAccountChangesSince(version);
+        assertEquals(1, changes.size());
+        assertEquals(ChangeLog.Kind.CREATED, changes.get(0).getKind());
+        assertEquals(acc2.getId(), changes.get(0).getId());
+    }
+
+    @Test
+    public void testChangesOfUnreportedTransactionAreLogged() throws SQLException {
+        long version = manager.getChangeVersion();
+        Account acc1 = newAccount("John", new BigDecimal(50));
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            manager.createAccount(acc1, connection);
+            connection.commit();
+            assertThat(manager.findAccountChangesSince(version)).isEmpty();
+            connection.setAutoCommit(true);
+        }
+
+        List<ChangeLog.Change> changes = manager.findAccountChangesSince(version);
+        assertEquals(1, changes.size());
+        assertEquals(ChangeLog.Kind.CREATED, changes.get(0).getKind());
+        assertEquals(acc1.getId(), changes.get(0).getId());
+    }
+
     @Test
     public void testFindAllAccounts() {
         Account acc1 = newAccount("John", new BigDecimal(50));
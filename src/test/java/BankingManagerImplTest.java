@@ -5,21 +5,37 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import pv168.Account;
+import pv168.AccountStatement;
 import pv168.AccountManagerImpl;
+import pv168.BalanceCheckpoints;
 import pv168.BankingManagerImpl;
+import pv168.DailyRollup;
 import pv168.EntityNotFoundException;
 import pv168.InsufficientBalanceException;
 import pv168.Payment;
+import pv168.PaymentAggregate;
 import pv168.PaymentManagerImpl;
+import pv168.PaymentResult;
+import pv168.SchemaMigration;
+import pv168.Turnover;
 
 import javax.sql.DataSource;
 import java.math.BigDecimal;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,28 +65,7 @@ public class BankingManagerImplTest {
     public void setUp() throws Exception {
 
         dataSource = prepareDataSource();
-
-        try (Connection connection = dataSource.getConnection();
-             PreparedStatement prepStatement = connection.prepareStatement("CREATE TABLE account ("
-                     + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
-                     + "owner VARCHAR(200) ,"
-                     + "balance DECIMAL (20,0))")) {
-
-            prepStatement.executeUpdate();
-
-            try (PreparedStatement prepStatement2 = connection.prepareStatement("CREATE TABLE payment (" +
-                    "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
-                    "amount DECIMAL (20,0), " +
-                    "fromAcc BIGINT NOT NULL, " +
-                    "toAcc BIGINT NOT NULL, " +
-                    "FOREIGN KEY (fromAcc) REFERENCES account (id)," +
-                    "FOREIGN KEY (toAcc) REFERENCES account (id)," +
-                    "dateSent TIMESTAMP )")) {
-
-                prepStatement2.executeUpdate();
-
-            }
-        }
+        SchemaMigration.migrate(dataSource);
         paymentManager = new PaymentManagerImpl(dataSource);
         accountManager = new AccountManagerImpl(dataSource);
         bankingManager = new BankingManagerImpl(dataSource);
@@ -79,8 +74,9 @@ public class BankingManagerImplTest {
     @After
     public void tearDown() throws SQLException {
         try (Connection connection = dataSource.getConnection()) {
-            connection.prepareStatement("DROP TABLE payment").executeUpdate();
-            connection.prepareStatement("DROP TABLE account").executeUpdate();
+            for (String table : new String[]{"schema_version", "ledger_projection", "balance_checkpoint", "payment_daily", "payment", "account"}) {
+                connection.prepareStatement("DROP TABLE " + table).executeUpdate();
+            }
         }
     }
 
@@ -94,10 +90,10 @@ public class BankingManagerImplTest {
 
     @Test
     public void testExecutePayment() {
-        Account from = newAccount("Pepa", new BigDecimal(1200));
-        Account to = newAccount("Honza", new BigDecimal(1200));
+        Account from = newAccount("Pepa", new BigDecimal("1200.00"));
+        Account to = newAccount("Honza", new BigDecimal("1200.00"));
 
-        Payment payment = newPayment(new BigDecimal(1200), from, to, null);
+        Payment payment = newPayment(new BigDecimal("1200.00"), from, to, null);
 
         accountManager.createAccount(from);
         accountManager.createAccount(to);
@@ -106,8 +102,8 @@ public class BankingManagerImplTest {
 
         assertThat(payment.getId()).isNotNull();
         assertThat(payment.getSent()).isNotNull();
-        assertThat(from.getBalance()).isEqualTo(new BigDecimal(0));
-        assertThat(to.getBalance()).isEqualTo(new BigDecimal(2400));
+        assertThat(from.getBalance()).isEqualTo(new BigDecimal("0.00"));
+        assertThat(to.getBalance()).isEqualTo(new BigDecimal("2400.00"));
 
         Payment paymentResult = paymentManager.findPaymentById(payment.getId());
         Account accountFromResult = accountManager.findAccountById(from.getId());
@@ -204,14 +200,14 @@ public class BankingManagerImplTest {
 
     @Test
     public void testFindAllIncomingPaymentsToAccount() {
-        Account from = newAccount("Pepa", new BigDecimal(12000));
-        Account to = newAccount("Honza", new BigDecimal(18000));
-        Account to2 = newAccount("Juraj", new BigDecimal(20000));
+        Account from = newAccount("Pepa", new BigDecimal("12000.00"));
+        Account to = newAccount("Honza", new BigDecimal("18000.00"));
+        Account to2 = newAccount("Juraj", new BigDecimal("20000.00"));
 
-        Payment payment1 = newPayment(new BigDecimal(1100), from, to, null);
-        Payment payment2 = newPayment(new BigDecimal(1200), from, to, null);
-        Payment payment3 = newPayment(new BigDecimal(1300), from, to, null);
-        Payment payment4 = newPayment(new BigDecimal(1400), from, to2, null);
+        Payment payment1 = newPayment(new BigDecimal("1100.00"), from, to, null);
+        Payment payment2 = newPayment(new BigDecimal("1200.00"), from, to, null);
+        Payment payment3 = newPayment(new BigDecimal("1300.00"), from, to, null);
+        Payment payment4 = newPayment(new BigDecimal("1400.00"), from, to2, null);
 
         accountManager.createAccount(from);
         accountManager.createAccount(to);
@@ -276,14 +272,14 @@ public class BankingManagerImplTest {
 
     @Test
     public void testFindOutgoingPaymentsToAccount() {
-        Account from = newAccount("Pepa", new BigDecimal(120000));
-        Account from2 = newAccount("Honza", new BigDecimal(18000));
-        Account to = newAccount("Juraj", new BigDecimal(20000));
+        Account from = newAccount("Pepa", new BigDecimal("120000.00"));
+        Account from2 = newAccount("Honza", new BigDecimal("18000.00"));
+        Account to = newAccount("Juraj", new BigDecimal("20000.00"));
 
-        Payment payment1 = newPayment(new BigDecimal(1100), from, to, null);
-        Payment payment2 = newPayment(new BigDecimal(1200), from, to, null);
-        Payment payment3 = newPayment(new BigDecimal(1300), from, to, null);
-        Payment payment4 = newPayment(new BigDecimal(1400), from2, to, null);
+        Payment payment1 = newPayment(new BigDecimal("1100.00"), from, to, null);
+        Payment payment2 = newPayment(new BigDecimal("1200.00"), from, to, null);
+        Payment payment3 = newPayment(new BigDecimal("1300.00"), from, to, null);
+        Payment payment4 = newPayment(new BigDecimal("1400.00"), from2, to, null);
 
         accountManager.createAccount(from);
         accountManager.createAccount(from2);
@@ -346,6 +342,561 @@ public class BankingManagerImplTest {
     }
 
     
+    @Test
+    public void testExecutePaymentInDatabaseMode() {
+        BankingManager databaseManager = new BankingManagerImpl(dataSource, BankingManagerImpl.ExecutionMode.DATABASE_BALANCE);
+        Account from = newAccount("Pepa", new BigDecimal("1200.00"));
+        Account to = newAccount("Honza", new BigDecimal("1200.00"));
+
+        accountManager.createAccount(from);
+        accountManager.createAccount(to);
+
+        Payment payment = newPayment(new BigDecimal("200.00"), from, to, null);
+        databaseManager.executePayment(payment);
+
+        assertThat(payment.getId()).isNotNull();
+        assertThat(payment.getSent()).isNotNull();
+        assertThat(from.getBalance()).isEqualTo(new BigDecimal("1000.00"));
+        assertThat(to.getBalance()).isEqualTo(new BigDecimal("1400.00"));
+        assertThat(accountManager.findAccountById(from.getId())).isEqualTo(from);
+        assertThat(accountManager.findAccountById(to.getId())).isEqualTo(to);
+    }
+
+    @Test
+    public void testExecutePaymentInDatabaseModeWithStaleBalance() {
+        BankingManager databaseManager = new BankingManagerImpl(dataSource, BankingManagerImpl.ExecutionMode.DATABASE_BALANCE);
+        Account from = newAccount("Pepa", new BigDecimal("1200.00"));
+        Account to = newAccount("Honza", new BigDecimal("1200.00"));
+
+        accountManager.createAccount(from);
+        accountManager.createAccount(to);
+
+        Account staleFrom = accountManager.findAccountById(from.getId());
+        staleFrom.setBalance(new BigDecimal("5000.00"));
+        Payment payment = newPayment(new BigDecimal("2000.00"), staleFrom, to, null);
+
+        assertThatThrownBy(() -> databaseManager.executePayment(payment))
+                .isInstanceOf(InsufficientBalanceException.class);
+        assertThat(payment.getId()).isNull();
+        assertThat(payment.getSent()).isNull();
+        assertThat(accountManager.findAccountById(from.getId())).isEqualTo(from);
+        assertThat(accountManager.findAccountById(to.getId())).isEqualTo(to);
+        assertThat(paymentManager.findAllPayments()).isEmpty();
+    }
+
+    @Test
+    public void testConcurrentPaymentsInDatabaseMode() throws Exception {
+        BankingManager databaseManager = new BankingManagerImpl(dataSource, BankingManagerImpl.ExecutionMode.DATABASE_BALANCE);
+        Account first = newAccount("Pepa", new BigDecimal(1000));
+        Account second = newAccount("Honza", new BigDecimal(1000));
+
+        accountManager.createAccount(first);
+        accountManager.createAccount(second);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            boolean forward = i % 4 != 0;
+            futures.add(executor.submit(() -> {
+                Account from = accountManager.findAccountById(forward ? first.getId() : second.getId());
+                Account to = accountManager.findAccountById(forward ? second.getId() : first.getId());
+                databaseManager.executePayment(newPayment(new BigDecimal(10), from, to, null));
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertThat(paymentManager.findAllPayments()).hasSize(40);
+        assertThat(accountManager.findAccountById(first.getId()).getBalance()).isEqualByComparingTo(new BigDecimal(800));
+        assertThat(accountManager.findAccountById(second.getId()).getBalance()).isEqualByComparingTo(new BigDecimal(1200));
+    }
+
+    @Test
+    public void testExecutePayments() {
+        BankingManagerImpl batchManager = new BankingManagerImpl(dataSource);
+        batchManager.setBatchSize(2);
+        Account first = newAccount("Pepa", new BigDecimal(1000));
+        Account second = newAccount("Honza", new BigDecimal(100));
+        Account missing = newAccount("Juraj", new BigDecimal(100));
+
+        accountManager.createAccount(first);
+        accountManager.createAccount(second);
+        missing.setId(second.getId() + 100);
+
+        Payment payment1 = newPayment(new BigDecimal(300), first, second, null);
+        Payment payment2 = newPayment(new BigDecimal(500), second, first, null);
+        Payment payment3 = newPayment(new BigDecimal(300), second, first, null);
+        Payment payment4 = newPayment(new BigDecimal(10), first, missing, null);
+        Payment payment5 = newPayment(new BigDecimal(200), first, second, null);
+
+        List<PaymentResult> results = batchManager.executePayments(
+                Arrays.asList(payment1, payment2, payment3, payment4, payment5));
+
+        assertThat(results).containsExactly(PaymentResult.EXECUTED, PaymentResult.INSUFFICIENT_BALANCE,
+                PaymentResult.EXECUTED, PaymentResult.ACCOUNT_NOT_FOUND, PaymentResult.EXECUTED);
+        assertThat(payment2.getId()).isNull();
+        assertThat(payment2.getSent()).isNull();
+        assertThat(payment4.getId()).isNull();
+        assertThat(payment4.getSent()).isNull();
+
+        assertThat(accountManager.findAccountById(first.getId()).getBalance()).isEqualByComparingTo(new BigDecimal(800));
+        assertThat(accountManager.findAccountById(second.getId()).getBalance()).isEqualByComparingTo(new BigDecimal(300));
+        assertThat(first.getBalance()).isEqualByComparingTo(new BigDecimal(800));
+        assertThat(second.getBalance()).isEqualByComparingTo(new BigDecimal(300));
+
+        for (Payment payment : Arrays.asList(payment1, payment3, payment5)) {
+            Payment stored = paymentManager.findPaymentById(payment.getId());
+            assertThat(stored.getAmount()).isEqualByComparingTo(payment.getAmount());
+            assertThat(stored.getFrom().getId()).isEqualTo(payment.getFrom().getId());
+            assertThat(stored.getTo().getId()).isEqualTo(payment.getTo().getId());
+            assertThat(stored.getSent()).isEqualTo(payment.getSent());
+        }
+        assertThat(paymentManager.findAllPayments()).hasSize(3);
+    }
+
+    @Test
+    public void testExecutePaymentsWithPaymentsCreatedBetween() {
+        BankingManagerImpl batchManager = new BankingManagerImpl(dataSource);
+        Account first = newAccount("Pepa", new BigDecimal(1000));
+        Account second = newAccount("Honza", new BigDecimal(1000));
+
+        accountManager.createAccount(first);
+        accountManager.createAccount(second);
+
+        Payment batched1 = newPayment(new BigDecimal(10), first, second, null);
+        Payment batched2 = newPayment(new BigDecimal(20), first, second, null);
+        batchManager.executePayments(Arrays.asList(batched1, batched2));
+        // ids generated by the database continue after the reserved block
+        Payment created = newPayment(new BigDecimal(30), first, second, new Date());
+        paymentManager.createPayment(created);
+        Payment batched3 = newPayment(new BigDecimal(40), first, second, null);
+        batchManager.executePayments(Arrays.asList(batched3));
+
+        assertThat(batched2.getId()).isEqualTo(batched1.getId() + 1);
+        assertThat(batched3.getId()).isEqualTo(batched2.getId() + 1);
+        assertThat(created.getId()).isGreaterThan(batched3.getId());
+        for (Payment payment : Arrays.asList(batched1, batched2, created, batched3)) {
+            assertThat(paymentManager.findPaymentById(payment.getId()).getAmount())
+                    .isEqualByComparingTo(payment.getAmount());
+        }
+        assertThat(paymentManager.findAllPayments()).hasSize(4);
+    }
+
+    @Test
+    public void testExecutePaymentsWithInvalidPayment() {
+        Account from = newAccount("Pepa", new BigDecimal(1000));
+        Account to = newAccount("Honza", new BigDecimal(100));
+
+        accountManager.createAccount(from);
+        accountManager.createAccount(to);
+
+        Payment valid = newPayment(new BigDecimal(300), from, to, null);
+        Payment invalid = newPayment(null, from, to, null);
+
+        assertThatThrownBy(() -> bankingManager.executePayments(Arrays.asList(valid, invalid)))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(valid.getId()).isNull();
+        assertThat(paymentManager.findAllPayments()).isEmpty();
+    }
+
+    @Test
+    public void testExecutePaymentsWithNegativeOrZeroAmount() {
+        Account from = newAccount("Pepa", new BigDecimal(1000));
+        Account to = newAccount("Honza", new BigDecimal(100));
+
+        accountManager.createAccount(from);
+        accountManager.createAccount(to);
+
+        Payment valid = newPayment(new BigDecimal(300), from, to, null);
+        Payment negative = newPayment(new BigDecimal(-100), from, to, null);
+        Payment zero = newPayment(BigDecimal.ZERO, from, to, null);
+
+        assertThatThrownBy(() -> bankingManager.executePayments(Arrays.asList(valid, negative)))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> bankingManager.executePayments(Arrays.asList(zero)))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> bankingManager.executePayment(negative))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(valid.getId()).isNull();
+        assertThat(paymentManager.findAllPayments()).isEmpty();
+        assertThat(accountManager.findAccountById(to.getId()).getBalance())
+                .isEqualByComparingTo(new BigDecimal(100));
+    }
+
+    @Test
+    public void testStreamIncomingAndOutgoingPayments() {
+        Account from = newAccount("Pepa", new BigDecimal(12000));
+        Account to = newAccount("Honza", new BigDecimal(18000));
+
+        accountManager.createAccount(from);
+        accountManager.createAccount(to);
+
+        Payment payment1 = newPayment(new BigDecimal(1100), from, to, null);
+        Payment payment2 = newPayment(new BigDecimal(1200), from, to, null);
+        bankingManager.executePayment(payment1);
+        bankingManager.executePayment(payment2);
+
+        try (Stream<Payment> incoming = bankingManager.streamIncomingPaymentsToAccount(to, 1)) {
+            assertThat(incoming.map(Payment::getId).collect(Collectors.toList()))
+                    .containsOnly(payment1.getId(), payment2.getId());
+        }
+        try (Stream<Payment> outgoing = bankingManager.streamOutgoingPaymentsToAccount(to, 1)) {
+            assertThat(outgoing.count()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testFindIncomingPaymentsToAccountByPages() {
+        Account from = newAccount("Pepa", new BigDecimal(12000));
+        Account to = newAccount("Honza", new BigDecimal(18000));
+        Account other = newAccount("Juraj", new BigDecimal(20000));
+
+        accountManager.createAccount(from);
+        accountManager.createAccount(to);
+        accountManager.createAccount(other);
+
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Payment payment = newPayment(new BigDecimal(100), from, to, null);
+            bankingManager.executePayment(payment);
+            expected.add(payment.getId());
+            bankingManager.executePayment(newPayment(new BigDecimal(100), from, other, null));
+        }
+
+        List<Long> actual = new ArrayList<>();
+        List<Payment> page = bankingManager.findIncomingPaymentsToAccount(to, null, 2);
+        while (!page.isEmpty()) {
+            assertThat(page.size()).isLessThanOrEqualTo(2);
+            for (Payment payment : page) {
+                actual.add(payment.getId());
+            }
+            page = bankingManager.findIncomingPaymentsToAccount(to, actual.get(actual.size() - 1), 2);
+        }
+
+        assertThat(actual).isEqualTo(expected);
+        assertThat(bankingManager.findOutgoingPaymentsToAccount(from, null, 100)).hasSize(10);
+        assertThat(bankingManager.findOutgoingPaymentsToAccount(to, null, 100)).isEmpty();
+    }
+
+    @Test
+    public void testFindStatement() {
+        Account account = newAccount("Pepa", new BigDecimal(1000));
+        Account other = newAccount("Honza", new BigDecimal(5000));
+        accountManager.createAccount(account);
+        accountManager.createAccount(other);
+
+        Payment in1 = newPayment(new BigDecimal(100), other, account, day(1));
+        Payment out2 = newPayment(new BigDecimal(30), account, other, day(2));
+        Payment in3 = newPayment(new BigDecimal(50), other, account, day(3));
+        Payment out5 = newPayment(new BigDecimal(20), account, other, day(5));
+        for (Payment payment : Arrays.asList(in1, out2, in3, out5)) {
+            paymentManager.createPayment(payment);
+        }
+
+        AccountStatement statement = bankingManager.findStatement(account, day(2), day(4), 10);
+
+        assertThat(statement.getPayments()).extracting(Payment::getId).containsExactly(out2.getId(), in3.getId());
+        assertThat(statement.getOpeningBalance()).isEqualByComparingTo(new BigDecimal(1000));
+        assertThat(statement.getClosingBalance()).isEqualByComparingTo(new BigDecimal(1020));
+        assertThat(statement.isTruncated()).isFalse();
+
+        statement = bankingManager.findStatement(account, day(0), day(6), 3);
+
+        assertThat(statement.getPayments()).extracting(Payment::getId)
+                .containsExactly(in1.getId(), out2.getId(), in3.getId());
+        assertThat(statement.getOpeningBalance()).isEqualByComparingTo(new BigDecimal(900));
+        assertThat(statement.getClosingBalance()).isEqualByComparingTo(new BigDecimal(1000));
+        assertThat(statement.isTruncated()).isTrue();
+
+        statement = bankingManager.findStatement(account, day(6), day(7), 10);
+
+        assertThat(statement.getPayments()).isEmpty();
+        assertThat(statement.getOpeningBalance()).isEqualByComparingTo(new BigDecimal(1000));
+        assertThat(statement.getClosingBalance()).isEqualByComparingTo(new BigDecimal(1000));
+    }
+
+    @Test
+    public void testFindStatementWithWrongPeriod() {
+        Account account = newAccount("Pepa", new BigDecimal(1000));
+        accountManager.createAccount(account);
+
+        assertThatThrownBy(() -> bankingManager.findStatement(account, day(2), day(1), 10))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> bankingManager.findStatement(account, null, day(1), 10))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> bankingManager.findStatement(account, day(1), day(2), 0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testFindStatementOfMissingAccount() {
+        Account account = newAccount("Pepa", new BigDecimal(1000));
+        account.setId(1L);
+
+        exception.expect(EntityNotFoundException.class);
+        bankingManager.findStatement(account, day(1), day(2), 10);
+    }
+
+    @Test
+    public void testFindTurnover() {
+        Account[] accounts = createTurnoverPayments();
+
+        Turnover turnover = bankingManager.findTurnover(accounts[0], noon(0, 1), noon(2, 1));
+
+        assertThat(turnover.getOutgoing().getCount()).isEqualTo(3);
+        assertThat(turnover.getOutgoing().getSum()).isEqualByComparingTo(new BigDecimal(160));
+        assertThat(turnover.getOutgoing().getMin()).isEqualByComparingTo(new BigDecimal(10));
+        assertThat(turnover.getOutgoing().getMax()).isEqualByComparingTo(new BigDecimal(100));
+        assertThat(turnover.getIncoming().getCount()).isEqualTo(1);
+        assertThat(turnover.getIncoming().getSum()).isEqualByComparingTo(new BigDecimal(30));
+        assertThat(turnover.getNetFlow()).isEqualByComparingTo(new BigDecimal(-130));
+
+        turnover = bankingManager.findTurnover(accounts[1], noon(1, 1), noon(2, 1));
+
+        assertThat(turnover.getIncoming()).isSameAs(PaymentAggregate.EMPTY);
+        assertThat(turnover.getOutgoing()).isSameAs(PaymentAggregate.EMPTY);
+        assertThat(turnover.getNetFlow()).isEqualByComparingTo(BigDecimal.ZERO);
+    }
+
+    @Test
+    public void testFindTurnoverByPeriod() {
+        Account[] accounts = createTurnoverPayments();
+
+        List<Turnover> days = bankingManager.findTurnoverByPeriod(accounts[0], noon(0, 2),
+                noon(2, 1), Turnover.Granularity.DAY);
+
+        assertThat(days).extracting(Turnover::getNetFlow).usingElementComparator(BigDecimal::compareTo)
+                .containsExactly(new BigDecimal(-150), new BigDecimal(30), new BigDecimal(-10));
+        assertThat(days.get(0).getFrom()).isEqualTo(noon(0, 2));
+        assertThat(days.get(0).getOutgoing().getCount()).isEqualTo(2);
+        assertThat(days.get(1).getFrom()).isEqualTo(new GregorianCalendar(2016, 0, 3).getTime());
+        assertThat(days.get(1).getTo()).isEqualTo(new GregorianCalendar(2016, 0, 4).getTime());
+
+        List<Turnover> months = bankingManager.findTurnoverByPeriod(accounts[0], noon(0, 1),
+                noon(1, 6), Turnover.Granularity.MONTH);
+
+        assertThat(months).hasSize(2);
+        assertThat(months.get(0).getNetFlow()).isEqualByComparingTo(new BigDecimal(-120));
+        assertThat(months.get(1).getFrom()).isEqualTo(new GregorianCalendar(2016, 1, 1).getTime());
+        assertThat(months.get(1).getTo()).isEqualTo(noon(1, 6));
+        assertThat(months.get(1).getOutgoing().getSum()).isEqualByComparingTo(new BigDecimal(10));
+        assertThat(months.get(1).getIncoming()).isSameAs(PaymentAggregate.EMPTY);
+    }
+
+    @Test
+    public void testFindTurnoverOfAllAccounts() {
+        Account[] accounts = createTurnoverPayments();
+
+        Map<Long, Turnover> turnovers = bankingManager.findTurnoverOfAllAccounts(noon(0, 1), noon(2, 1));
+
+        assertThat(turnovers).hasSize(3);
+        assertThat(turnovers.get(accounts[0].getId()).getNetFlow()).isEqualByComparingTo(new BigDecimal(-130));
+        assertThat(turnovers.get(accounts[1].getId()).getIncoming().getCount()).isEqualTo(2);
+        assertThat(turnovers.get(accounts[1].getId()).getOutgoing().getCount()).isEqualTo(0);
+        assertThat(turnovers.get(accounts[2].getId()).getNetFlow()).isEqualByComparingTo(new BigDecimal(-20));
+
+        assertThat(bankingManager.findTurnoverOfAllAccounts(noon(3, 1), noon(4, 1))).isEmpty();
+    }
+
+    @Test
+    public void testRolledUpTurnoverFollowsPayments() {
+        Account[] accounts = createTurnoverPayments();
+
+        bankingManager.executePayment(newPayment(new BigDecimal(5), accounts[1], accounts[0], null));
+        bankingManager.executePayments(Arrays.asList(
+                newPayment(new BigDecimal(7), accounts[0], accounts[2], null),
+                newPayment(new BigDecimal(9), accounts[2], accounts[0], null)));
+        Payment moved = paymentManager.findAllPayments().get(0);
+        moved.setSent(noon(1, 7));
+        paymentManager.updatePayment(moved);
+        paymentManager.deletePayment(paymentManager.findAllPayments().get(1));
+
+        for (Account account : accounts) {
+            for (Turnover.Granularity granularity : Turnover.Granularity.values()) {
+                assertSameTurnover(bankingManager.findRolledUpTurnover(account, noon(0, 1), noon(11, 31), granularity),
+                        bankingManager.findTurnoverByPeriod(account, noon(0, 1), noon(11, 31), granularity));
+            }
+        }
+    }
+
+    @Test
+    public void testRolledUpTurnoverOfPartialDays() {
+        Account[] accounts = createTurnoverPayments();
+        paymentManager.createPayment(newPayment(new BigDecimal(1), accounts[0], accounts[1],
+                new GregorianCalendar(2016, 0, 2, 8, 0).getTime()));
+        paymentManager.createPayment(newPayment(new BigDecimal(2), accounts[1], accounts[0],
+                new GregorianCalendar(2016, 0, 3, 18, 0).getTime()));
+        paymentManager.createPayment(newPayment(new BigDecimal(4), accounts[0], accounts[2],
+                new GregorianCalendar(2016, 1, 5, 6, 0).getTime()));
+
+        Date[][] periods = {
+            {new GregorianCalendar(2016, 0, 2, 10, 0).getTime(), new GregorianCalendar(2016, 0, 3, 15, 0).getTime()},
+            {new GregorianCalendar(2016, 0, 2, 10, 0).getTime(), new GregorianCalendar(2016, 0, 2, 13, 0).getTime()},
+            {new GregorianCalendar(2016, 0, 2, 7, 0).getTime(), new GregorianCalendar(2016, 1, 5, 12, 0).getTime()},
+            {new GregorianCalendar(2016, 0, 2).getTime(), new GregorianCalendar(2016, 1, 5, 7, 0).getTime()}};
+        for (Date[] period : periods) {
+            for (Turnover.Granularity granularity : Turnover.Granularity.values()) {
+                List<Turnover> rolledUp = bankingManager.findRolledUpTurnover(accounts[0], period[0], period[1],
+                        granularity);
+                assertSameTurnover(rolledUp,
+                        bankingManager.findTurnoverByPeriod(accounts[0], period[0], period[1], granularity));
+                assertThat(rolledUp.get(0).getFrom()).isEqualTo(period[0]);
+                assertThat(rolledUp.get(rolledUp.size() - 1).getTo()).isEqualTo(period[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testRebuildDailyRollups() throws SQLException {
+        Account[] accounts = createTurnoverPayments();
+        List<Turnover> expected = bankingManager.findRolledUpTurnover(accounts[0], noon(0, 1), noon(2, 1),
+                Turnover.Granularity.DAY);
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.prepareStatement("DELETE FROM payment_daily").executeUpdate();
+        }
+        assertThat(bankingManager.findRolledUpTurnover(accounts[0], noon(0, 1), noon(2, 1),
+                Turnover.Granularity.DAY)).isEmpty();
+
+        assertThat(DailyRollup.rebuild(dataSource, 2)).isEqualTo(6);
+        assertSameTurnover(bankingManager.findRolledUpTurnover(accounts[0], noon(0, 1), noon(2, 1),
+                Turnover.Granularity.DAY), expected);
+    }
+
+    @Test
+    public void testFindBalanceAt() throws InterruptedException {
+        Account pepa = newAccount("Pepa", new BigDecimal(1000));
+        Account honza = newAccount("Honza", new BigDecimal(1000));
+        accountManager.createAccount(pepa);
+        accountManager.createAccount(honza);
+
+        Date beforePayments = later();
+        assertThat(bankingManager.findBalanceAt(pepa, beforePayments)).isEqualByComparingTo(new BigDecimal(1000));
+
+        bankingManager.executePayment(newPayment(new BigDecimal(100), pepa, honza, null));
+        Date beforeCheckpoint = later();
+        Date checkpoint = BalanceCheckpoints.takeCheckpoint(dataSource);
+        later();
+        bankingManager.executePayments(Arrays.asList(newPayment(new BigDecimal(30), honza, pepa, null)));
+        Date afterCheckpoint = later();
+        bankingManager.executePayment(newPayment(new BigDecimal(20),
+                accountManager.findAccountById(pepa.getId()), accountManager.findAccountById(honza.getId()), null));
+
+        assertThat(bankingManager.findBalanceAt(pepa, beforePayments)).isEqualByComparingTo(new BigDecimal(1000));
+        assertThat(bankingManager.findBalanceAt(pepa, beforeCheckpoint)).isEqualByComparingTo(new BigDecimal(900));
+        assertThat(bankingManager.findBalanceAt(pepa, checkpoint)).isEqualByComparingTo(new BigDecimal(900));
+        assertThat(bankingManager.findBalanceAt(pepa, afterCheckpoint)).isEqualByComparingTo(new BigDecimal(930));
+        assertThat(bankingManager.findBalanceAt(honza, afterCheckpoint)).isEqualByComparingTo(new BigDecimal(1070));
+        assertThat(bankingManager.findBalanceAt(pepa, later())).isEqualByComparingTo(new BigDecimal(910));
+
+        // account without checkpoint
+        Account juraj = newAccount("Juraj", new BigDecimal(50));
+        accountManager.createAccount(juraj);
+        bankingManager.executePayment(newPayment(new BigDecimal(5),
+                accountManager.findAccountById(pepa.getId()), juraj, null));
+        assertThat(bankingManager.findBalanceAt(juraj, afterCheckpoint)).isEqualByComparingTo(new BigDecimal(50));
+        assertThat(bankingManager.findBalanceAt(juraj, later())).isEqualByComparingTo(new BigDecimal(55));
+    }
+
+    @Test
+    public void testCheckpointOfManyAccounts() throws InterruptedException {
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            accounts.add(newAccount("Owner " + i, new BigDecimal(100)));
+        }
+        accountManager.createAccounts(accounts);
+        Account first = accounts.get(0);
+        Account last = accounts.get(accounts.size() - 1);
+
+        bankingManager.executePayment(newPayment(new BigDecimal(10), last, first, null));
+        Date checkpoint = BalanceCheckpoints.takeCheckpoint(dataSource);
+        later();
+        bankingManager.executePayment(newPayment(new BigDecimal(20), first, last, null));
+
+        assertThat(bankingManager.findBalanceAt(first, checkpoint)).isEqualByComparingTo(new BigDecimal(110));
+        assertThat(bankingManager.findBalanceAt(last, checkpoint)).isEqualByComparingTo(new BigDecimal(90));
+        assertThat(bankingManager.findBalanceAt(last, later())).isEqualByComparingTo(new BigDecimal(110));
+        assertThat(bankingManager.findBalanceAt(accounts.get(1234), later())).isEqualByComparingTo(new BigDecimal(100));
+    }
+
+    @Test
+    public void testStartTakesMissingCheckpoint() throws Exception {
+        Account pepa = newAccount("Pepa", new BigDecimal(1000));
+        accountManager.createAccount(pepa);
+
+        try (BalanceCheckpoints checkpoints = BalanceCheckpoints.start(dataSource, 1, TimeUnit.HOURS);
+                Connection connection = dataSource.getConnection()) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (countCheckpoints(connection) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(countCheckpoints(connection)).isEqualTo(1);
+        }
+    }
+
+    private static int countCheckpoints(Connection connection) throws SQLException {
+        try (ResultSet rs = connection.prepareStatement("SELECT COUNT(*) FROM balance_checkpoint").executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    public void testFindBalanceAtNullDate() {
+        Account pepa = newAccount("Pepa", new BigDecimal(1000));
+        accountManager.createAccount(pepa);
+
+        exception.expect(IllegalArgumentException.class);
+        bankingManager.findBalanceAt(pepa, null);
+    }
+
+    /**
+     * Returns current time, distinct from times of payments sent before and
+     * after the call.
+     */
+    private static Date later() throws InterruptedException {
+        Thread.sleep(5);
+        Date now = new Date();
+        Thread.sleep(5);
+        return now;
+    }
+
+    private static void assertSameTurnover(List<Turnover> actual, List<Turnover> expected) {
+        assertThat(actual).hasSameSizeAs(expected);
+        for (int i = 0; i < actual.size(); i++) {
+            assertThat(actual.get(i).getFrom()).isEqualTo(expected.get(i).getFrom());
+            assertThat(actual.get(i).getIncoming().getCount()).isEqualTo(expected.get(i).getIncoming().getCount());
+            assertThat(actual.get(i).getIncoming().getSum()).isEqualByComparingTo(expected.get(i).getIncoming().getSum());
+            assertThat(actual.get(i).getOutgoing().getCount()).isEqualTo(expected.get(i).getOutgoing().getCount());
+            assertThat(actual.get(i).getOutgoing().getSum()).isEqualByComparingTo(expected.get(i).getOutgoing().getSum());
+        }
+    }
+
+    private Account[] createTurnoverPayments() {
+        Account[] accounts = {
+            newAccount("Pepa", new BigDecimal(1000)),
+            newAccount("Honza", new BigDecimal(1000)),
+            newAccount("Juraj", new BigDecimal(1000))};
+        for (Account account : accounts) {
+            accountManager.createAccount(account);
+        }
+        paymentManager.createPayment(newPayment(new BigDecimal(100), accounts[0], accounts[1], noon(0, 2)));
+        paymentManager.createPayment(newPayment(new BigDecimal(50), accounts[0], accounts[1], noon(0, 2)));
+        paymentManager.createPayment(newPayment(new BigDecimal(30), accounts[2], accounts[0], noon(0, 3)));
+        paymentManager.createPayment(newPayment(new BigDecimal(10), accounts[0], accounts[2], noon(1, 5)));
+        return accounts;
+    }
+
+    private static Date noon(int month, int day) {
+        return new GregorianCalendar(2016, month, day, 12, 0).getTime();
+    }
+
+    private static Date day(int day) {
+        return new Date(1451606400000L + day * 86400000L);
+    }
+
     @Test
     public void testExecutePaymentInterruptionReaction(){        
     Account from = newAccount("Steve", new BigDecimal(90000));
@@ -434,6 +985,61 @@ public class BankingManagerImplTest {
         public List<Payment> findOutgoingPaymentsToAccount(Account account) {
             throw new UnsupportedOperationException("Not needed for the test."); //To change body of generated methods, choose Tools | Templates.
         }
+
+        @Override
+        public List<PaymentResult> executePayments(List<Payment> payments) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
+
+        @Override
+        public Stream<Payment> streamIncomingPaymentsToAccount(Account account, int fetchSize) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
+
+        @Override
+        public Stream<Payment> streamOutgoingPaymentsToAccount(Account account, int fetchSize) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
+
+        @Override
+        public List<Payment> findIncomingPaymentsToAccount(Account account, Long afterId, int limit) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
+
+        @Override
+        public List<Payment> findOutgoingPaymentsToAccount(Account account, Long afterId, int limit) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
+
+        @Override
+        public AccountStatement findStatement(Account account, Date from, Date to, int limit) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
+
+        @Override
+        public Turnover findTurnover(Account account, Date from, Date to) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
+
+        @Override
+        public List<Turnover> findTurnoverByPeriod(Account account, Date from, Date to, Turnover.Granularity granularity) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
+
+        @Override
+        public Map<Long, Turnover> findTurnoverOfAllAccounts(Date from, Date to) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
+
+        @Override
+        public List<Turnover> findRolledUpTurnover(Account account, Date from, Date to, Turnover.Granularity granularity) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
+
+        @Override
+        public BigDecimal findBalanceAt(Account account, Date date) {
+            throw new UnsupportedOperationException("Not needed for the test.");
+        }
     
         
         
@@ -0,0 +1,153 @@
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import pv168.Account;
+import pv168.AccountManagerImpl;
+import pv168.CachingAccountManager;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+import static pv168.Account.*;
+
+
+public class CachingAccountManagerTest {
+
+    private CachingAccountManager manager;
+    private AccountManagerImpl otherManager;
+    private DataSource dataSource;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource = prepareDataSource();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement prepStatement = connection.prepareStatement("CREATE TABLE account ("
+                    + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
+                    + "owner VARCHAR(200) ,"
+                    + "balance DECIMAL)");
+        ) {
+            prepStatement.executeUpdate();
+        }
+        manager = new CachingAccountManager(new AccountManagerImpl(dataSource), 2);
+        otherManager = new AccountManagerImpl(dataSource);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.prepareStatement("DROP TABLE account").executeUpdate();
+        }
+    }
+
+    private static DataSource prepareDataSource() throws SQLException {
+        EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName("memory:caching-account-test");
+        ds.setCreateDatabase("create");
+        return ds;
+    }
+
+    @Test
+    public void testFindAccountByIdIsCached() {
+        Account account = newAccount("John", new BigDecimal(50));
+        otherManager.createAccount(account);
+
+        assertEquals(account, manager.findAccountById(account.getId()));
+        assertEquals(0, manager.getHitCount());
+        assertEquals(1, manager.getMissCount());
+
+        Account cached = manager.findAccountById(account.getId());
+        assertEquals(account, cached);
+        assertEquals(1, manager.getHitCount());
+
+        // callers get copies, changing one does not change the cache
+        cached.setOwner("Paul");
+        assertEquals(account, manager.findAccountById(account.getId()));
+    }
+
+    @Test
+    public void testWriteThrough() {
+        Account account = newAccount("John", new BigDecimal(50));
+        manager.createAccount(account);
+        assertEquals(account, manager.findAccountById(account.getId()));
+        assertEquals(1, manager.getHitCount());
+
+        account.setBalance(new BigDecimal(70));
+        manager.updateAccount(account);
+        assertEquals(account, manager.findAccountById(account.getId()));
+        assertEquals(2, manager.getHitCount());
+        assertEquals(0, manager.getMissCount());
+
+        manager.deleteAccount(account);
+        assertNull(manager.findAccountById(account.getId()));
+        assertEquals(1, manager.getMissCount());
+    }
+
+    @Test
+    public void testChangesOfOtherManagersEvictAccount() {
+        Account account = newAccount("John", new BigDecimal(50));
+        manager.createAccount(account);
+
+        Account changed = newAccount("John", new BigDecimal(20));
+        changed.setId(account.getId());
+        otherManager.updateAccount(changed);
+
+        assertEquals(changed, manager.findAccountById(account.getId()));
+        assertEquals(0, manager.getHitCount());
+        assertEquals(1, manager.getMissCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAccountIsEvicted() {
+        Account acc1 = newAccount("John", new BigDecimal(50));
+        Account acc2 = newAccount("Paul", new BigDecimal(800));
+        Account acc3 = newAccount("George", new BigDecimal(0));
+        manager.createAccount(acc1);
+        manager.createAccount(acc2);
+        manager.findAccountById(acc1.getId());
+        manager.createAccount(acc3);
+
+        assertEquals(2, manager.getSize());
+        assertEquals(1, manager.getEvictionCount());
+
+        manager.findAccountById(acc1.getId());
+        manager.findAccountById(acc3.getId());
+        assertEquals(3, manager.getHitCount());
+        manager.findAccountById(acc2.getId());
+        assertEquals(1, manager.getMissCount());
+    }
+
+    @Test
+    public void testTransactionDoesNotUseCache() throws SQLException {
+        Account account = newAccount("John", new BigDecimal(50));
+        manager.createAccount(account);
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            account.setBalance(new BigDecimal(10));
+            manager.updateAccount(account, connection);
+            assertEquals(account, manager.findAccountById(account.getId(), connection));
+            connection.rollback();
+        }
+
+        assertEquals(new BigDecimal(50), manager.findAccountById(account.getId()).getBalance());
+        assertEquals(0, manager.getHitCount());
+        assertEquals(1, manager.getMissCount());
+    }
+
+    @Test
+    public void testCreateWithInvalidSize() {
+        exception.expect(IllegalArgumentException.class);
+        new CachingAccountManager(otherManager, 0);
+    }
+
+}
@@ -0,0 +1,50 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import pv168.Cents;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.*;
+
+
+public class CentsTest {
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void testOf() {
+        assertEquals(123456, Cents.of(new BigDecimal("1234.56")));
+        assertEquals(100, Cents.of(BigDecimal.ONE));
+        assertEquals(-50, Cents.of(new BigDecimal("-0.5")));
+        assertEquals(120, Cents.of(new BigDecimal("1.2000")));
+        assertEquals(99999999999999999L, Cents.of(new BigDecimal("999999999999999.99")));
+    }
+
+    @Test
+    public void testToBigDecimal() {
+        assertEquals(new BigDecimal("1234.56"), Cents.toBigDecimal(123456));
+        assertEquals(new BigDecimal("-0.05"), Cents.toBigDecimal(-5));
+        assertEquals(new BigDecimal("0.00"), Cents.toBigDecimal(0));
+    }
+
+    @Test
+    public void testToBigDecimalWithScale() {
+        assertEquals(new BigDecimal(12000).subtract(new BigDecimal(1100)), Cents.toBigDecimal(1090000, 0));
+        assertEquals(new BigDecimal("23000.5"), Cents.toBigDecimal(2300050, 1));
+        assertEquals(new BigDecimal("1.230"), Cents.toBigDecimal(123, 3));
+    }
+
+    @Test
+    public void testOfFractionOfCent() {
+        exception.expect(IllegalArgumentException.class);
+        Cents.of(new BigDecimal("0.001"));
+    }
+
+    @Test
+    public void testOfTooLarge() {
+        exception.expect(IllegalArgumentException.class);
+        Cents.of(new BigDecimal("100000000000000000"));
+    }
+}
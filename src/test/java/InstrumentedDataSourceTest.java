@@ -0,0 +1,194 @@
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import pv168.Account;
+import pv168.AccountManagerImpl;
+import pv168.InstrumentedDataSource;
+import pv168.PoolConfiguration;
+import pv168.PoolMetrics;
+import pv168.StatementStatistics;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+import static pv168.Account.*;
+
+
+public class InstrumentedDataSourceTest {
+
+    private InstrumentedDataSource dataSource;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource = new InstrumentedDataSource(prepareDataSource(), 1000);
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement prepStatement = connection.prepareStatement("CREATE TABLE account ("
+                    + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
+                    + "owner VARCHAR(200) ,"
+                    + "balance DECIMAL)");
+        ) {
+            prepStatement.executeUpdate();
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.prepareStatement("DROP TABLE account").executeUpdate();
+        }
+    }
+
+    private static EmbeddedDataSource prepareDataSource() throws SQLException {
+        EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName("memory:instrumented-test");
+        ds.setCreateDatabase("create");
+        return ds;
+    }
+
+    @Test
+    public void testStatementsAreMeasured() {
+        AccountManagerImpl manager = new AccountManagerImpl(dataSource);
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            accounts.add(newAccount("Owner " + i, new BigDecimal(i)));
+        }
+        manager.createAccounts(accounts);
+        manager.findAccountById(accounts.get(0).getId());
+        manager.findAccountById(accounts.get(1).getId());
+        assertEquals(3, manager.findAllAccounts().size());
+
+        StatementStatistics findAll = dataSource.getStatistics("SELECT * FROM account");
+        assertNotNull(findAll);
+        assertEquals(1, findAll.getExecutions());
+        assertEquals(3, findAll.getRows());
+        assertTrue(findAll.getMaxNanos() > 0);
+
+        StatementStatistics findById = dataSource.getStatistics("SELECT * FROM account WHERE id = ?");
+        assertNotNull(findById);
+        assertEquals(2, findById.getExecutions());
+        assertEquals(2, findById.getRows());
+
+        List<StatementStatistics> top = dataSource.getTopStatements(2);
+        assertEquals(2, top.size());
+        assertTrue(top.get(0).getTotalNanos() >= top.get(1).getTotalNanos());
+    }
+
+    @Test
+    public void testResultSetClosedWithStatement() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement st = connection.prepareStatement("SELECT   id FROM account\n WHERE id > 5")) {
+            ResultSet rs = st.executeQuery();
+            assertFalse(rs.next());
+        }
+
+        StatementStatistics stats = dataSource.getStatistics("SELECT id FROM account WHERE id > 7");
+        assertEquals("SELECT id FROM account WHERE id > ?", stats.getSql());
+        assertEquals(1, stats.getExecutions());
+        assertEquals(1, stats.getLatencies().getCount());
+    }
+
+    @Test
+    public void testSqlIsNormalized() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement st = connection.prepareStatement(
+                        "SELECT id FROM account WHERE owner = 'O''Brien' AND id IN (?, ?,?)")) {
+            assertNotNull(st);
+        }
+        StatementStatistics stats = dataSource.getStatistics("SELECT id FROM account WHERE owner = 'x' AND id IN (?, ?)");
+        assertNotNull(stats);
+        assertEquals("SELECT id FROM account WHERE owner = ? AND id IN (?, ...)", stats.getSql());
+        assertEquals(1, stats.getPrepares());
+    }
+
+    @Test
+    public void testPoolConfiguration() {
+        Properties p = new Properties();
+        p.setProperty("jdbc.driver", "org.apache.derby.jdbc.EmbeddedDriver");
+        p.setProperty("jdbc.url", "jdbc:derby:memory:instrumented-test");
+        p.setProperty("jdbc.pool.maxActive", "3");
+        p.setProperty("jdbc.pool.maxWaitMillis", "50");
+        p.setProperty("jdbc.pool.testOnBorrow", "true");
+        p.setProperty("jdbc.pool.validationQuery", "VALUES 1");
+        BasicDataSource pool = PoolConfiguration.createPool(p);
+
+        assertEquals(3, pool.getMaxActive());
+        assertEquals(50, pool.getMaxWait());
+        assertTrue(pool.getTestOnBorrow());
+        assertEquals("VALUES 1", pool.getValidationQuery());
+    }
+
+    @Test
+    public void testEmbeddedPoolConfiguration() throws SQLException {
+        Properties p = new Properties();
+        p.setProperty("jdbc.mode", "embedded");
+        p.setProperty("jdbc.embedded.database", "memory:instrumented-test");
+        BasicDataSource pool = PoolConfiguration.createPool(p);
+
+        assertEquals("jdbc:derby:memory:instrumented-test;create=true", pool.getUrl());
+        try (Connection connection = pool.getConnection()) {
+            assertTrue(connection.getMetaData().getDriverName().contains("Embedded"));
+        }
+        pool.close();
+    }
+
+    @Test
+    public void testPoolConfigurationWithInvalidMode() {
+        Properties p = new Properties();
+        p.setProperty("jdbc.mode", "remote");
+        exception.expect(IllegalArgumentException.class);
+        PoolConfiguration.createPool(p);
+    }
+
+    @Test
+    public void testPoolConfigurationWithInvalidValue() {
+        Properties p = new Properties();
+        p.setProperty("jdbc.pool.maxActive", "many");
+        exception.expect(IllegalArgumentException.class);
+        PoolConfiguration.createPool(p);
+    }
+
+    @Test
+    public void testPoolMetrics() throws SQLException {
+        Properties p = new Properties();
+        p.setProperty("jdbc.driver", "org.apache.derby.jdbc.EmbeddedDriver");
+        p.setProperty("jdbc.url", "jdbc:derby:memory:instrumented-test");
+        p.setProperty("jdbc.pool.maxActive", "1");
+        p.setProperty("jdbc.pool.maxWaitMillis", "10");
+        BasicDataSource pool = PoolConfiguration.createPool(p);
+        InstrumentedDataSource pooled = new InstrumentedDataSource(pool, 1000);
+        PoolMetrics metrics = new PoolMetrics(pooled, pool);
+
+        try (Connection connection = pooled.getConnection()) {
+            assertEquals(1, metrics.getActive());
+            try {
+                pooled.getConnection();
+                fail();
+            } catch (SQLException ex) {
+                // the only connection is borrowed
+            }
+        }
+
+        assertEquals(0, metrics.getActive());
+        assertEquals(1, metrics.getIdle());
+        assertEquals(0, metrics.getWaiters());
+        assertEquals(1, metrics.getBorrows());
+        assertEquals(1, metrics.getBorrowFailures());
+        assertTrue(metrics.getWaitMaxMicros() >= 10000 * 0.9);
+        pool.close();
+    }
+
+}
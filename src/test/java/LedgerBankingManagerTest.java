@@ -0,0 +1,417 @@
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import pv168.Account;
+import pv168.AccountManagerImpl;
+import pv168.BalanceCheckpoints;
+import pv168.EntityNotFoundException;
+import pv168.InsufficientBalanceException;
+import pv168.LedgerBankingManager;
+import pv168.Payment;
+import pv168.PaymentManagerImpl;
+import pv168.PaymentResult;
+import pv168.SchemaMigration;
+import pv168.ServiceFailureException;
+
+import javax.sql.DataSource;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import static org.assertj.core.api.Assertions.*;
+import static pv168.Account.*;
+import static pv168.Payment.*;
+
+
+public class LedgerBankingManagerTest {
+
+    private DataSource dataSource;
+    private AccountManagerImpl accountManager;
+    private PaymentManagerImpl paymentManager;
+    private LedgerBankingManager ledger;
+    private Path journal;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        dataSource = prepareDataSource();
+        SchemaMigration.migrate(dataSource);
+        accountManager = new AccountManagerImpl(dataSource);
+        paymentManager = new PaymentManagerImpl(dataSource);
+        journal = folder.getRoot().toPath().resolve("payments.journal");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if (ledger != null) {
+            ledger.close();
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            for (String table : new String[]{"schema_version", "ledger_projection", "balance_checkpoint", "payment_daily", "payment", "account"}) {
+                connection.prepareStatement("DROP TABLE " + table).executeUpdate();
+            }
+        }
+    }
+
+    private static DataSource prepareDataSource() {
+        EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName("memory:ledger-test");
+        ds.setCreateDatabase("create");
+        return ds;
+    }
+
+    private Account[] createAccounts(int count, BigDecimal balance) {
+        Account[] accounts = new Account[count];
+        for (int i = 0; i < count; i++) {
+            accounts[i] = newAccount("Owner " + i, balance);
+            accountManager.createAccount(accounts[i]);
+        }
+        return accounts;
+    }
+
+    private long journalSize() throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(folder.getRoot().toPath(),
+                "payments.journal.*")) {
+            for (Path segment : segments) {
+                size += Files.size(segment);
+            }
+        }
+        return size;
+    }
+
+    private static void writeRecords(OutputStream stream, long firstId, int count, Account from, Account to,
+            long amount) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        for (long id = firstId; id < firstId + count; id++) {
+            ByteBuffer payload = ByteBuffer.allocate(40);
+            payload.putLong(id).putLong(from.getId()).putLong(to.getId()).putLong(amount)
+                    .putLong(System.currentTimeMillis());
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            out.writeInt(40);
+            out.write(payload.array());
+            out.writeInt((int) crc.getValue());
+        }
+        out.flush();
+    }
+
+    @Test
+    public void testExecutePayment() throws IOException {
+        Account[] accounts = createAccounts(2, new BigDecimal("100.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+
+        Payment payment = newPayment(new BigDecimal("30.50"), accounts[0], accounts[1], null);
+        ledger.executePayment(payment);
+
+        assertThat(payment.getId()).isNotNull();
+        assertThat(payment.getSent()).isNotNull();
+        assertThat(accounts[0].getBalance()).isEqualByComparingTo(new BigDecimal("69.50"));
+        assertThat(accounts[1].getBalance()).isEqualByComparingTo(new BigDecimal("130.50"));
+        assertThat(journalSize()).isEqualTo(48);
+
+        ledger.awaitProjection();
+        assertThat(paymentManager.findPaymentById(payment.getId()).getAmount())
+                .isEqualByComparingTo(new BigDecimal("30.50"));
+        assertThat(accountManager.findAccountById(accounts[0].getId()).getBalance())
+                .isEqualByComparingTo(new BigDecimal("69.50"));
+        assertThat(accountManager.findAccountById(accounts[1].getId()).getBalance())
+                .isEqualByComparingTo(new BigDecimal("130.50"));
+        assertThat(ledger.findAllIncomingPaymentsToAccount(accounts[1])).hasSize(1);
+        assertThat(ledger.findTurnover(accounts[0], new Date(0), new Date(System.currentTimeMillis() + 86400000L))
+                .getOutgoing().getSum()).isEqualByComparingTo(new BigDecimal("30.50"));
+        ledger.close();
+        // the payment is written to the database, so it is not kept in the journal
+        assertThat(journalSize()).isZero();
+    }
+
+    @Test
+    public void testExecutePaymentWithInsufficientBalance() {
+        Account[] accounts = createAccounts(2, new BigDecimal("10.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+
+        Payment payment = newPayment(new BigDecimal("10.01"), accounts[0], accounts[1], null);
+        try {
+            ledger.executePayment(payment);
+            fail("payment was executed");
+        } catch (InsufficientBalanceException ex) {
+            // expected
+        }
+        assertThat(payment.getId()).isNull();
+        assertThat(payment.getSent()).isNull();
+        assertThat(accounts[0].getBalance()).isEqualByComparingTo(new BigDecimal("10.00"));
+    }
+
+    @Test
+    public void testExecutePaymentFromNonexistentAccount() {
+        Account[] accounts = createAccounts(1, new BigDecimal("10.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+        Account missing = newAccount("Nobody", new BigDecimal("10.00"));
+        missing.setId(accounts[0].getId() + 100);
+
+        exception.expect(EntityNotFoundException.class);
+        ledger.executePayment(newPayment(BigDecimal.ONE, missing, accounts[0], null));
+    }
+
+    @Test
+    public void testAccountCreatedAfterStart() {
+        Account[] accounts = createAccounts(1, new BigDecimal("10.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+        Account created = createAccounts(1, new BigDecimal("5.00"))[0];
+
+        ledger.executePayment(newPayment(new BigDecimal("5.00"), created, accounts[0], null));
+        assertThat(created.getBalance()).isEqualByComparingTo(BigDecimal.ZERO);
+        assertThat(accounts[0].getBalance()).isEqualByComparingTo(new BigDecimal("15.00"));
+    }
+
+    @Test
+    public void testExecutePayments() {
+        Account[] accounts = createAccounts(3, new BigDecimal("10.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+
+        List<PaymentResult> results = ledger.executePayments(Arrays.asList(
+                newPayment(new BigDecimal("10.00"), accounts[0], accounts[1], null),
+                newPayment(new BigDecimal("1.00"), accounts[0], accounts[2], null),
+                newPayment(new BigDecimal("20.00"), accounts[1], accounts[2], null)));
+
+        assertThat(results).containsExactly(PaymentResult.EXECUTED, PaymentResult.INSUFFICIENT_BALANCE,
+                PaymentResult.EXECUTED);
+        ledger.close();
+        assertThat(accountManager.findAccountById(accounts[0].getId()).getBalance())
+                .isEqualByComparingTo(BigDecimal.ZERO);
+        assertThat(accountManager.findAccountById(accounts[2].getId()).getBalance())
+                .isEqualByComparingTo(new BigDecimal("30.00"));
+        assertThat(paymentManager.findAllPayments()).hasSize(2);
+    }
+
+    @Test
+    public void testConcurrentPaymentsKeepTotalBalance() throws Exception {
+        Account[] accounts = createAccounts(10, new BigDecimal("100.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Long>> executed = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int seed = t;
+            executed.add(executor.submit(() -> {
+                long count = 0;
+                for (int i = 0; i < 500; i++) {
+                    Account from = copy(accounts[(seed + i) % accounts.length]);
+                    Account to = copy(accounts[(seed + 3 * i + 1) % accounts.length]);
+                    if (from.getId().equals(to.getId())) {
+                        continue;
+                    }
+                    try {
+                        ledger.executePayment(newPayment(new BigDecimal("7.00"), from, to, null));
+                        count++;
+                    } catch (InsufficientBalanceException ex) {
+                        // the account was drained by other threads
+                    }
+                }
+                return count;
+            }));
+        }
+        long count = 0;
+        for (Future<Long> future : executed) {
+            count += future.get();
+        }
+        executor.shutdown();
+        assertThat(journalSize()).isEqualTo(48 * count);
+        ledger.close();
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (Account account : accounts) {
+            BigDecimal balance = accountManager.findAccountById(account.getId()).getBalance();
+            assertThat(balance.signum()).isGreaterThanOrEqualTo(0);
+            total = total.add(balance);
+        }
+        assertThat(total).isEqualByComparingTo(new BigDecimal("1000.00"));
+        assertThat(paymentManager.findAllPayments()).hasSize((int) count);
+        assertThat(journalSize()).isZero();
+    }
+
+    @Test
+    public void testGeneratedIdsContinueAfterLedger() {
+        Account[] accounts = createAccounts(2, new BigDecimal("100.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+        Payment executed = newPayment(BigDecimal.ONE, accounts[0], accounts[1], null);
+        ledger.executePayment(executed);
+        ledger.close();
+
+        Payment created = newPayment(BigDecimal.ONE, accounts[0], accounts[1], new Date());
+        paymentManager.createPayment(created);
+        assertThat(created.getId()).isGreaterThan(executed.getId());
+    }
+
+    @Test
+    public void testFindBalanceAtWithoutCheckpoints() throws InterruptedException {
+        Account[] accounts = createAccounts(2, new BigDecimal("100.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+        ledger.executePayment(newPayment(new BigDecimal("10.00"), accounts[0], accounts[1], null));
+        Thread.sleep(5);
+        Date between = new Date();
+        Thread.sleep(5);
+        ledger.executePayment(newPayment(new BigDecimal("20.00"), accounts[0], accounts[1], null));
+
+        assertThatThrownBy(() -> BalanceCheckpoints.takeCheckpoint(dataSource))
+                .isInstanceOf(IllegalStateException.class);
+        assertThat(ledger.findBalanceAt(accounts[0], between)).isEqualByComparingTo(new BigDecimal("90.00"));
+        assertThat(ledger.findBalanceAt(accounts[1], new Date())).isEqualByComparingTo(new BigDecimal("130.00"));
+
+        ledger.close();
+        assertThat(BalanceCheckpoints.takeCheckpoint(dataSource)).isNotNull();
+    }
+
+    @Test
+    public void testExecuteAfterClose() {
+        Account[] accounts = createAccounts(2, new BigDecimal("100.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+        ledger.close();
+
+        exception.expect(IllegalStateException.class);
+        ledger.executePayment(newPayment(BigDecimal.ONE, accounts[0], accounts[1], null));
+    }
+
+    @Test
+    public void testFailedProjectionRejectsPayments() {
+        Account[] accounts = createAccounts(2, new BigDecimal("100.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+        // the ledger knows the account, but the payment can not reference it in the database
+        accountManager.deleteAccount(accounts[1]);
+
+        ledger.executePayment(newPayment(new BigDecimal("10.00"), accounts[0], accounts[1], null));
+        assertThatThrownBy(() -> ledger.awaitProjection()).isInstanceOf(ServiceFailureException.class);
+
+        exception.expect(ServiceFailureException.class);
+        ledger.executePayment(newPayment(new BigDecimal("10.00"), accounts[1], accounts[0], null));
+    }
+
+    @Test
+    public void testRestartDoesNotReplayWrittenPayments() throws IOException {
+        Account[] accounts = createAccounts(2, new BigDecimal("100.00"));
+        ledger = new LedgerBankingManager(dataSource, journal);
+        ledger.executePayment(newPayment(new BigDecimal("10.00"), accounts[0], accounts[1], null));
+        ledger.close();
+
+        ledger = new LedgerBankingManager(dataSource, journal);
+        Payment payment = newPayment(new BigDecimal("10.00"), accounts[0], accounts[1], null);
+        ledger.executePayment(payment);
+        assertThat(accounts[0].getBalance()).isEqualByComparingTo(new BigDecimal("80.00"));
+        assertThat(journalSize()).isEqualTo(48);
+        ledger.close();
+
+        assertThat(accountManager.findAccountById(accounts[1].getId()).getBalance())
+                .isEqualByComparingTo(new BigDecimal("120.00"));
+        assertThat(paymentManager.findAllPayments()).hasSize(2);
+        assertThat(journalSize()).isZero();
+    }
+
+    @Test
+    public void testReplayOfPaymentsMissingInDatabase() throws IOException {
+        Account[] accounts = createAccounts(2, new BigDecimal("100.00"));
+        // journal of a ledger which crashed before its projection wrote the payments,
+        // followed by a record torn by the crash
+        try (OutputStream out = Files.newOutputStream(journal.resolveSibling("payments.journal.1"))) {
+            writeRecords(out, 1000, 3, accounts[0], accounts[1], 1500);
+            out.write(new byte[20]);
+        }
+
+        ledger = new LedgerBankingManager(dataSource, journal);
+        Payment payment = newPayment(new BigDecimal("5.00"), accounts[1], accounts[0], null);
+        ledger.executePayment(payment);
+        assertThat(payment.getId()).isGreaterThan(1002L);
+        assertThat(accounts[0].getBalance()).isEqualByComparingTo(new BigDecimal("60.00"));
+        assertThat(accounts[1].getBalance()).isEqualByComparingTo(new BigDecimal("140.00"));
+        assertThat(journalSize()).isEqualTo(4 * 48);
+        ledger.close();
+
+        assertThat(paymentManager.findPaymentById(1001L).getAmount()).isEqualByComparingTo(new BigDecimal("15.00"));
+        assertThat(paymentManager.findAllPayments()).hasSize(4);
+        assertThat(accountManager.findAccountById(accounts[0].getId()).getBalance())
+                .isEqualByComparingTo(new BigDecimal("60.00"));
+        assertThat(journalSize()).isZero();
+
+        // replayed payments are not replayed again
+        ledger = new LedgerBankingManager(dataSource, journal);
+        ledger.close();
+        assertThat(accountManager.findAccountById(accounts[1].getId()).getBalance())
+                .isEqualByComparingTo(new BigDecimal("140.00"));
+    }
+
+    @Test
+    public void testReplayStopsAtCorruptedRecord() throws IOException {
+        Account[] accounts = createAccounts(2, new BigDecimal("100.00"));
+        Path segment = journal.resolveSibling("payments.journal.1");
+        try (OutputStream out = Files.newOutputStream(segment)) {
+            writeRecords(out, 1000, 3, accounts[0], accounts[1], 1500);
+        }
+        byte[] records = Files.readAllBytes(segment);
+        // amount of the second payment
+        records[48 + 4 + 31] ^= 1;
+        Files.write(segment, records);
+
+        ledger = new LedgerBankingManager(dataSource, journal);
+        assertThat(accounts[0].getBalance()).isEqualByComparingTo(new BigDecimal("100.00"));
+        ledger.close();
+
+        assertThat(paymentManager.findAllPayments()).extracting("id").containsOnly(1000L);
+        assertThat(accountManager.findAccountById(accounts[0].getId()).getBalance())
+                .isEqualByComparingTo(new BigDecimal("85.00"));
+    }
+
+    @Test
+    public void testSegmentsOfWrittenPaymentsAreDeleted() throws IOException, SQLException {
+        Account[] accounts = createAccounts(2, new BigDecimal("100.00"));
+        Path written = journal.resolveSibling("payments.journal.1");
+        Path missing = journal.resolveSibling("payments.journal.2");
+        try (OutputStream out = Files.newOutputStream(written)) {
+            writeRecords(out, 1000, 3, accounts[0], accounts[1], 1500);
+        }
+        try (OutputStream out = Files.newOutputStream(missing)) {
+            writeRecords(out, 1003, 2, accounts[0], accounts[1], 1500);
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            connection.prepareStatement("UPDATE ledger_projection SET lastPaymentId = 1002").executeUpdate();
+        }
+
+        ledger = new LedgerBankingManager(dataSource, journal);
+        assertThat(written).doesNotExist();
+        assertThat(Files.size(missing)).isEqualTo(2 * 48);
+        ledger.close();
+
+        assertThat(paymentManager.findAllPayments()).extracting("id").containsOnly(1003L, 1004L);
+        assertThat(accountManager.findAccountById(accounts[0].getId()).getBalance())
+                .isEqualByComparingTo(new BigDecimal("70.00"));
+        assertThat(journalSize()).isZero();
+    }
+
+    private static Account copy(Account account) {
+        Account copy = newAccount(account.getOwner(), account.getBalance());
+        copy.setId(account.getId());
+        return copy;
+    }
+}
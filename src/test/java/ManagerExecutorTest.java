@@ -0,0 +1,179 @@
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import pv168.Account;
+import pv168.AccountManagerImpl;
+import pv168.AsyncAccountManager;
+import pv168.AsyncBankingManager;
+import pv168.BankingManagerImpl;
+import pv168.InsufficientBalanceException;
+import pv168.ManagerExecutor;
+import pv168.Payment;
+import pv168.SchemaMigration;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.*;
+import static pv168.Account.*;
+import static pv168.Payment.*;
+
+
+public class ManagerExecutorTest {
+
+    private DataSource dataSource;
+    private ManagerExecutor executor;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void setUp() {
+        dataSource = prepareDataSource();
+        SchemaMigration.migrate(dataSource);
+        executor = new ManagerExecutor(2, 10);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        executor.close();
+        try (Connection connection = dataSource.getConnection()) {
+            for (String table : new String[]{"schema_version", "ledger_projection", "balance_checkpoint", "payment_daily", "payment", "account"}) {
+                connection.prepareStatement("DROP TABLE " + table).executeUpdate();
+            }
+        }
+    }
+
+    private static DataSource prepareDataSource() {
+        EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName("memory:manager-executor-test");
+        ds.setCreateDatabase("create");
+        return ds;
+    }
+
+    @Test
+    public void testPipelinedCalls() {
+        AsyncAccountManager manager = executor.accountManager(new AccountManagerImpl(dataSource));
+        Account karel = newAccount("Karel", new BigDecimal("5.00"));
+        Account pepa = newAccount("Pepa", new BigDecimal("10.00"));
+        Account ondra = newAccount("Ondra", new BigDecimal("20.00"));
+        // the first insert preallocates identity values, Derby may time out
+        // concurrent inserts preallocating them at once
+        manager.createAccount(karel).join();
+
+        CompletableFuture<Void> created = CompletableFuture.allOf(manager.createAccount(pepa),
+                manager.createAccount(ondra));
+        List<Account> all = created.thenCompose(ignored -> manager.findAllAccounts()).join();
+
+        assertThat(all).containsOnly(karel, pepa, ondra);
+        assertThat(manager.findAccountById(pepa.getId()).join()).isEqualTo(pepa);
+        assertThat(manager.countAccounts().join()).isEqualTo(3);
+    }
+
+    @Test
+    public void testExceptionCompletesFuture() throws InterruptedException {
+        AsyncAccountManager manager = executor.accountManager(new AccountManagerImpl(dataSource));
+
+        CompletableFuture<Void> created = manager.createAccount(null);
+        try {
+            created.get();
+            fail("account was created");
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause()).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Test
+    public void testExecutePaymentWithInsufficientBalance() throws InterruptedException {
+        AccountManagerImpl accountManager = new AccountManagerImpl(dataSource);
+        Account from = newAccount("Pepa", new BigDecimal("10.00"));
+        Account to = newAccount("Ondra", new BigDecimal("20.00"));
+        accountManager.createAccount(from);
+        accountManager.createAccount(to);
+        AsyncBankingManager manager = executor.bankingManager(new BankingManagerImpl(dataSource));
+
+        Payment payment = newPayment(new BigDecimal("10.01"), from, to, null);
+        try {
+            manager.executePayment(payment).get();
+            fail("payment was executed");
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause()).isInstanceOf(InsufficientBalanceException.class);
+        }
+    }
+
+    @Test
+    public void testSubmitToFullExecutorIsRejected() throws Exception {
+        executor.close();
+        executor = new ManagerExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<Integer> running = executor.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return 1;
+        });
+        CompletableFuture<Integer> queued = executor.submit(() -> 2);
+        CompletableFuture<Integer> rejected = executor.submit(() -> 3);
+
+        assertThat(rejected).isCompletedExceptionally();
+        assertThatThrownBy(rejected::join).hasCauseInstanceOf(RejectedExecutionException.class);
+        assertThatThrownBy(() -> executor.execute(() -> { })).isInstanceOf(RejectedExecutionException.class);
+
+        release.countDown();
+        assertThat(running.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(queued.get(5, TimeUnit.SECONDS)).isEqualTo(2);
+        assertThat(executor.submit(() -> 4).get(5, TimeUnit.SECONDS)).isEqualTo(4);
+    }
+
+    @Test
+    public void testCancelledQueuedTaskDoesNotRun() throws Exception {
+        executor.close();
+        executor = new ManagerExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean ran = new AtomicBoolean();
+
+        FutureTask<Void> running = new FutureTask<>(() -> {
+            release.await();
+            return null;
+        });
+        FutureTask<Void> superseded = new FutureTask<>(() -> ran.set(true), null);
+        executor.execute(running);
+        executor.execute(superseded);
+        superseded.cancel(false);
+
+        release.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        executor.close();
+        assertThat(ran.get()).isFalse();
+    }
+
+    @Test
+    public void testSubmitAfterClose() {
+        executor.close();
+
+        exception.expect(IllegalStateException.class);
+        executor.submit(() -> 1);
+    }
+
+    @Test
+    public void testInvalidLimits() {
+        exception.expect(IllegalArgumentException.class);
+        new ManagerExecutor(0, 10);
+    }
+}
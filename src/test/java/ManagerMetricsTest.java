@@ -0,0 +1,124 @@
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import pv168.Account;
+import pv168.AccountManager;
+import pv168.AccountManagerImpl;
+import pv168.LatencyHistogram;
+import pv168.ManagerMetrics;
+import pv168.MethodMetrics;
+
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+import static pv168.Account.*;
+
+
+public class ManagerMetricsTest {
+
+    private AccountManager manager;
+    private DataSource dataSource;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource = prepareDataSource();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement prepStatement = connection.prepareStatement("CREATE TABLE account ("
+                    + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
+                    + "owner VARCHAR(200) ,"
+                    + "balance DECIMAL)");
+        ) {
+            prepStatement.executeUpdate();
+        }
+        manager = ManagerMetrics.instrument(AccountManager.class, new AccountManagerImpl(dataSource));
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.prepareStatement("DROP TABLE account").executeUpdate();
+        }
+    }
+
+    private static DataSource prepareDataSource() throws SQLException {
+        EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName("memory:metrics-test");
+        ds.setCreateDatabase("create");
+        return ds;
+    }
+
+    @Test
+    public void testCallsAreRecorded() throws Exception {
+        MethodMetrics create = ManagerMetrics.get("AccountManager", "createAccount(Account)");
+        MethodMetrics find = ManagerMetrics.get("AccountManager", "findAccountById(Long)");
+        long createCalls = create.getCalls();
+        long findCalls = find.getCalls();
+        long findErrors = find.getErrors();
+
+        Account account = newAccount("John", new BigDecimal(50));
+        manager.createAccount(account);
+        assertEquals(account, manager.findAccountById(account.getId()));
+        try {
+            manager.findAccountById(null);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // exceptions of the manager are passed unchanged
+        }
+
+        assertEquals(createCalls + 1, create.getCalls());
+        assertEquals(findCalls + 2, find.getCalls());
+        assertEquals(findErrors + 1, find.getErrors());
+        assertEquals(0, find.getActiveCalls());
+        assertTrue(find.getMaxMicros() > 0);
+
+        ObjectName name = new ObjectName("pv168:type=ManagerMetrics,manager=AccountManager,method="
+                + ObjectName.quote("findAccountById(Long)"));
+        assertEquals(find.getCalls(), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Calls"));
+    }
+
+    @Test
+    public void testInstrumentClass() {
+        exception.expect(IllegalArgumentException.class);
+        ManagerMetrics.instrument(AccountManagerImpl.class, new AccountManagerImpl(dataSource));
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500000, snapshot.getValueAtPercentile(50), 500000 * 0.04);
+        assertEquals(990000, snapshot.getValueAtPercentile(99), 990000 * 0.04);
+        assertEquals(1000000, snapshot.getMax(), 1000000 * 0.04);
+        assertEquals(500500, snapshot.getMean(), 500500 * 0.04);
+    }
+
+    @Test
+    public void testHistogramSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(-5);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+        assertEquals(3, snapshot.getMax());
+        assertEquals(0, new LatencyHistogram().snapshot().getValueAtPercentile(99));
+    }
+
+}
@@ -12,6 +12,8 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
@@ -53,6 +55,19 @@ public class PaymentManagerImplTest {
                 prepStatement2.executeUpdate();
 
             }
+
+            try (PreparedStatement prepStatement3 = connection.prepareStatement("CREATE TABLE payment_daily (" +
+                    "accountId BIGINT NOT NULL, " +
+                    "sentDay DATE NOT NULL, " +
+                    "inCount BIGINT NOT NULL, " +
+                    "inSum DECIMAL(31,2) NOT NULL, " +
+                    "outCount BIGINT NOT NULL, " +
+                    "outSum DECIMAL(31,2) NOT NULL, " +
+                    "PRIMARY KEY (accountId, sentDay))")) {
+
+                prepStatement3.executeUpdate();
+
+            }
         }
         manager = new PaymentManagerImpl(dataSource);
         manager2 = new AccountManagerImpl(dataSource);
@@ -61,6 +76,7 @@ public class PaymentManagerImplTest {
     @After
     public void tearDown() throws SQLException {
         try (Connection connection = dataSource.getConnection()) {
+            connection.prepareStatement("DROP TABLE payment_daily").executeUpdate();
             connection.prepareStatement("DROP TABLE PAYMENT").executeUpdate();
             connection.prepareStatement("DROP TABLE ACCOUNT").executeUpdate();
         }
@@ -119,6 +135,16 @@ public class PaymentManagerImplTest {
         manager.createPayment(payment);
     }
 
+    @Test
+    public void createPaymentWithFractionOfCent() {
+        Calendar cal = newCalendar(2016, 3, 12);
+        Account from1 = newAccount("jano", new BigDecimal(2000));
+        Account to1 = newAccount("marian", new BigDecimal(2000));
+        Payment payment = newPayment(new BigDecimal("20.005"), from1, to1, cal.getTime());
+        expectedException.expect(IllegalArgumentException.class);
+        manager.createPayment(payment);
+    }
+
     @Test
     public void createPaymentWithNullFromAccount() {
         Calendar cal = newCalendar(2016, 3, 12);
@@ -376,6 +402,75 @@ public class PaymentManagerImplTest {
 
     }
 
+    @Test
+    public void testFindAllPaymentsSharesAccounts() throws Exception {
+        Calendar cal = newCalendar(2016, 3, 12);
+        Account from1 = newAccount("jano", new BigDecimal(2000));
+        Account to1 = newAccount("marian", new BigDecimal(2000));
+        Payment p1 = newPayment(new BigDecimal(100), from1, to1, cal.getTime());
+        Payment p2 = newPayment(new BigDecimal(200), to1, from1, cal.getTime());
+
+        manager2.createAccount(from1);
+        manager2.createAccount(to1);
+        manager.createPayment(p1);
+        manager.createPayment(p2);
+
+        List<Payment> actual = manager.findAllPayments();
+        Collections.sort(actual, idComparator);
+
+        assertDeepEquals(Arrays.asList(p1, p2), actual);
+        assertThat(actual.get(0).getFrom(), is(sameInstance(actual.get(1).getTo())));
+        assertThat(actual.get(0).getTo(), is(sameInstance(actual.get(1).getFrom())));
+    }
+
+    @Test
+    public void testStreamAllPayments() throws Exception {
+        Calendar cal = newCalendar(2016, 3, 12);
+        Account from1 = newAccount("jano", new BigDecimal(2000));
+        Account to1 = newAccount("marian", new BigDecimal(2000));
+        Payment p1 = newPayment(new BigDecimal(100), from1, to1, cal.getTime());
+        Payment p2 = newPayment(new BigDecimal(200), to1, from1, cal.getTime());
+
+        manager2.createAccount(from1);
+        manager2.createAccount(to1);
+        manager.createPayment(p1);
+        manager.createPayment(p2);
+
+        List<Payment> actual;
+        try (Stream<Payment> stream = manager.streamAllPayments(1)) {
+            actual = stream.collect(Collectors.toList());
+        }
+        Collections.sort(actual, idComparator);
+
+        assertEquals(Arrays.asList(p1, p2), actual);
+        assertDeepEquals(Arrays.asList(p1, p2), actual);
+    }
+
+    @Test
+    public void testFindPaymentsByPages() throws Exception {
+        Calendar cal = newCalendar(2016, 3, 12);
+        Account from1 = newAccount("jano", new BigDecimal(2000));
+        Account to1 = newAccount("marian", new BigDecimal(2000));
+        manager2.createAccount(from1);
+        manager2.createAccount(to1);
+
+        List<Payment> expected = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Payment payment = newPayment(new BigDecimal(100 + i), from1, to1, cal.getTime());
+            manager.createPayment(payment);
+            expected.add(payment);
+        }
+
+        List<Payment> firstPage = manager.findPayments(null, 3);
+        List<Payment> secondPage = manager.findPayments(firstPage.get(2).getId(), 3);
+
+        assertEquals(expected.subList(0, 3), firstPage);
+        assertEquals(expected.subList(3, 5), secondPage);
+        assertTrue(manager.findPayments(secondPage.get(1).getId(), 3).isEmpty());
+        assertEquals(5, manager.countPayments());
+        assertEquals(expected.subList(4, 5), manager.findPayments(firstPage.get(0).getId(), 3, 3));
+    }
+
     private void assertDeepEquals(Payment expected, Payment actual) {
         assertEquals(expected.getId(), actual.getId());
         assertEquals(expected.getAmount(), actual.getAmount());
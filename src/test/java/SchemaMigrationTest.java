@@ -0,0 +1,144 @@
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pv168.Account;
+import pv168.AccountManagerImpl;
+import pv168.SchemaMigration;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static pv168.Account.*;
+
+
+public class SchemaMigrationTest {
+
+    private DataSource dataSource;
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource = prepareDataSource();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            for (String table : new String[]{"schema_version", "ledger_projection", "balance_checkpoint", "payment_daily", "payment", "account"}) {
+                try {
+                    connection.prepareStatement("DROP TABLE " + table).executeUpdate();
+                } catch (SQLException ex) {
+                    // table was not created by the test
+                }
+            }
+        }
+    }
+
+    private static DataSource prepareDataSource() throws SQLException {
+        EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName("memory:schema-migration-test");
+        ds.setCreateDatabase("create");
+        return ds;
+    }
+
+    @Test
+    public void testMigrateEmptyDatabase() throws SQLException {
+        assertEquals(0, SchemaMigration.getCurrentVersion(dataSource));
+        assertEquals(SchemaMigration.LATEST_VERSION, SchemaMigration.migrate(dataSource));
+        assertEquals(SchemaMigration.LATEST_VERSION, SchemaMigration.getCurrentVersion(dataSource));
+
+        Set<String> indexes = findPaymentIndexes();
+        assertTrue(indexes.contains("PAYMENT_FROM_SENT"));
+        assertTrue(indexes.contains("PAYMENT_TO_SENT"));
+        assertTrue(indexes.contains("PAYMENT_SENT"));
+        assertTrue(indexes.contains("PAYMENT_FROM_ID"));
+        assertTrue(indexes.contains("PAYMENT_TO_ID"));
+    }
+
+    @Test
+    public void testMigrateIsIdempotent() throws SQLException {
+        SchemaMigration.migrate(dataSource);
+        Account account = newAccount("Owner", new BigDecimal("10.00"));
+        new AccountManagerImpl(dataSource).createAccount(account);
+
+        assertEquals(SchemaMigration.LATEST_VERSION, SchemaMigration.migrate(dataSource));
+        assertEquals(account, new AccountManagerImpl(dataSource).findAccountById(account.getId()));
+
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement st = connection.prepareStatement("SELECT COUNT(*) FROM schema_version");
+                ResultSet rs = st.executeQuery()) {
+            rs.next();
+            assertEquals(SchemaMigration.LATEST_VERSION, rs.getInt(1));
+        }
+    }
+
+    @Test
+    public void testMigrateExistingSchema() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.prepareStatement("CREATE TABLE account ("
+                    + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
+                    + "owner VARCHAR(200) ,"
+                    + "balance DECIMAL(17,2))").executeUpdate();
+            connection.prepareStatement("CREATE TABLE payment ("
+                    + "id BIGINT NOT NULL primary key generated always as identity, "
+                    + "amount DECIMAL(17,2), "
+                    + "fromAcc BIGINT NOT NULL, "
+                    + "toAcc BIGINT NOT NULL, "
+                    + "FOREIGN KEY (fromAcc) REFERENCES account (id),"
+                    + "FOREIGN KEY (toAcc) REFERENCES account (id),"
+                    + "dateSent TIMESTAMP )").executeUpdate();
+        }
+        Account account = newAccount("Owner", new BigDecimal("10.00"));
+        new AccountManagerImpl(dataSource).createAccount(account);
+        Account other = newAccount("Other", new BigDecimal("10.00"));
+        new AccountManagerImpl(dataSource).createAccount(other);
+        try (Connection connection = dataSource.getConnection()) {
+            connection.prepareStatement("INSERT INTO payment (amount, fromAcc, toAcc, dateSent) VALUES (2.50, "
+                    + account.getId() + ", " + other.getId() + ", CURRENT_TIMESTAMP)").executeUpdate();
+        }
+
+        assertEquals(SchemaMigration.LATEST_VERSION, SchemaMigration.migrate(dataSource));
+        assertEquals(account, new AccountManagerImpl(dataSource).findAccountById(account.getId()));
+        assertTrue(findPaymentIndexes().contains("PAYMENT_FROM_SENT"));
+
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement st = connection.prepareStatement(
+                        "SELECT outCount, outSum FROM payment_daily WHERE accountId = ?")) {
+            st.setLong(1, account.getId());
+            ResultSet rs = st.executeQuery();
+            assertTrue(rs.next());
+            assertEquals(1, rs.getLong("outCount"));
+            assertEquals(new BigDecimal("2.50"), rs.getBigDecimal("outSum"));
+        }
+
+        // payment table was recreated with assignable ids, generated ids continue after stored ones
+        try (Connection connection = dataSource.getConnection()) {
+            connection.prepareStatement("INSERT INTO payment (amount, fromAcc, toAcc, dateSent) VALUES (1.00, "
+                    + other.getId() + ", " + account.getId() + ", CURRENT_TIMESTAMP)").executeUpdate();
+            PreparedStatement st = connection.prepareStatement("SELECT COUNT(*), MIN(id), MAX(id) FROM payment");
+            ResultSet rs = st.executeQuery();
+            rs.next();
+            assertEquals(2, rs.getInt(1));
+            assertTrue(rs.getLong(3) > rs.getLong(2));
+        }
+    }
+
+    private Set<String> findPaymentIndexes() throws SQLException {
+        Set<String> indexes = new HashSet<>();
+        try (Connection connection = dataSource.getConnection();
+                ResultSet rs = connection.getMetaData().getIndexInfo(null, null, "PAYMENT", false, false)) {
+            while (rs.next()) {
+                indexes.add(rs.getString("INDEX_NAME"));
+            }
+        }
+        return indexes;
+    }
+
+}